@@ -0,0 +1,129 @@
+package com.itcs443.bookstore.benchmark;
+
+import com.google.apphosting.api.ApiProxy;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.util.Closeable;
+import com.itcs443.bookstore.domain.Book;
+import com.itcs443.bookstore.domain.Cart;
+import com.itcs443.bookstore.form.BookForm;
+import com.itcs443.bookstore.service.OfyService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stands in for the App Engine runtime and the datastore in the benchmarks.
+ */
+public class BenchmarkEnvironment {
+
+    private static final List<String> CATEGORIES =
+            Arrays.asList("Fiction", "Science", "History", "Children", "Travel");
+
+    /**
+     * The environment of a request, with only what keys and Objectify need.
+     */
+    private static class StubEnvironment implements ApiProxy.Environment {
+        private final Map<String, Object> attributes = new HashMap<>();
+
+        @Override
+        public String getAppId() {
+            return "s~ictbookstore";
+        }
+
+        @Override
+        public String getModuleId() {
+            return "default";
+        }
+
+        @Override
+        public String getVersionId() {
+            return "1.1";
+        }
+
+        @Override
+        public String getEmail() {
+            return null;
+        }
+
+        @Override
+        public boolean isLoggedIn() {
+            return false;
+        }
+
+        @Override
+        public boolean isAdmin() {
+            return false;
+        }
+
+        @Override
+        public String getAuthDomain() {
+            return "gmail.com";
+        }
+
+        @Override
+        @Deprecated
+        public String getRequestNamespace() {
+            return "";
+        }
+
+        @Override
+        public Map<String, Object> getAttributes() {
+            return attributes;
+        }
+
+        @Override
+        public long getRemainingMillis() {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    private BenchmarkEnvironment() {}
+
+    /**
+     * Installs the stub environment on the current thread and starts an Objectify context.
+     *
+     * @return the Objectify context, to close in the tear down.
+     */
+    public static Closeable begin() {
+        ApiProxy.setEnvironmentForCurrentThread(new StubEnvironment());
+        // Registers the entities.
+        OfyService.factory();
+        return ObjectifyService.begin();
+    }
+
+    /**
+     * Builds books with ids 1 to count, as the datastore would return them.
+     *
+     * @param count the number of books.
+     * @return the books.
+     */
+    public static List<Book> createBooks(int count) {
+        List<Book> books = new ArrayList<>(count);
+        for (int i = 1; i <= count; i++) {
+            books.add(new Book(i, new BookForm("Book " + i, "Description of book " + i,
+                    Arrays.asList(CATEGORIES.get(i % CATEGORIES.size())), "Author " + (i % 100),
+                    (5 + i % 50) * 100L)));
+        }
+        return books;
+    }
+
+    /**
+     * Builds a checked-out cart holding the given books.
+     *
+     * @param id the id of the cart.
+     * @param books the books of the cart.
+     * @return the cart.
+     */
+    public static Cart createCart(long id, List<Book> books) {
+        Cart cart = new Cart(id, "user" + id);
+        for (Book book : books) {
+            cart.addBook(book);
+        }
+        cart.setCustomerDisplayName("User " + id);
+        cart.setToCheckOut(true);
+        return cart;
+    }
+}
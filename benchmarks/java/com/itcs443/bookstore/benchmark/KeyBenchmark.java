@@ -0,0 +1,64 @@
+package com.itcs443.bookstore.benchmark;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.util.Closeable;
+import com.itcs443.bookstore.domain.Book;
+import com.itcs443.bookstore.domain.Cart;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and decoding of websafe keys, done on every serialization of a Book or Cart
+ * and on every API call taking a key.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyBenchmark {
+
+    private Closeable context;
+
+    private Book book;
+
+    private String websafeCartKey;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        context = BenchmarkEnvironment.begin();
+        List<Book> books = BenchmarkEnvironment.createBooks(3);
+        book = books.get(0);
+        websafeCartKey = BenchmarkEnvironment.createCart(42, books).getWebsafeKey();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public String bookWebsafeKey() {
+        return book.getWebsafeKey();
+    }
+
+    @Benchmark
+    public Key<Cart> decodeCartKey() {
+        return Key.create(websafeCartKey);
+    }
+}
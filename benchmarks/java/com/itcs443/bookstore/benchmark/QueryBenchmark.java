@@ -0,0 +1,67 @@
+package com.itcs443.bookstore.benchmark;
+
+import com.googlecode.objectify.cmd.Query;
+import com.googlecode.objectify.util.Closeable;
+import com.itcs443.bookstore.domain.Book;
+import com.itcs443.bookstore.form.BookQueryForm;
+import com.itcs443.bookstore.form.BookQueryForm.Field;
+import com.itcs443.bookstore.form.BookQueryForm.Filter;
+import com.itcs443.bookstore.form.BookQueryForm.Operator;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building the datastore query of queryBooks, without running it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryBenchmark {
+
+    private Closeable context;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        context = BenchmarkEnvironment.begin();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public Query<Book> categoryAndPriceRange() {
+        // A new form per call, as Endpoints deserializes one per request.
+        return new BookQueryForm()
+                .filter(new Filter(Field.CATEGORY, "Fiction"))
+                .filter(new Filter(Field.PRICE, Operator.GTEQ, "10"))
+                .filter(new Filter(Field.PRICE, Operator.LT, "20"))
+                .getQuery();
+    }
+
+    @Benchmark
+    public Query<Book> categoryAndNamePrefix() {
+        // The name goes to the search index, so only the category is pushed to the query.
+        return new BookQueryForm()
+                .filter(new Filter(Field.CATEGORY, "Fiction"))
+                .filter(new Filter(Field.NAME, Operator.PREFIX, "Book 1"))
+                .getQuery();
+    }
+}
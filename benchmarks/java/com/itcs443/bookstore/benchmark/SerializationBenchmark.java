@@ -0,0 +1,96 @@
+package com.itcs443.bookstore.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.introspect.AnnotatedMember;
+import com.fasterxml.jackson.databind.introspect.JacksonAnnotationIntrospector;
+import com.google.api.server.spi.config.AnnotationBoolean;
+import com.google.api.server.spi.config.ApiResourceProperty;
+import com.googlecode.objectify.util.Closeable;
+import com.itcs443.bookstore.domain.Book;
+import com.itcs443.bookstore.domain.Cart;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JSON serialization of lists of books and carts through their getters, as Endpoints
+ * serializes responses. Every Book and Cart computes its websafe key while serialized.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializationBenchmark {
+
+    private static final int BOOKS_PER_CART = 5;
+
+    /**
+     * Skips the properties that Endpoints leaves out of the responses.
+     */
+    private static class EndpointsIntrospector extends JacksonAnnotationIntrospector {
+        @Override
+        public boolean hasIgnoreMarker(AnnotatedMember member) {
+            ApiResourceProperty property = member.getAnnotation(ApiResourceProperty.class);
+            if (property != null && property.ignored() == AnnotationBoolean.TRUE) {
+                return true;
+            }
+            return super.hasIgnoreMarker(member);
+        }
+    }
+
+    @Param({"10", "1000", "100000"})
+    private int size;
+
+    private Closeable context;
+
+    private ObjectMapper mapper;
+
+    private List<Book> books;
+
+    private List<Cart> carts;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        context = BenchmarkEnvironment.begin();
+        mapper = new ObjectMapper().setAnnotationIntrospector(new EndpointsIntrospector());
+        books = BenchmarkEnvironment.createBooks(size);
+        carts = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            int first = i % (size - BOOKS_PER_CART + 1);
+            carts.add(BenchmarkEnvironment.createCart(i + 1,
+                    books.subList(first, Math.min(size, first + BOOKS_PER_CART))));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public byte[] books() throws Exception {
+        return mapper.writeValueAsBytes(books);
+    }
+
+    @Benchmark
+    public byte[] carts() throws Exception {
+        return mapper.writeValueAsBytes(carts);
+    }
+}
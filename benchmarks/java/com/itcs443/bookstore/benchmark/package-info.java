@@ -0,0 +1,10 @@
+/**
+ * JMH benchmarks of the domain and query-building hot paths.
+ *
+ * The benchmarks need no datastore: BenchmarkEnvironment installs a stub App Engine
+ * environment, which is all that building and encoding keys needs, and an Objectify
+ * context, which is all that building a query needs. benchmarks/pom.xml builds them
+ * against the classes jar of the application into benchmarks/target/benchmarks.jar; see
+ * the README for the commands.
+ */
+package com.itcs443.bookstore.benchmark;
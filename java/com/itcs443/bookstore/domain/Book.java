@@ -3,11 +3,13 @@ package com.itcs443.bookstore.domain;
 import static com.itcs443.bookstore.service.OfyService.ofy;
 
 import com.googlecode.objectify.condition.IfNotDefault;
+import com.googlecode.objectify.condition.IfNotNull;
 import com.google.api.server.spi.config.AnnotationBoolean;
 import com.google.api.server.spi.config.ApiResourceProperty;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.AlsoLoad;
 import com.googlecode.objectify.annotation.Cache;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
@@ -54,7 +56,28 @@ public class Book {
     @Index(IfNotDefault.class) 
     private String author;
     
-    private Double price;
+    /**
+     * The price in minor units, see Money.
+     */
+    @Index
+    private long priceMinor;
+
+    /**
+     * Incremented on every update, so that carts can tell whether their snapshot is stale.
+     */
+    private long version;
+
+    /**
+     * The number of StockShards of the book, 0 when its stock is not tracked.
+     */
+    private int stockShards;
+
+    /**
+     * The time of the last update with a BookForm, indexed so that the in-process indexes
+     * catch up with the books saved on other instances. Null for the books saved before.
+     */
+    @Index(IfNotNull.class)
+    private Date updatedAt;
 
 
     /**
@@ -98,8 +121,34 @@ public class Book {
         return author;
     }
     
-    public double getPrice(){
-    	return price;
+    public long getPriceMinor() {
+        return priceMinor;
+    }
+
+    /**
+     * Returns the price formatted in major units, e.g. "12.50", for display.
+     */
+    public String getPrice() {
+        return Money.format(priceMinor);
+    }
+
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public long getVersion() {
+        return version;
+    }
+
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public Date getUpdatedAt() {
+        return updatedAt;
+    }
+
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public int getStockShards() {
+        return stockShards;
+    }
+
+    public void setStockShards(int stockShards) {
+        this.stockShards = stockShards;
     }
     
     
@@ -114,7 +163,20 @@ public class Book {
         this.description = bookForm.getDescription();
         this.category = bookForm.getCategory();
         this.author = bookForm.getAuthor() == null ? DEFAULT_AUTHOR : bookForm.getAuthor();
-        this.price = bookForm.getPrice();
+        this.priceMinor = bookForm.getPriceMinor();
+        this.version++;
+        this.updatedAt = new Date();
+    }
+
+    /**
+     * Converts the price of the books saved before the minor units. The book is stored in
+     * the new format the next time it is saved.
+     */
+    @SuppressWarnings("unused")
+    private void importPrice(@AlsoLoad("price") Double price) {
+        if (price != null) {
+            this.priceMinor = Money.fromDouble(price);
+        }
     }
 
 
@@ -1,17 +1,18 @@
 package com.itcs443.bookstore.domain;
 
-import static com.itcs443.bookstore.service.OfyService.ofy;
-
 import com.googlecode.objectify.condition.IfNotDefault;
 import com.google.api.server.spi.config.AnnotationBoolean;
 import com.google.api.server.spi.config.ApiResourceProperty;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.AlsoLoad;
 import com.googlecode.objectify.annotation.Cache;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Ignore;
 import com.googlecode.objectify.annotation.Index;
+import com.googlecode.objectify.annotation.OnLoad;
 import com.googlecode.objectify.annotation.Parent;
 import com.itcs443.bookstore.form.BookForm;
 import com.itcs443.bookstore.form.CheckoutForm;
@@ -19,7 +20,9 @@ import com.itcs443.bookstore.form.CheckoutForm;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Cart class stores cart data.
@@ -53,7 +56,43 @@ public class Cart {
     @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
     private String customerUserId;
 
-    private Double total;
+    /**
+     * The display name of the customer, copied from the Profile so that serializing
+     * a cart needs no Profile load.
+     */
+    private String customerDisplayName;
+
+    /**
+     * The sum of the subtotals of the items in minor units, see Money.
+     */
+    private long totalMinor;
+
+    /**
+     * True when the total was loaded from a cart saved before the minor units.
+     */
+    @Ignore
+    private boolean legacyTotal;
+
+    /**
+     * The stage of the order in the checkout pipeline, null while the cart is ongoing and
+     * for the carts checked out before the pipeline.
+     */
+    private OrderStatus status;
+
+    /**
+     * Why the order was rejected or its payment declined.
+     */
+    private String statusReason;
+
+    /**
+     * The id of the payment, given by the PaymentProcessor.
+     */
+    private String paymentId;
+
+    /**
+     * The time of the checkout. Indexed for the order export.
+     */
+    @Index
     private Date date;
     private String address;
     
@@ -66,9 +105,16 @@ public class Cart {
     private String cardExpiryDate;
     
     /**
-     * BookID of this cart
+     * Books of this cart, one item per book with its quantity. Removing a book moves the
+     * last item into its place, so the order of the items is not kept.
      */
-    private List<String> bookKeys = new ArrayList<>(0);
+    private List<CartItem> items = new ArrayList<>(0);
+
+    /**
+     * The position of each item in items by Book id, built lazily from items.
+     */
+    @Ignore
+    private Map<Long, Integer> positions;
     
     
     /**
@@ -81,7 +127,23 @@ public class Cart {
         this.profileKey = Key.create(Profile.class, userId);
         this.customerUserId = userId;
         this.checkedOut = DEFAULT_UNCHECKOUT;
-        this.total = 0.0;
+    }
+
+    /**
+     * Returns a new cart holding the items of this one, e.g. to give the customer of a
+     * rejected order their books back.
+     *
+     * @param id the id of the new Cart, under the same Profile.
+     * @return the new Cart, not checked out.
+     */
+    public Cart copyItems(long id) {
+        Cart copy = new Cart(id, customerUserId);
+        copy.customerDisplayName = customerDisplayName;
+        for (CartItem item : items) {
+            copy.items.add(item.copy());
+        }
+        copy.recomputeTotal();
+        return copy;
     }
 
     public long getId() {
@@ -93,9 +155,14 @@ public class Cart {
         return profileKey;
     }
 
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public Key<Cart> getKey() {
+        return Key.create(profileKey, Cart.class, id);
+    }
+
     // Get a String version of the key
     public String getWebsafeKey() {
-        return Key.create(profileKey, Cart.class, id).getString();
+        return getKey().getString();
     }
 
     @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
@@ -111,19 +178,74 @@ public class Cart {
     	if(checked) this.checkedOut = true;
     	else this.checkedOut = false;
     }
+
+    /**
+     * Returns the stage of the order. The carts checked out before the checkout pipeline
+     * were paid and confirmed synchronously.
+     *
+     * @return the stage of the order, null while the cart is ongoing.
+     */
+    public OrderStatus getStatus() {
+        if (status == null && checkedOut) {
+            return OrderStatus.CONFIRMED;
+        }
+        return status;
+    }
+
+    public String getStatusReason() {
+        return statusReason;
+    }
+
+    /**
+     * Moves the order to the given stage.
+     *
+     * @param status the new stage.
+     * @param reason why the order was rejected or declined, null otherwise.
+     */
+    public void setStatus(OrderStatus status, String reason) {
+        this.status = status;
+        this.statusReason = reason;
+    }
+
+    /**
+     * Returns true when the order was paid, so it counts as a sale.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public boolean isConfirmed() {
+        return getStatus() == OrderStatus.CONFIRMED;
+    }
+
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public String getPaymentId() {
+        return paymentId;
+    }
+
+    public void setPaymentId(String paymentId) {
+        this.paymentId = paymentId;
+    }
     
     /**
      * Returns customer display name.
      *
-     * @return customer display name. If there is no Profile, return his/her userId.
+     * @return customer display name. If it is not known, return his/her userId.
      */
     public String getCustomerDisplayName() {
-        Profile customer = ofy().load().key(getProfileKey()).now();
-        if (customer == null) {
-            return customerUserId;
-        } else {
-            return customer.getDisplayName();
-        }
+        return customerDisplayName == null ? customerUserId : customerDisplayName;
+    }
+
+    /**
+     * Returns true when the customer display name is stored in this cart.
+     * Carts saved before it was stored need it resolved from the Profile.
+     *
+     * @return true when the customer display name is known.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public boolean hasCustomerDisplayName() {
+        return customerDisplayName != null;
+    }
+
+    public void setCustomerDisplayName(String customerDisplayName) {
+        this.customerDisplayName = customerDisplayName;
     }
 
     
@@ -148,29 +270,255 @@ public class Cart {
     	return address;
     }
     
-    public double getTotal(){
-    	return total;
+    public long getTotalMinor() {
+        return totalMinor;
     }
-    
-    public void addPrice(double price){
-    	this.total += price;
+
+    /**
+     * Returns the total formatted in major units, e.g. "12.50", for display.
+     */
+    public String getTotal() {
+        return Money.format(totalMinor);
     }
     
-    public void deductPrice(double price){
-    	this.total -= price;
+
+    public List<CartItem> getItems() {
+        return ImmutableList.copyOf(items);
     }
 
-	public List<String> getBookKeys() {
-        return ImmutableList.copyOf(bookKeys);
+    /**
+     * Returns the keys of the books in this cart, one key per distinct book.
+     *
+     * @return the keys of the books in this cart.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public List<Key<Book>> getBookKeys() {
+        List<Key<Book>> bookKeys = new ArrayList<>(items.size());
+        for (CartItem item : items) {
+            bookKeys.add(item.getBookKey());
+        }
+        return bookKeys;
+    }
+
+    /**
+     * Returns the websafe keys of the books in this cart, one key per copy, as the bookKeys
+     * property held them before the items had quantities.
+     *
+     * @return the websafe keys of the books in this cart.
+     */
+    @ApiResourceProperty(name = "bookKeys")
+    public List<String> getWebsafeBookKeys() {
+        List<String> bookKeys = new ArrayList<>(items.size());
+        for (CartItem item : items) {
+            String bookKey = item.getWebsafeBookKey();
+            for (int i = 0; i < item.getQuantity(); i++) {
+                bookKeys.add(bookKey);
+            }
+        }
+        return bookKeys;
+    }
+
+    /**
+     * Returns how many copies of the given book are in this cart.
+     *
+     * @param bookId the id of the Book.
+     * @return the quantity of the book, 0 when it is not in this cart.
+     */
+    public int getQuantity(long bookId) {
+        CartItem item = getItem(bookId);
+        return item == null ? 0 : item.getQuantity();
+    }
+
+    /**
+     * Adds one copy of the given book to this cart.
+     * A line without a snapshot yet, e.g. a new one, takes the book's name, author and price.
+     *
+     * @param book the Book to add.
+     */
+    public void addBook(Book book) {
+        CartItem item = addBookKey(Key.create(Book.class, book.getId()));
+        if (item.isMissingSnapshot()) {
+            item.updateSnapshot(book);
+        }
+        recomputeTotal();
+    }
+
+    /**
+     * Applies an add or remove operation from the cart journal.
+     * Removing a book that is not in this cart does nothing.
+     *
+     * @param operation the CartOperation to apply.
+     */
+    public void apply(CartOperation operation) {
+        applyWithoutTotal(operation);
+        recomputeTotal();
+    }
+
+    /**
+     * Applies several operations from the cart journal, in order, and recomputes the total once.
+     *
+     * @param operations the CartOperations to apply.
+     */
+    public void applyAll(List<CartOperation> operations) {
+        for (CartOperation operation : operations) {
+            applyWithoutTotal(operation);
+        }
+        recomputeTotal();
+    }
+
+    private void applyWithoutTotal(CartOperation operation) {
+        if (operation.isAdd()) {
+            CartItem item = addBookKey(operation.getBookKey());
+            if (item.isMissingSnapshot()) {
+                item.updateSnapshot(operation);
+            }
+        } else {
+            removeBookKey(operation.getBookKey());
+        }
+    }
+
+    private CartItem addBookKey(Key<Book> bookKey) {
+        CartItem item = getItem(bookKey.getId());
+        if (item == null) {
+            item = new CartItem(bookKey.getId());
+            positions.put(bookKey.getId(), items.size());
+            items.add(item);
+        }
+        item.increment();
+        return item;
+    }
+
+    /**
+     * Removes one copy of the given book from this cart.
+     *
+     * @param bookKey the key of the Book.
+     * @return true when a copy was removed, false when the book is not in this cart.
+     */
+    public boolean removeBook(Key<Book> bookKey) {
+        if (!removeBookKey(bookKey)) {
+            return false;
+        }
+        recomputeTotal();
+        return true;
+    }
+
+    private boolean removeBookKey(Key<Book> bookKey) {
+        CartItem item = getItem(bookKey.getId());
+        if (item == null) {
+            return false;
+        }
+        item.decrement();
+        if (item.getQuantity() == 0) {
+            // Moves the last item into the place of the removed one, instead of shifting
+            // every item after it.
+            int position = positions.remove(bookKey.getId());
+            CartItem last = items.remove(items.size() - 1);
+            if (last != item) {
+                items.set(position, last);
+                positions.put(last.getBookId(), position);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true when some items have no snapshot yet and need a reprice.
+     *
+     * @return true when some items have no snapshot.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public boolean isMissingSnapshots() {
+        for (CartItem item : items) {
+            if (item.isMissingSnapshot()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Refreshes the snapshot of every item whose book version changed, and the total.
+     * Items whose book is not in the given map are left untouched.
+     *
+     * @param books the current Books of this cart, keyed by Book key.
+     * @return true when any snapshot changed.
+     */
+    public boolean reprice(Map<Key<Book>, Book> books) {
+        boolean changed = false;
+        for (CartItem item : items) {
+            Book book = books.get(item.getBookKey());
+            if (book != null && !item.isSnapshotOf(book)) {
+                item.updateSnapshot(book);
+                changed = true;
+            }
+        }
+        recomputeTotal();
+        return changed;
+    }
+
+    private void recomputeTotal() {
+        long sum = 0;
+        for (CartItem item : items) {
+            sum += item.getSubtotalMinor();
+        }
+        this.totalMinor = sum;
+    }
+
+    /**
+     * Returns the item of the given book, or null when the book is not in this cart.
+     */
+    private CartItem getItem(long bookId) {
+        if (positions == null) {
+            positions = new HashMap<>();
+            for (int i = 0; i < items.size(); i++) {
+                positions.put(items.get(i).getBookId(), i);
+            }
+        }
+        Integer position = positions.get(bookId);
+        return position == null ? null : items.get(position);
+    }
+
+    /**
+     * Migrates carts saved with the old list of websafe Book keys into items.
+     * The old property is dropped the next time the cart is saved.
+     *
+     * @param bookKeys the websafe Book keys stored by the old version of Cart.
+     */
+    @SuppressWarnings("unused")
+    private void importBookKeys(@AlsoLoad("bookKeys") List<String> bookKeys) {
+        if (bookKeys != null) {
+            for (String bookKey : bookKeys) {
+                addBookKey(Key.<Book>create(bookKey));
+            }
+        }
+    }
+
+    /**
+     * Converts the total of the carts saved before the minor units.
+     *
+     * @param total the total stored as a double by the old version of Cart.
+     */
+    @SuppressWarnings("unused")
+    private void importTotal(@AlsoLoad("total") Double total) {
+        if (total != null) {
+            this.totalMinor = Money.fromDouble(total);
+            this.legacyTotal = true;
+        }
+    }
+
+    /**
+     * Recomputes the converted total from the items, so that it holds no drift of the
+     * double additions. Items without a snapshot have no price yet, so then the converted
+     * total is kept until the next reprice.
+     */
+    @OnLoad
+    @SuppressWarnings("unused")
+    private void recomputeLegacyTotal() {
+        if (legacyTotal && !isMissingSnapshots()) {
+            recomputeTotal();
+        }
+        legacyTotal = false;
     }
-	    
-	public void addToBookKeys(String bookKey) {
-		bookKeys.add(bookKey);
-	}
-	
-	public void removeBookFromCart(String bookKey) {
-		bookKeys.remove(bookKey);
-	}
 
 	public Date getDate() {
 		return date;
@@ -194,7 +542,7 @@ public class Cart {
     @Override
     public String toString() {
         StringBuilder stringBuilder = new StringBuilder("Id: " + id + "\n")
-                .append("Total: ").append(total).append("\n");
+                .append("Total: ").append(Money.format(totalMinor)).append("\n");
         stringBuilder.append("Date: ").append(date).append("\n");;
         stringBuilder.append("Ship To :").append(address).append("\n");;
 
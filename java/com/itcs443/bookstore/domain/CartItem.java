@@ -0,0 +1,146 @@
+package com.itcs443.bookstore.domain;
+
+import com.google.api.server.spi.config.AnnotationBoolean;
+import com.google.api.server.spi.config.ApiResourceProperty;
+import com.googlecode.objectify.Key;
+
+/**
+ * CartItem class stores one line of a cart: a book and how many copies of it.
+ * It is embedded in the Cart entity and keeps a snapshot of the book taken
+ * when the book was added, so a cart can be rendered without loading any Book.
+ */
+public class CartItem {
+
+    /**
+     * The id of the Book in this line.
+     */
+    private long bookId;
+
+    private int quantity;
+
+    /**
+     * Snapshot of the Book at the time it was added or last repriced.
+     */
+    private String name;
+    private String author;
+    private long unitPriceMinor;
+
+    /**
+     * The version of the Book the snapshot was taken from.
+     */
+    private long bookVersion;
+
+    /**
+     * Just making the default constructor private.
+     */
+    private CartItem() {}
+
+    public CartItem(final long bookId) {
+        this.bookId = bookId;
+        this.quantity = 0;
+    }
+
+    /**
+     * Returns a copy of this line, with its quantity and snapshot.
+     */
+    CartItem copy() {
+        CartItem copy = new CartItem(bookId);
+        copy.quantity = quantity;
+        copy.name = name;
+        copy.author = author;
+        copy.unitPriceMinor = unitPriceMinor;
+        copy.bookVersion = bookVersion;
+        return copy;
+    }
+
+    public long getBookId() {
+        return bookId;
+    }
+
+    // Get a String version of the Book key
+    public String getWebsafeBookKey() {
+        return getBookKey().getString();
+    }
+
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public Key<Book> getBookKey() {
+        return Key.create(Book.class, bookId);
+    }
+
+    public int getQuantity() {
+        return quantity;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getAuthor() {
+        return author;
+    }
+
+    public long getUnitPriceMinor() {
+        return unitPriceMinor;
+    }
+
+    public long getSubtotalMinor() {
+        return unitPriceMinor * quantity;
+    }
+
+    /**
+     * Returns the unit price formatted in major units, for display.
+     */
+    public String getUnitPrice() {
+        return Money.format(unitPriceMinor);
+    }
+
+    /**
+     * Returns the subtotal formatted in major units, for display.
+     */
+    public String getSubtotal() {
+        return Money.format(getSubtotalMinor());
+    }
+
+    /**
+     * Returns true when this line has a snapshot of the current version of the book.
+     *
+     * @param book the Book of this line.
+     * @return true when the snapshot is up to date.
+     */
+    public boolean isSnapshotOf(Book book) {
+        return name != null && bookVersion == book.getVersion();
+    }
+
+    /**
+     * Returns true when this line has no snapshot yet, e.g. it was migrated from an old cart.
+     *
+     * @return true when this line has no snapshot.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public boolean isMissingSnapshot() {
+        return name == null;
+    }
+
+    void updateSnapshot(Book book) {
+        this.name = book.getName();
+        this.author = book.getAuthor();
+        this.unitPriceMinor = book.getPriceMinor();
+        this.bookVersion = book.getVersion();
+    }
+
+    void updateSnapshot(CartOperation operation) {
+        this.name = operation.getName();
+        this.author = operation.getAuthor();
+        this.unitPriceMinor = operation.getUnitPriceMinor();
+        this.bookVersion = operation.getBookVersion();
+    }
+
+    void increment() {
+        quantity++;
+    }
+
+    void decrement() {
+        quantity--;
+    }
+
+}
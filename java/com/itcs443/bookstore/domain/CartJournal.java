@@ -0,0 +1,47 @@
+package com.itcs443.bookstore.domain;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+/**
+ * CartJournal is the parent of the CartOperation entities of one shard of a user's cart,
+ * so that every shard is its own entity group. It numbers the operations appended to the
+ * shard, and is saved with them in the append transaction.
+ */
+@Entity
+public class CartJournal {
+
+    /**
+     * The userId of the customer and the shard number.
+     */
+    @Id
+    private String id;
+
+    /**
+     * The sequence number of the next operation appended to this shard.
+     */
+    private long nextSequence = 1;
+
+    /**
+     * Just making the default constructor private.
+     */
+    private CartJournal() {}
+
+    public CartJournal(Key<CartJournal> key) {
+        this.id = key.getName();
+    }
+
+    public static Key<CartJournal> createKey(String userId, int shard) {
+        return Key.create(CartJournal.class, userId + "#" + shard);
+    }
+
+    /**
+     * Returns the sequence number of a new operation and moves past it.
+     *
+     * @return the sequence number of the operation, starting at 1.
+     */
+    public long nextSequence() {
+        return nextSequence++;
+    }
+}
@@ -0,0 +1,125 @@
+package com.itcs443.bookstore.domain;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Parent;
+
+import java.util.Date;
+
+/**
+ * CartOperation class stores one add or remove of a book requested by a client.
+ * Operations are appended to a CartJournal shard and later applied to the Cart, then
+ * deleted, so that cart mutations do not contend on the Profile entity group.
+ */
+@Entity
+public class CartOperation {
+
+    /**
+     * The client request id. Appending the same request twice keeps one operation.
+     */
+    @Id
+    private String requestId;
+
+    /**
+     * Holds the CartJournal shard key as the parent.
+     */
+    @Parent
+    private Key<CartJournal> journalKey;
+
+    /**
+     * The position of the operation in its CartJournal shard.
+     */
+    private long sequence;
+
+    private long bookId;
+
+    /**
+     * 1 to add a copy of the book, -1 to remove one.
+     */
+    private int delta;
+
+    /**
+     * Snapshot of the Book at the time it was added.
+     */
+    private String name;
+    private String author;
+    private long unitPriceMinor;
+    private long bookVersion;
+
+    private Date createdAt;
+
+    /**
+     * Just making the default constructor private.
+     */
+    private CartOperation() {}
+
+    private CartOperation(Key<CartJournal> journalKey, String requestId, long bookId, int delta) {
+        this.journalKey = journalKey;
+        this.requestId = requestId;
+        this.bookId = bookId;
+        this.delta = delta;
+        this.createdAt = new Date();
+    }
+
+    public static CartOperation add(Key<CartJournal> journalKey, String requestId, Book book) {
+        CartOperation operation = new CartOperation(journalKey, requestId, book.getId(), 1);
+        operation.name = book.getName();
+        operation.author = book.getAuthor();
+        operation.unitPriceMinor = book.getPriceMinor();
+        operation.bookVersion = book.getVersion();
+        return operation;
+    }
+
+    public static CartOperation remove(Key<CartJournal> journalKey, String requestId, Key<Book> bookKey) {
+        return new CartOperation(journalKey, requestId, bookKey.getId(), -1);
+    }
+
+    public Key<CartOperation> getKey() {
+        return Key.create(journalKey, CartOperation.class, requestId);
+    }
+
+    public String getRequestId() {
+        return requestId;
+    }
+
+    public Key<Book> getBookKey() {
+        return Key.create(Book.class, bookId);
+    }
+
+    public boolean isAdd() {
+        return delta > 0;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getAuthor() {
+        return author;
+    }
+
+    public long getUnitPriceMinor() {
+        return unitPriceMinor;
+    }
+
+    public long getBookVersion() {
+        return bookVersion;
+    }
+
+    public Date getCreatedAt() {
+        return createdAt;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    public Key<CartJournal> getJournalKey() {
+        return journalKey;
+    }
+}
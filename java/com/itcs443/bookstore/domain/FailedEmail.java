@@ -0,0 +1,63 @@
+package com.itcs443.bookstore.domain;
+
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * FailedEmail class stores a confirmation e-mail that could not be sent within the retry
+ * budget, so that it can be inspected and sent again by hand.
+ */
+@Entity
+public class FailedEmail {
+
+    @Id
+    private Long id;
+
+    /**
+     * The parameters of the e-mail, as they were enqueued.
+     */
+    private Map<String, String> params;
+
+    private int attempts;
+
+    private String lastError;
+
+    @Index
+    private Date failedAt;
+
+    /**
+     * Just making the default constructor private.
+     */
+    private FailedEmail() {}
+
+    public FailedEmail(Map<String, String> params, int attempts, String lastError) {
+        this.params = params;
+        this.attempts = attempts;
+        this.lastError = lastError;
+        this.failedAt = new Date();
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public Map<String, String> getParams() {
+        return params;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
+    public Date getFailedAt() {
+        return failedAt;
+    }
+}
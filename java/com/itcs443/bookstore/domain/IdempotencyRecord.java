@@ -0,0 +1,84 @@
+package com.itcs443.bookstore.domain;
+
+import com.google.common.base.Preconditions;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+import com.googlecode.objectify.annotation.Parent;
+
+import java.util.Date;
+
+/**
+ * IdempotencyRecord class stores the result of a request made with a client request id, so
+ * that a retry of the request returns it instead of running the request again. It also
+ * keeps a fingerprint of the arguments of the request, so that a request id reused with
+ * other arguments is told apart from a retry.
+ *
+ * The record is a child of the Profile of the user, so checkout saves it in its own
+ * transaction without enlisting another entity group.
+ */
+@Entity
+public class IdempotencyRecord {
+
+    /**
+     * The name of the API method and the request id.
+     */
+    @Id
+    private String id;
+
+    @Parent
+    private Key<Profile> profileKey;
+
+    /**
+     * The fingerprint of the arguments of the request.
+     */
+    private String fingerprint;
+
+    /**
+     * The result of the request, encoded by the API method.
+     */
+    private String result;
+
+    @Index
+    private Date expiresAt;
+
+    /**
+     * Just making the default constructor private.
+     */
+    private IdempotencyRecord() {}
+
+    public IdempotencyRecord(Key<Profile> profileKey, String method, String requestId,
+            String fingerprint, String result, Date expiresAt) {
+        this.id = createId(method, requestId);
+        this.profileKey = profileKey;
+        this.fingerprint = Preconditions.checkNotNull(fingerprint, "fingerprint");
+        this.result = result;
+        this.expiresAt = expiresAt;
+    }
+
+    public static Key<IdempotencyRecord> createKey(Key<Profile> profileKey, String method,
+            String requestId) {
+        return Key.create(profileKey, IdempotencyRecord.class, createId(method, requestId));
+    }
+
+    private static String createId(String method, String requestId) {
+        return method + ":" + requestId;
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public String getResult() {
+        return result;
+    }
+
+    public Date getExpiresAt() {
+        return expiresAt;
+    }
+
+    public boolean isExpired() {
+        return expiresAt.getTime() <= System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,86 @@
+package com.itcs443.bookstore.domain;
+
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+import java.util.Date;
+
+/**
+ * ImportCheckpoint class stores how far a catalog import has got, so that an import
+ * that was stopped can be resumed by posting the same file again.
+ */
+@Entity
+public class ImportCheckpoint {
+
+    /**
+     * The id the client chose for the import.
+     */
+    @Id
+    private String importId;
+
+    /**
+     * The number of data rows that were saved or rejected. Rows before it are skipped.
+     */
+    private long rowsDone;
+
+    private long booksCreated;
+
+    private long rowsRejected;
+
+    private boolean finished;
+
+    private Date updatedAt;
+
+    /**
+     * Just making the default constructor private.
+     */
+    private ImportCheckpoint() {}
+
+    public ImportCheckpoint(String importId) {
+        this.importId = importId;
+        this.updatedAt = new Date();
+    }
+
+    public String getImportId() {
+        return importId;
+    }
+
+    public long getRowsDone() {
+        return rowsDone;
+    }
+
+    public long getBooksCreated() {
+        return booksCreated;
+    }
+
+    public long getRowsRejected() {
+        return rowsRejected;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    public Date getUpdatedAt() {
+        return updatedAt;
+    }
+
+    /**
+     * Moves the checkpoint past a batch of rows.
+     *
+     * @param rowsDone the number of rows done, counted from the start of the file.
+     * @param booksCreated the books created by the batch.
+     * @param rowsRejected the rows of the batch that failed validation.
+     */
+    public void advance(long rowsDone, int booksCreated, int rowsRejected) {
+        this.rowsDone = rowsDone;
+        this.booksCreated += booksCreated;
+        this.rowsRejected += rowsRejected;
+        this.updatedAt = new Date();
+    }
+
+    public void finish() {
+        this.finished = true;
+        this.updatedAt = new Date();
+    }
+}
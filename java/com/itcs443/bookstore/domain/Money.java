@@ -0,0 +1,71 @@
+package com.itcs443.bookstore.domain;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Amounts of money as a primitive long of minor units, e.g. 1250 satang for 12.50 baht.
+ *
+ * Prices and totals are stored and added as minor units, so a total is exactly the sum of
+ * its lines. Decimal strings are only parsed and formatted at the edges: forms, filters,
+ * e-mails and exports.
+ */
+public final class Money {
+
+    /**
+     * The number of decimal places of the minor unit.
+     */
+    public static final int SCALE = 2;
+
+    private Money() {}
+
+    /**
+     * Parses a decimal amount, e.g. "12.5", into minor units.
+     *
+     * @param amount the amount in major units.
+     * @return the amount in minor units.
+     * @throws IllegalArgumentException when the amount is not a number, has more decimal
+     *         places than the minor unit, or does not fit.
+     */
+    public static long parse(String amount) {
+        try {
+            return new BigDecimal(amount.trim()).setScale(SCALE, RoundingMode.UNNECESSARY)
+                    .unscaledValue().longValueExact();
+        } catch (ArithmeticException | NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        }
+    }
+
+    /**
+     * Converts an amount stored as a double before the minor units, rounding half up to
+     * the nearest minor unit.
+     *
+     * @param amount the amount in major units.
+     * @return the amount in minor units.
+     */
+    public static long fromDouble(double amount) {
+        // valueOf goes through Double.toString, so 0.1 becomes 10 and not 10.000000000000000555.
+        return BigDecimal.valueOf(amount).setScale(SCALE, RoundingMode.HALF_UP)
+                .unscaledValue().longValue();
+    }
+
+    /**
+     * Returns the amount in major units, e.g. for a JSON number.
+     *
+     * @param minorUnits the amount in minor units.
+     * @return the exact decimal amount.
+     */
+    public static BigDecimal toDecimal(long minorUnits) {
+        return BigDecimal.valueOf(minorUnits, SCALE);
+    }
+
+    /**
+     * Formats the amount with exactly two decimal places, e.g. "12.50".
+     *
+     * @param minorUnits the amount in minor units.
+     * @return the formatted amount.
+     */
+    public static String format(long minorUnits) {
+        return toDecimal(minorUnits).toPlainString();
+    }
+}
@@ -0,0 +1,39 @@
+package com.itcs443.bookstore.domain;
+
+/**
+ * The stage a checked-out Cart has reached in the checkout pipeline.
+ */
+public enum OrderStatus {
+    /**
+     * Taken by checkout, waiting for validation.
+     */
+    RECEIVED,
+    /**
+     * The cart and the checkout form were checked, waiting for the reprice.
+     */
+    VALIDATED,
+    /**
+     * Repriced with the current books, waiting for the payment.
+     */
+    PRICED,
+    /**
+     * Paid; counted in the sales counters and confirmed by e-mail.
+     */
+    CONFIRMED,
+    /**
+     * Not valid, e.g. the cart was empty, a book no longer exists or is out of stock, or
+     * the stock reservation expired before the payment.
+     */
+    REJECTED,
+    /**
+     * The payment was declined.
+     */
+    PAYMENT_DECLINED;
+
+    /**
+     * Returns true when the order will not move on.
+     */
+    public boolean isFinal() {
+        return this == CONFIRMED || this == REJECTED || this == PAYMENT_DECLINED;
+    }
+}
@@ -0,0 +1,71 @@
+package com.itcs443.bookstore.domain;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.AlsoLoad;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+/**
+ * SalesCounterShard class stores one shard of a sales counter, e.g. the revenue of a day.
+ * A counter is the sum of its shards. Each shard is its own entity group, so concurrent
+ * checkouts rarely update the same one.
+ */
+@Entity
+public class SalesCounterShard {
+
+    /**
+     * The epoch, the counter name and the shard number.
+     */
+    @Id
+    private String id;
+
+    private long units;
+
+    /**
+     * The revenue in minor units, see Money.
+     */
+    private long revenueMinor;
+
+    private long orders;
+
+    /**
+     * Just making the default constructor private.
+     */
+    private SalesCounterShard() {}
+
+    public SalesCounterShard(Key<SalesCounterShard> key) {
+        this.id = key.getName();
+    }
+
+    public static Key<SalesCounterShard> createKey(long epoch, String counterName, int shard) {
+        return Key.create(SalesCounterShard.class, epoch + "/" + counterName + "#" + shard);
+    }
+
+    public long getUnits() {
+        return units;
+    }
+
+    public long getRevenueMinor() {
+        return revenueMinor;
+    }
+
+    public long getOrders() {
+        return orders;
+    }
+
+    public void add(long units, long revenueMinor, long orders) {
+        this.units += units;
+        this.revenueMinor += revenueMinor;
+        this.orders += orders;
+    }
+
+    /**
+     * Converts the revenue of the shards saved before the minor units.
+     */
+    @SuppressWarnings("unused")
+    private void importRevenue(@AlsoLoad("revenue") Double revenue) {
+        if (revenue != null) {
+            this.revenueMinor = Money.fromDouble(revenue);
+        }
+    }
+}
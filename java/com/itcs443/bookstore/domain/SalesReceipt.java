@@ -0,0 +1,42 @@
+package com.itcs443.bookstore.domain;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+import java.util.Date;
+
+/**
+ * SalesReceipt class records that a part of a checked-out cart was added to the sales
+ * counters of an epoch. It is saved in the same transaction as the counters, so that a
+ * retried task never counts a cart twice.
+ */
+@Entity
+public class SalesReceipt {
+
+    /**
+     * The epoch, the websafe key of the cart and the part number.
+     */
+    @Id
+    private String id;
+
+    private Date appliedAt;
+
+    /**
+     * Just making the default constructor private.
+     */
+    private SalesReceipt() {}
+
+    public SalesReceipt(Key<SalesReceipt> key) {
+        this.id = key.getName();
+        this.appliedAt = new Date();
+    }
+
+    public static Key<SalesReceipt> createKey(long epoch, String websafeCartKey, int part) {
+        return Key.create(SalesReceipt.class, epoch + "/" + websafeCartKey + "#" + part);
+    }
+
+    public Date getAppliedAt() {
+        return appliedAt;
+    }
+}
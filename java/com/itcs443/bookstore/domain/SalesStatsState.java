@@ -0,0 +1,82 @@
+package com.itcs443.bookstore.domain;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+/**
+ * SalesStatsState class stores which epoch of the sales counters is served, and which one
+ * is being rebuilt from the cart history. There is a single entity of this class.
+ */
+@Entity
+public class SalesStatsState {
+
+    private static final long ID = 1;
+
+    @Id
+    private long id;
+
+    /**
+     * The epoch read by getSalesStats.
+     */
+    private long epoch;
+
+    /**
+     * The epoch being rebuilt, or null when no rebuild is running.
+     */
+    private Long buildingEpoch;
+
+    /**
+     * The last epoch handed out, so that a new rebuild never reuses old counters.
+     */
+    private long lastEpoch;
+
+    /**
+     * Just making the default constructor private.
+     */
+    private SalesStatsState() {}
+
+    public static Key<SalesStatsState> createKey() {
+        return Key.create(SalesStatsState.class, ID);
+    }
+
+    /**
+     * Returns the initial state, serving epoch 0.
+     */
+    public static SalesStatsState createInitial() {
+        SalesStatsState state = new SalesStatsState();
+        state.id = ID;
+        return state;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public Long getBuildingEpoch() {
+        return buildingEpoch;
+    }
+
+    public boolean isBuilding() {
+        return buildingEpoch != null;
+    }
+
+    /**
+     * Starts a rebuild into a new epoch.
+     *
+     * @return the new epoch.
+     */
+    public long startBuilding() {
+        lastEpoch = Math.max(lastEpoch, epoch) + 1;
+        buildingEpoch = lastEpoch;
+        return lastEpoch;
+    }
+
+    /**
+     * Serves the epoch that was rebuilt.
+     */
+    public void finishBuilding() {
+        epoch = buildingEpoch;
+        buildingEpoch = null;
+    }
+}
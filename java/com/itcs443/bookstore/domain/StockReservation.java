@@ -0,0 +1,168 @@
+package com.itcs443.bookstore.domain;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+import com.googlecode.objectify.annotation.Parent;
+import com.googlecode.objectify.condition.IfNotNull;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * StockReservation class stores the copies taken from the StockShards for an order, until
+ * the order is paid or the reservation is released.
+ *
+ * It is a child of the order, so the payment stage commits it in the transaction that
+ * confirms the order. Each copy taken from or returned to a shard is recorded in the same
+ * transaction as the shard, so a stage that is retried never takes or returns it twice.
+ */
+@Entity
+public class StockReservation {
+
+    /**
+     * An order has at most one reservation.
+     */
+    private static final long ID = 1;
+
+    public enum Status {
+        HELD,
+        COMMITTED,
+        RELEASED
+    }
+
+    @Parent
+    private Key<Cart> orderKey;
+
+    @Id
+    private long id;
+
+    private Status status;
+
+    /**
+     * The quantity taken from each StockShard, by the name of its key.
+     */
+    private Map<String, Long> shardQuantities = new HashMap<>();
+
+    /**
+     * The ids of the books whose whole quantity is taken.
+     */
+    private Set<Long> reservedBookIds = new HashSet<>();
+
+    /**
+     * Only indexed while there is stock to return, so the sweeper finds the reservations
+     * that are expired or halfway released.
+     */
+    @Index(IfNotNull.class)
+    private Date expiresAt;
+
+    /**
+     * Just making the default constructor private.
+     */
+    private StockReservation() {}
+
+    public StockReservation(Key<Cart> orderKey, Date expiresAt) {
+        this.orderKey = orderKey;
+        this.id = ID;
+        this.status = Status.HELD;
+        this.expiresAt = expiresAt;
+    }
+
+    public static Key<StockReservation> createKey(Key<Cart> orderKey) {
+        return Key.create(orderKey, StockReservation.class, ID);
+    }
+
+    public Key<Cart> getOrderKey() {
+        return orderKey;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public boolean isHeld() {
+        return status == Status.HELD;
+    }
+
+    public boolean isReserved(long bookId) {
+        return reservedBookIds.contains(bookId);
+    }
+
+    public void markReserved(long bookId) {
+        reservedBookIds.add(bookId);
+    }
+
+    /**
+     * Records copies taken from a shard.
+     */
+    public void addTaken(Key<StockShard> shardKey, long quantity) {
+        Long taken = shardQuantities.get(shardKey.getName());
+        shardQuantities.put(shardKey.getName(), (taken == null ? 0 : taken) + quantity);
+    }
+
+    /**
+     * Returns the keys of the shards copies were taken from, of one book or of all books.
+     *
+     * @param bookId the id of the Book, or null for all books.
+     * @return the keys of the shards.
+     */
+    public Set<Key<StockShard>> getShardKeys(Long bookId) {
+        Set<Key<StockShard>> keys = new HashSet<>();
+        for (String name : shardQuantities.keySet()) {
+            if (bookId == null || name.startsWith(StockShard.getPrefix(bookId))) {
+                keys.add(Key.create(StockShard.class, name));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Forgets the copies taken from a shard, once they are returned to it.
+     *
+     * @param shardKey the key of the shard.
+     * @return the quantity taken from the shard, or 0 when it was already returned.
+     */
+    public long removeShard(Key<StockShard> shardKey) {
+        Long taken = shardQuantities.remove(shardKey.getName());
+        if (shardQuantities.isEmpty() && status != Status.HELD) {
+            expiresAt = null;
+        }
+        return taken == null ? 0 : taken;
+    }
+
+    /**
+     * Postpones the expiry of the copies held, while the order is being paid.
+     *
+     * @param expiresAt the new time of expiry.
+     */
+    public void extend(Date expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * Keeps the copies taken, as the order was paid.
+     */
+    public void commit() {
+        this.status = Status.COMMITTED;
+        this.shardQuantities.clear();
+        this.expiresAt = null;
+    }
+
+    /**
+     * Marks the copies taken to be returned to their shards.
+     */
+    public void release() {
+        this.status = Status.RELEASED;
+        if (shardQuantities.isEmpty()) {
+            expiresAt = null;
+        }
+    }
+
+    public Date getExpiresAt() {
+        return expiresAt;
+    }
+}
@@ -0,0 +1,65 @@
+package com.itcs443.bookstore.domain;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+/**
+ * StockShard class stores one shard of the stock of a book. The stock is the sum of its
+ * shards. Each shard is its own entity group, so concurrent reservations of a hot title
+ * rarely update the same one.
+ */
+@Entity
+public class StockShard {
+
+    /**
+     * The id of the Book and the shard number.
+     */
+    @Id
+    private String id;
+
+    /**
+     * The copies neither sold nor reserved.
+     */
+    private long available;
+
+    /**
+     * Just making the default constructor private.
+     */
+    private StockShard() {}
+
+    public StockShard(Key<StockShard> key) {
+        this.id = key.getName();
+    }
+
+    public static Key<StockShard> createKey(long bookId, int shard) {
+        return Key.create(StockShard.class, getPrefix(bookId) + shard);
+    }
+
+    /**
+     * Returns the prefix of the key names of the shards of a book.
+     */
+    public static String getPrefix(long bookId) {
+        return bookId + "#";
+    }
+
+    public long getAvailable() {
+        return available;
+    }
+
+    public void add(long quantity) {
+        this.available += quantity;
+    }
+
+    /**
+     * Takes up to the given quantity from the shard.
+     *
+     * @param quantity the quantity wanted.
+     * @return the quantity taken, less than wanted when the shard runs out.
+     */
+    public long take(long quantity) {
+        long taken = Math.min(quantity, available);
+        this.available -= taken;
+        return taken;
+    }
+}
@@ -0,0 +1,24 @@
+package com.itcs443.bookstore.form;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+/**
+ * A simple Java object (POJO) representing a batch of Book forms sent from the client.
+ */
+public class BookBatchForm {
+
+    private List<BookForm> books;
+
+    private BookBatchForm() {}
+
+    public BookBatchForm(List<BookForm> books) {
+        this.books = books == null ? null : ImmutableList.copyOf(books);
+    }
+
+    public List<BookForm> getBooks() {
+        return books == null ? ImmutableList.<BookForm>of() : books;
+    }
+
+}
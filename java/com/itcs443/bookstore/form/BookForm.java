@@ -1,6 +1,7 @@
 package com.itcs443.bookstore.form;
 
 import com.google.common.collect.ImmutableList;
+import com.itcs443.bookstore.domain.Money;
 
 import java.util.Date;
 import java.util.List;
@@ -14,19 +15,29 @@ public class BookForm {
     private String description;
     private List<String> category;
     private String author;
-    private double price;
+
+    /**
+     * The price in minor units, see Money.
+     */
+    private long priceMinor;
+
+    /**
+     * The price in major units, e.g. "12.50", as typed in the web client. Used instead of
+     * priceMinor when set.
+     */
+    private String price;
 
 
     private BookForm() {}
 
 
     public BookForm(String name, String description, List<String> category, String author,
-                          double price) {
+                          long priceMinor) {
         this.name = name;
         this.description = description;
         this.category = category == null ? null : ImmutableList.copyOf(category);
         this.author = author;
-        this.price = price;
+        this.priceMinor = priceMinor;
 
     }
 
@@ -46,8 +57,28 @@ public class BookForm {
         return author;
     }
 
-    public double getPrice() {
-        return price;
+    /**
+     * Returns the price in minor units.
+     *
+     * @return the price in minor units.
+     * @throws IllegalArgumentException when the price in major units is not a valid amount.
+     */
+    public long getPriceMinor() {
+        return price == null ? priceMinor : Money.parse(price);
+    }
+
+    /**
+     * Checks the rules a form must follow to create a Book.
+     *
+     * @throws IllegalArgumentException when the form is not valid.
+     */
+    public void checkValid() {
+        if (name == null || name.trim().isEmpty()) {
+            throw new IllegalArgumentException("The name is required");
+        }
+        if (getPriceMinor() < 0) {
+            throw new IllegalArgumentException("The price must not be negative");
+        }
     }
 
 }
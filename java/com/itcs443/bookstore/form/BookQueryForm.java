@@ -7,6 +7,8 @@ import com.google.api.server.spi.config.ApiResourceProperty;
 import com.google.common.collect.ImmutableList;
 import com.googlecode.objectify.cmd.Query;
 import com.itcs443.bookstore.domain.Book;
+import com.itcs443.bookstore.domain.Money;
+import com.itcs443.bookstore.service.BookSearchIndex;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -23,23 +25,34 @@ public class BookQueryForm {
      * Enum representing a field type.
      */
     public static enum FieldType {
-        STRING, INTEGER
+        STRING, INTEGER,
+        /**
+         * An amount in major units, e.g. "12.50", compared in minor units.
+         */
+        MONEY
     }
 
     /**
      * Enum representing a field.
+     * Text fields are matched by word prefix through the book search index.
      */
     public static enum Field {
-        NAME("name", FieldType.STRING),
-        AUTHOR("author", FieldType.STRING);
+        NAME("name", FieldType.STRING, true),
+        AUTHOR("author", FieldType.STRING, true),
+        KEYWORD("keyword", FieldType.STRING, true),
+        CATEGORY("category", FieldType.STRING, false),
+        PRICE("priceMinor", FieldType.MONEY, false);
 
         private String fieldName;
 
         private FieldType fieldType;
 
-        private Field(String fieldName, FieldType fieldType) {
+        private boolean text;
+
+        private Field(String fieldName, FieldType fieldType, boolean text) {
             this.fieldName = fieldName;
             this.fieldType = fieldType;
+            this.text = text;
         }
 
         private String getFieldName() {
@@ -47,12 +60,35 @@ public class BookQueryForm {
         }
     }
 
+    /**
+     * Enum representing an operator.
+     * PREFIX is the default operator of string fields other than CATEGORY, EQ of the others.
+     */
+    public static enum Operator {
+        EQ("=="),
+        LT("<"),
+        GT(">"),
+        LTEQ("<="),
+        GTEQ(">="),
+        PREFIX(null);
+
+        private String queryOperator;
+
+        private Operator(String queryOperator) {
+            this.queryOperator = queryOperator;
+        }
+
+        private String getQueryOperator() {
+            return this.queryOperator;
+        }
+    }
 
     /**
      * A class representing a single filter for the query.
      */
     public static class Filter {
         private Field field;
+        private Operator operator;
         private String value;
 
         public Filter () {}
@@ -62,13 +98,78 @@ public class BookQueryForm {
             this.value = value;
         }
 
+        public Filter(Field field, Operator operator, String value) {
+            this.field = field;
+            this.operator = operator;
+            this.value = value;
+        }
+
         public Field getField() {
             return field;
         }
 
+        /**
+         * Returns the operator of this filter, or the default operator of its field.
+         *
+         * @return the operator of this filter.
+         */
+        public Operator getOperator() {
+            if (operator != null) {
+                return operator;
+            }
+            return field.fieldType == FieldType.STRING && field != Field.CATEGORY
+                    ? Operator.PREFIX : Operator.EQ;
+        }
+
         public String getValue() {
             return value;
         }
+
+        /**
+         * Returns the value converted to the type of the field.
+         */
+        private Object getTypedValue() {
+            try {
+                switch (field.fieldType) {
+                    case INTEGER:
+                        return Integer.parseInt(value);
+                    case MONEY:
+                        return Money.parse(value);
+                    default:
+                        return value;
+                }
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(
+                        "Invalid value for " + field.getFieldName() + ": " + value);
+            }
+        }
+
+        /**
+         * Returns true when the given book satisfies this filter.
+         */
+        private boolean matches(Book book) {
+            switch (field) {
+                case CATEGORY:
+                    return book.getCategory() != null && book.getCategory().contains(value);
+                case PRICE:
+                    int comparison = Long.compare(book.getPriceMinor(), (Long) getTypedValue());
+                    switch (getOperator()) {
+                        case EQ:
+                            return comparison == 0;
+                        case LT:
+                            return comparison < 0;
+                        case GT:
+                            return comparison > 0;
+                        case LTEQ:
+                            return comparison <= 0;
+                        default:
+                            return comparison >= 0;
+                    }
+                default:
+                    // The text fields are only matched through the search index.
+                    return true;
+            }
+        }
     }
 
     /**
@@ -77,10 +178,10 @@ public class BookQueryForm {
     private List<Filter> filters = new ArrayList<>(0);
 
     /**
-     * Holds the first inequalityFilter for checking the feasibility of the whole query.
+     * Holds the filters that are not pushed to the datastore, applied by matches().
      */
     @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
-    private Filter inequalityFilter;
+    private List<Filter> residualFilters;
 
     public BookQueryForm() {}
 
@@ -88,11 +189,43 @@ public class BookQueryForm {
      * Checks the feasibility of the whole query.
      */
     private void checkFilters() {
-    	if(this.filters.size() > 1){
-    		throw new IllegalArgumentException(
-                    "Now allow only one filter at a time");
-    	}
+        for (Filter filter : this.filters) {
+            Operator operator = filter.getOperator();
+            if (filter.field == Field.PRICE && operator == Operator.PREFIX) {
+                throw new IllegalArgumentException("PREFIX is not allowed on price");
+            }
+            if (filter.field != Field.PRICE && operator != Operator.PREFIX
+                    && !(filter.field == Field.CATEGORY && operator == Operator.EQ)) {
+                throw new IllegalArgumentException(
+                        operator + " is not allowed on " + filter.field.getFieldName());
+            }
+            // Checks the value.
+            filter.getTypedValue();
+        }
+    }
 
+    /**
+     * Plans the query: picks the filters pushed to the datastore and keeps the others as
+     * residual filters applied in memory.
+     *
+     * Without text filters, every filter is pushed: the CATEGORY equalities combine freely
+     * and the PRICE filters are all on priceMinor, the one property allowed an inequality.
+     * When the search index serves the text filters, nothing is pushed and the CATEGORY and
+     * PRICE filters are residual.
+     */
+    private void plan() {
+        if (residualFilters != null) {
+            return;
+        }
+        checkFilters();
+        residualFilters = new ArrayList<>(0);
+        if (usesSearchIndex()) {
+            for (Filter filter : this.filters) {
+                if (!filter.field.text) {
+                    residualFilters.add(filter);
+                }
+            }
+        }
     }
 
     /**
@@ -113,28 +246,84 @@ public class BookQueryForm {
     public BookQueryForm filter(Filter filter) {
 
         filters.add(filter);
+        residualFilters = null;
         return this;
     }
 
     /**
-     * Returns an Objectify Query object for the specified filters.
+     * Returns true when the query has text filters, which are served by the book search index.
+     *
+     * @return true when the query goes through the search index.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public boolean usesSearchIndex() {
+        for (Filter filter : this.filters) {
+            if (filter.field.text) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the terms for the book search index for the text filters.
+     * Every word of a filter value becomes a prefix term, and all terms must match.
+     * KEYWORD filters match any field.
+     *
+     * @return a List of search terms.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public List<BookSearchIndex.Term> getSearchTerms() {
+        List<BookSearchIndex.Term> terms = new ArrayList<>();
+        for (Filter filter : this.filters) {
+            if (!filter.field.text) {
+                continue;
+            }
+            String field = filter.field == Field.KEYWORD ? null : filter.field.getFieldName();
+            for (String token : BookSearchIndex.tokenize(filter.value)) {
+                terms.add(new BookSearchIndex.Term(field, token));
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * Returns true when the given book satisfies the residual filters of the query,
+     * i.e. the filters that neither the datastore nor the search index applied.
+     *
+     * @param book A Book returned by the datastore or the search index.
+     * @return true when the book matches the residual filters.
+     */
+    public boolean matches(Book book) {
+        plan();
+        for (Filter filter : residualFilters) {
+            if (!filter.matches(book)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns an Objectify Query object for the filters pushed to the datastore.
+     * The caller applies the other filters with matches().
      *
      * @return an Objectify Query.
      */
     @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
     public Query<Book> getQuery() {
-        // First check the feasibility of inequality filters.
-        checkFilters();
+        // First check the feasibility of the filters and plan the query.
+        plan();
         Query<Book> query = ofy().load().type(Book.class);
         
         for (Filter filter : this.filters) {
-            // Applies filters in order.
-            if (filter.field.fieldType == FieldType.STRING) {
-                query = query.filter(filter.field.getFieldName() + " >=", filter.value);
-                query = query.filter(filter.field.getFieldName()  + " <", filter.value + "\ufffd");
-
-                
-            } 
+            if (residualFilters.contains(filter) || filter.field.text) {
+                continue;
+            }
+            // Applies the pushed filters in order.
+            query = query.filter(
+                    filter.field.getFieldName() + " " + filter.getOperator().getQueryOperator(),
+                    filter.getTypedValue());
         }
         LOG.info(query.toString());
         return query;
@@ -0,0 +1,24 @@
+package com.itcs443.bookstore.form;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+/**
+ * A simple Java object (POJO) representing the books to add to a cart in one request.
+ */
+public class CartBatchForm {
+
+    private List<String> websafeBookKeys;
+
+    private CartBatchForm() {}
+
+    public CartBatchForm(List<String> websafeBookKeys) {
+        this.websafeBookKeys = websafeBookKeys == null ? null : ImmutableList.copyOf(websafeBookKeys);
+    }
+
+    public List<String> getWebsafeBookKeys() {
+        return websafeBookKeys == null ? ImmutableList.<String>of() : websafeBookKeys;
+    }
+
+}
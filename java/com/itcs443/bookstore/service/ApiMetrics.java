@@ -0,0 +1,327 @@
+package com.itcs443.bookstore.service;
+
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.memcache.Stats;
+import com.google.common.cache.CacheStats;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-process metrics of the API methods, written in the Prometheus text format.
+ *
+ * ApiMetricsFilter times every call and CountingApiDelegate counts the RPCs it makes; both
+ * only touch a thread-local and a few atomic counters, so the hot path pays no lock.
+ * The metrics are those of the instance that serves the scrape.
+ */
+public class ApiMetrics {
+
+    /**
+     * Upper bounds of the latency buckets, in milliseconds.
+     */
+    private static final long[] LATENCY_BUCKETS_MILLIS =
+            {5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000};
+
+    /**
+     * Upper bounds of the buckets of the number of items returned.
+     */
+    private static final long[] ITEM_BUCKETS = {0, 1, 5, 10, 50, 100, 500, 1000};
+
+    private static final ApiMetrics INSTANCE = new ApiMetrics();
+
+    /**
+     * A histogram with fixed buckets.
+     */
+    private static class Histogram {
+        private final long[] bounds;
+        private final AtomicLongArray counts;
+        private final AtomicLong sum = new AtomicLong();
+
+        private Histogram(long[] bounds) {
+            this.bounds = bounds;
+            this.counts = new AtomicLongArray(bounds.length + 1);
+        }
+
+        private void observe(long value) {
+            int bucket = 0;
+            while (bucket < bounds.length && value > bounds[bucket]) {
+                bucket++;
+            }
+            counts.incrementAndGet(bucket);
+            sum.addAndGet(value);
+        }
+
+        private void write(Writer out, String name, String labels) throws IOException {
+            long cumulative = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                cumulative += counts.get(i);
+                out.write(name + "_bucket{" + labels + ",le=\"" + bounds[i] + "\"} " + cumulative + "\n");
+            }
+            cumulative += counts.get(bounds.length);
+            out.write(name + "_bucket{" + labels + ",le=\"+Inf\"} " + cumulative + "\n");
+            out.write(name + "_sum{" + labels + "} " + sum.get() + "\n");
+            out.write(name + "_count{" + labels + "} " + cumulative + "\n");
+        }
+    }
+
+    /**
+     * The metrics of one API method.
+     */
+    private static class MethodMetrics {
+        private final Histogram latency = new Histogram(LATENCY_BUCKETS_MILLIS);
+        private final Histogram items = new Histogram(ITEM_BUCKETS);
+        private final AtomicLong errors = new AtomicLong();
+        private final ConcurrentMap<String, AtomicLong> rpcs = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * What a single API call did, kept in a thread-local while it runs.
+     */
+    public static class Call {
+        private final String method;
+        private final long startedAt = System.currentTimeMillis();
+        private final Map<String, long[]> rpcs = new TreeMap<>();
+        private int items = -1;
+
+        private Call(String method) {
+            this.method = method;
+        }
+
+        void countRpc(String rpc) {
+            long[] count = rpcs.get(rpc);
+            if (count == null) {
+                rpcs.put(rpc, new long[] {1});
+            } else {
+                count[0]++;
+            }
+        }
+    }
+
+    private final ThreadLocal<Call> currentCall = new ThreadLocal<>();
+
+    private final ConcurrentMap<String, MethodMetrics> methods = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, AtomicLong> rpcs = new ConcurrentHashMap<>();
+
+    private final AtomicLong commitConflicts = new AtomicLong();
+
+    private ApiMetrics() {}
+
+    public static ApiMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Starts timing an API call on the current thread.
+     *
+     * @param method the name of the API method.
+     */
+    public void startCall(String method) {
+        currentCall.set(new Call(method));
+    }
+
+    /**
+     * Records the API call of the current thread.
+     *
+     * @param failed true when the call failed.
+     */
+    public void endCall(boolean failed) {
+        Call call = currentCall.get();
+        if (call == null) {
+            return;
+        }
+        currentCall.remove();
+        MethodMetrics metrics = getMethodMetrics(call.method);
+        metrics.latency.observe(System.currentTimeMillis() - call.startedAt);
+        if (call.items >= 0) {
+            metrics.items.observe(call.items);
+        }
+        if (failed) {
+            metrics.errors.incrementAndGet();
+        }
+        for (Map.Entry<String, long[]> rpc : call.rpcs.entrySet()) {
+            getCounter(metrics.rpcs, rpc.getKey()).addAndGet(rpc.getValue()[0]);
+        }
+    }
+
+    /**
+     * Records the number of items returned by the API call of the current thread.
+     *
+     * @param count the number of items in the response.
+     */
+    public void recordItems(int count) {
+        Call call = currentCall.get();
+        if (call != null) {
+            call.items = count;
+        }
+    }
+
+    /**
+     * Counts an RPC made by the current thread, e.g. "datastore_v3.Get".
+     *
+     * @param rpc the service and method of the RPC.
+     */
+    public void countRpc(String rpc) {
+        getCounter(rpcs, rpc).incrementAndGet();
+        Call call = currentCall.get();
+        if (call != null) {
+            call.countRpc(rpc);
+        }
+    }
+
+    /**
+     * Counts a datastore commit that failed, which Objectify retries.
+     */
+    public void countCommitConflict() {
+        commitConflicts.incrementAndGet();
+    }
+
+    /**
+     * Returns the RPCs made by the calls of an API method so far, by service call.
+     *
+     * @param method the name of the API method.
+     * @return the number of RPCs of each service call, sorted by service call.
+     */
+    public Map<String, Long> getRpcCounts(String method) {
+        Map<String, Long> counts = new TreeMap<>();
+        MethodMetrics metrics = methods.get(method);
+        if (metrics != null) {
+            for (Map.Entry<String, AtomicLong> rpc : metrics.rpcs.entrySet()) {
+                counts.put(rpc.getKey(), rpc.getValue().get());
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Returns the RPCs made by the instance so far, by service call.
+     *
+     * @return the number of RPCs of each service call, sorted by service call.
+     */
+    public Map<String, Long> getRpcCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> rpc : rpcs.entrySet()) {
+            counts.put(rpc.getKey(), rpc.getValue().get());
+        }
+        return counts;
+    }
+
+    public long getCommitConflicts() {
+        return commitConflicts.get();
+    }
+
+    /**
+     * Writes every metric in the Prometheus text format.
+     *
+     * @param out the writer of the response.
+     */
+    public void write(Writer out) throws IOException {
+        Map<String, MethodMetrics> sorted = new TreeMap<>(methods);
+
+        out.write("# HELP bookstore_api_latency_millis Latency of the API methods.\n");
+        out.write("# TYPE bookstore_api_latency_millis histogram\n");
+        for (Map.Entry<String, MethodMetrics> entry : sorted.entrySet()) {
+            entry.getValue().latency.write(out, "bookstore_api_latency_millis",
+                    "method=\"" + entry.getKey() + "\"");
+        }
+
+        out.write("# HELP bookstore_api_response_items Number of items returned by the list methods.\n");
+        out.write("# TYPE bookstore_api_response_items histogram\n");
+        for (Map.Entry<String, MethodMetrics> entry : sorted.entrySet()) {
+            entry.getValue().items.write(out, "bookstore_api_response_items",
+                    "method=\"" + entry.getKey() + "\"");
+        }
+
+        out.write("# HELP bookstore_api_errors_total API calls that failed.\n");
+        out.write("# TYPE bookstore_api_errors_total counter\n");
+        for (Map.Entry<String, MethodMetrics> entry : sorted.entrySet()) {
+            out.write("bookstore_api_errors_total{method=\"" + entry.getKey() + "\"} "
+                    + entry.getValue().errors.get() + "\n");
+        }
+
+        out.write("# HELP bookstore_api_rpcs_total RPCs made by the API methods, by service call.\n");
+        out.write("# TYPE bookstore_api_rpcs_total counter\n");
+        for (Map.Entry<String, MethodMetrics> entry : sorted.entrySet()) {
+            for (Map.Entry<String, AtomicLong> rpc : new TreeMap<>(entry.getValue().rpcs).entrySet()) {
+                out.write("bookstore_api_rpcs_total{method=\"" + entry.getKey() + "\",rpc=\""
+                        + rpc.getKey() + "\"} " + rpc.getValue().get() + "\n");
+            }
+        }
+
+        out.write("# HELP bookstore_rpcs_total RPCs made by the instance, by service call.\n");
+        out.write("# TYPE bookstore_rpcs_total counter\n");
+        for (Map.Entry<String, AtomicLong> rpc : new TreeMap<>(rpcs).entrySet()) {
+            out.write("bookstore_rpcs_total{rpc=\"" + rpc.getKey() + "\"} " + rpc.getValue().get() + "\n");
+        }
+
+        out.write("# HELP bookstore_datastore_commit_conflicts_total Failed commits, retried by Objectify.\n");
+        out.write("# TYPE bookstore_datastore_commit_conflicts_total counter\n");
+        out.write("bookstore_datastore_commit_conflicts_total " + commitConflicts.get() + "\n");
+
+        Stats memcache = MemcacheServiceFactory.getMemcacheService().getStatistics();
+        if (memcache != null) {
+            out.write("# HELP bookstore_memcache_hits_total Memcache hits of the application.\n");
+            out.write("# TYPE bookstore_memcache_hits_total counter\n");
+            out.write("bookstore_memcache_hits_total " + memcache.getHitCount() + "\n");
+            out.write("# HELP bookstore_memcache_misses_total Memcache misses of the application.\n");
+            out.write("# TYPE bookstore_memcache_misses_total counter\n");
+            out.write("bookstore_memcache_misses_total " + memcache.getMissCount() + "\n");
+            out.write("# HELP bookstore_memcache_hit_ratio Memcache hits over lookups.\n");
+            out.write("# TYPE bookstore_memcache_hit_ratio gauge\n");
+            long lookups = memcache.getHitCount() + memcache.getMissCount();
+            out.write("bookstore_memcache_hit_ratio "
+                    + (lookups == 0 ? 0 : (double) memcache.getHitCount() / lookups) + "\n");
+        }
+
+        writeCacheStats(out, "book_repository", BookRepository.get().getStats());
+        writeCacheStats(out, "book_query", BookQueryCache.get().getStats());
+
+        MailDispatcher.Metrics mail = MailDispatcher.get().getMetrics();
+        out.write("# HELP bookstore_mail_total Confirmation e-mails handled, by outcome.\n");
+        out.write("# TYPE bookstore_mail_total counter\n");
+        out.write("bookstore_mail_total{outcome=\"sent\"} " + mail.getSent() + "\n");
+        out.write("bookstore_mail_total{outcome=\"failed\"} " + mail.getFailed() + "\n");
+        out.write("bookstore_mail_total{outcome=\"dead_lettered\"} " + mail.getDeadLettered() + "\n");
+        out.write("# HELP bookstore_mail_send_millis_total Time spent sending e-mails.\n");
+        out.write("# TYPE bookstore_mail_send_millis_total counter\n");
+        out.write("bookstore_mail_send_millis_total " + mail.getSendMillisTotal() + "\n");
+        out.write("# HELP bookstore_mail_queue_depth Pending e-mails at the end of the last run.\n");
+        out.write("# TYPE bookstore_mail_queue_depth gauge\n");
+        out.write("bookstore_mail_queue_depth " + mail.getQueueDepth() + "\n");
+    }
+
+    private static void writeCacheStats(Writer out, String cache, CacheStats stats)
+            throws IOException {
+        String name = "bookstore_local_cache_" + cache;
+        out.write("# TYPE " + name + "_hits_total counter\n");
+        out.write(name + "_hits_total " + stats.hitCount() + "\n");
+        out.write("# TYPE " + name + "_misses_total counter\n");
+        out.write(name + "_misses_total " + stats.missCount() + "\n");
+        out.write("# TYPE " + name + "_evictions_total counter\n");
+        out.write(name + "_evictions_total " + stats.evictionCount() + "\n");
+    }
+
+    private MethodMetrics getMethodMetrics(String method) {
+        MethodMetrics metrics = methods.get(method);
+        if (metrics == null) {
+            methods.putIfAbsent(method, new MethodMetrics());
+            metrics = methods.get(method);
+        }
+        return metrics;
+    }
+
+    private static AtomicLong getCounter(ConcurrentMap<String, AtomicLong> counters, String name) {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            counters.putIfAbsent(name, new AtomicLong());
+            counter = counters.get(name);
+        }
+        return counter;
+    }
+}
@@ -0,0 +1,459 @@
+package com.itcs443.bookstore.service;
+
+import static com.itcs443.bookstore.service.OfyService.factory;
+import static com.itcs443.bookstore.service.OfyService.ofy;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility;
+import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Splitter;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Result;
+import com.itcs443.bookstore.domain.Book;
+import com.itcs443.bookstore.domain.ImportCheckpoint;
+import com.itcs443.bookstore.domain.Money;
+import com.itcs443.bookstore.form.BookForm;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Streams a CSV or JSON lines file of books into the Book kind.
+ *
+ * Rows are read one at a time and checked against the BookForm rules; invalid rows are
+ * counted and reported but do not stop the import. Valid rows are saved in batches with
+ * one id allocation and one asynchronous put each. At most a few puts are in flight: when
+ * the limit is reached, reading waits for the oldest put to finish, so memory stays bounded
+ * whatever the size of the file.
+ *
+ * Batches are completed in the order they were read. Once a batch is saved, the
+ * ImportCheckpoint moves past its rows. The catalog generation is bumped at most every
+ * GENERATION_BUMP_INTERVAL_MILLIS and once at the end of the run, so that the other
+ * instances catch their caches and indexes up a few times per import instead of once per
+ * batch. The books saved since the last bump are added to the local indexes with it.
+ *
+ * An import stopped by the deadline or a failure is resumed by posting the same file with
+ * the same import id: the rows before the checkpoint are skipped. Only the batches in
+ * flight when a failure happened can be saved twice.
+ */
+public class BookImporter {
+
+    private static final Logger LOG = Logger.getLogger(BookImporter.class.getName());
+
+    /**
+     * The number of rows in a batch, the largest number of entities in one put.
+     */
+    public static final int BATCH_SIZE = 500;
+
+    /**
+     * The largest number of puts in flight at once.
+     */
+    public static final int MAX_BATCHES_IN_FLIGHT = 4;
+
+    /**
+     * The largest number of invalid rows described in a result.
+     */
+    private static final int MAX_REPORTED_ERRORS = 100;
+
+    /**
+     * The shortest time between two bumps of the catalog generation during an import.
+     */
+    static final long GENERATION_BUMP_INTERVAL_MILLIS = 30 * 1000L;
+
+    private static final ObjectMapper JSON = new ObjectMapper()
+            .setVisibility(PropertyAccessor.FIELD, Visibility.ANY)
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    /**
+     * The formats of the imported file.
+     */
+    public enum Format {
+        /**
+         * Comma separated values with a header row naming the BookForm fields.
+         * Categories are separated by semicolons.
+         */
+        CSV,
+        /**
+         * One BookForm JSON object per line.
+         */
+        JSONL
+    }
+
+    /**
+     * The outcome of one run of an import.
+     */
+    public static class ImportResult {
+        private final ImportCheckpoint checkpoint;
+        private final int booksCreated;
+        private final long elapsedMillis;
+        private final List<String> errors;
+
+        private ImportResult(ImportCheckpoint checkpoint, int booksCreated, long elapsedMillis,
+                List<String> errors) {
+            this.checkpoint = checkpoint;
+            this.booksCreated = booksCreated;
+            this.elapsedMillis = elapsedMillis;
+            this.errors = errors;
+        }
+
+        public ImportCheckpoint getCheckpoint() {
+            return checkpoint;
+        }
+
+        /**
+         * The books created by this run, not counting the runs before it.
+         */
+        public int getBooksCreated() {
+            return booksCreated;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        public double getBooksPerSecond() {
+            return elapsedMillis == 0 ? 0 : booksCreated * 1000.0 / elapsedMillis;
+        }
+
+        /**
+         * The invalid rows of this run, at most MAX_REPORTED_ERRORS of them.
+         */
+        public List<String> getErrors() {
+            return errors;
+        }
+    }
+
+    /**
+     * A batch of rows whose put may still be in flight.
+     */
+    private static class PendingBatch {
+        private final List<Book> books;
+        private final Result<Map<Key<Book>, Book>> saved;
+        private final long endRow;
+        private final int rowsRejected;
+
+        private PendingBatch(List<Book> books, Result<Map<Key<Book>, Book>> saved, long endRow,
+                int rowsRejected) {
+            this.books = books;
+            this.saved = saved;
+            this.endRow = endRow;
+            this.rowsRejected = rowsRejected;
+        }
+    }
+
+    private final String importId;
+
+    private final Format format;
+
+    private final Deque<PendingBatch> inFlight = new ArrayDeque<>();
+
+    private final List<String> errors = new ArrayList<>();
+
+    /**
+     * The books saved since the catalog generation was last bumped.
+     */
+    private final List<Book> unannounced = new ArrayList<>();
+
+    private long lastBumpAt;
+
+    private ImportCheckpoint checkpoint;
+
+    private int booksCreated;
+
+    public BookImporter(String importId, Format format) {
+        this.importId = importId;
+        this.format = format;
+    }
+
+    /**
+     * Imports the rows of the given file that are after the checkpoint, until the end of
+     * the file or the deadline.
+     *
+     * @param reader the file to import, from its first row.
+     * @param deadlineMillis the time at which no more rows are read.
+     * @return the outcome of this run; the import is done when its checkpoint is finished.
+     * @throws IOException when the file cannot be read, or a CSV file has no header row.
+     */
+    public ImportResult run(Reader reader, long deadlineMillis) throws IOException {
+        long startedAt = System.currentTimeMillis();
+        lastBumpAt = startedAt;
+        checkpoint = ofy().load().key(Key.create(ImportCheckpoint.class, importId)).now();
+        if (checkpoint == null) {
+            checkpoint = new ImportCheckpoint(importId);
+        }
+        if (checkpoint.isFinished()) {
+            return new ImportResult(checkpoint, 0, 0, Collections.<String>emptyList());
+        }
+
+        RowReader rows = format == Format.CSV
+                ? new CsvRowReader(new BufferedReader(reader))
+                : new JsonLinesRowReader(new BufferedReader(reader));
+
+        long row = 0;
+        while (row < checkpoint.getRowsDone() && rows.next()) {
+            row++;
+        }
+
+        List<BookForm> forms = new ArrayList<>(BATCH_SIZE);
+        long batchStartRow = row;
+        int rowsRejected = 0;
+        boolean endOfFile = false;
+        try {
+            while (System.currentTimeMillis() < deadlineMillis) {
+                if (!rows.next()) {
+                    endOfFile = true;
+                    break;
+                }
+                try {
+                    BookForm form = rows.parse();
+                    form.checkValid();
+                    forms.add(form);
+                } catch (IllegalArgumentException e) {
+                    rowsRejected++;
+                    if (errors.size() < MAX_REPORTED_ERRORS) {
+                        errors.add("Row " + (row + 1) + ": " + e.getMessage());
+                    }
+                }
+                row++;
+                if (row - batchStartRow == BATCH_SIZE) {
+                    submit(forms, row, rowsRejected);
+                    forms = new ArrayList<>(BATCH_SIZE);
+                    batchStartRow = row;
+                    rowsRejected = 0;
+                }
+            }
+            if (row > batchStartRow) {
+                submit(forms, row, rowsRejected);
+            }
+        } finally {
+            // Saves the checkpoint of every put that went through, even on a failure.
+            try {
+                while (!inFlight.isEmpty()) {
+                    complete(inFlight.removeFirst());
+                }
+            } finally {
+                announce();
+            }
+        }
+
+        if (endOfFile) {
+            checkpoint.finish();
+            ofy().save().entity(checkpoint).now();
+        }
+        long elapsedMillis = System.currentTimeMillis() - startedAt;
+        ImportResult result = new ImportResult(checkpoint, booksCreated, elapsedMillis, errors);
+        LOG.info(String.format("Import %s: %d books in %d ms (%.1f books/s), %d rows done%s",
+                importId, booksCreated, elapsedMillis, result.getBooksPerSecond(),
+                checkpoint.getRowsDone(), endOfFile ? ", finished" : ""));
+        return result;
+    }
+
+    /**
+     * Starts the put of a batch, first waiting for the oldest one when too many are in flight.
+     */
+    private void submit(List<BookForm> forms, long endRow, int rowsRejected) {
+        if (inFlight.size() >= MAX_BATCHES_IN_FLIGHT) {
+            complete(inFlight.removeFirst());
+        }
+
+        List<Book> books = new ArrayList<>(forms.size());
+        Result<Map<Key<Book>, Book>> saved = null;
+        if (!forms.isEmpty()) {
+            Iterator<Key<Book>> bookKeys =
+                    factory().allocateIds(Book.class, forms.size()).iterator();
+            for (BookForm form : forms) {
+                books.add(new Book(bookKeys.next().getId(), form));
+            }
+            saved = ofy().save().entities(books);
+        }
+        inFlight.addLast(new PendingBatch(books, saved, endRow, rowsRejected));
+    }
+
+    /**
+     * Waits for the put of a batch, then moves the checkpoint past it, and bumps the catalog
+     * generation when it was not bumped lately.
+     */
+    private void complete(PendingBatch batch) {
+        if (batch.saved != null) {
+            batch.saved.now();
+            unannounced.addAll(batch.books);
+        }
+        checkpoint.advance(batch.endRow, batch.books.size(), batch.rowsRejected);
+        ofy().save().entity(checkpoint).now();
+        booksCreated += batch.books.size();
+        // The session cache would otherwise hold every imported book until the request ends.
+        ofy().clear();
+        if (System.currentTimeMillis() - lastBumpAt >= GENERATION_BUMP_INTERVAL_MILLIS) {
+            announce();
+        }
+    }
+
+    /**
+     * Bumps the catalog generation for the books saved since the last bump, and adds them
+     * to the local indexes.
+     */
+    private void announce() {
+        lastBumpAt = System.currentTimeMillis();
+        if (unannounced.isEmpty()) {
+            return;
+        }
+        long generation = BookRepository.get().markImported();
+        BookSearchIndex.get().index(unannounced, generation);
+        CategoryIndex.get().index(unannounced, generation);
+        unannounced.clear();
+    }
+
+    /**
+     * Reads the rows of the file one at a time.
+     */
+    private interface RowReader {
+        /**
+         * Moves to the next row.
+         *
+         * @return false at the end of the file.
+         */
+        boolean next() throws IOException;
+
+        /**
+         * Parses the current row.
+         *
+         * @throws IllegalArgumentException when the row cannot be parsed.
+         */
+        BookForm parse();
+    }
+
+    private static class JsonLinesRowReader implements RowReader {
+        private final BufferedReader reader;
+        private String line;
+
+        private JsonLinesRowReader(BufferedReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            do {
+                line = reader.readLine();
+            } while (line != null && line.trim().isEmpty());
+            return line != null;
+        }
+
+        @Override
+        public BookForm parse() {
+            try {
+                return JSON.readValue(line, BookForm.class);
+            } catch (JsonProcessingException e) {
+                throw new IllegalArgumentException("Invalid JSON: " + e.getOriginalMessage());
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Invalid JSON: " + e.getMessage());
+            }
+        }
+    }
+
+    private static class CsvRowReader implements RowReader {
+        private static final Splitter CATEGORY_SPLITTER =
+                Splitter.on(';').trimResults().omitEmptyStrings();
+
+        private final BufferedReader reader;
+        private final Map<String, Integer> columns = new HashMap<>();
+        private List<String> record;
+
+        private CsvRowReader(BufferedReader reader) throws IOException {
+            this.reader = reader;
+            List<String> header = readRecord();
+            if (header == null) {
+                throw new IOException("The CSV file has no header row");
+            }
+            for (int i = 0; i < header.size(); i++) {
+                columns.put(header.get(i).trim().toLowerCase(Locale.ROOT), i);
+            }
+            if (!columns.containsKey("name")) {
+                throw new IOException("The CSV header has no name column");
+            }
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            do {
+                record = readRecord();
+            } while (record != null && record.size() == 1 && record.get(0).trim().isEmpty());
+            return record != null;
+        }
+
+        @Override
+        public BookForm parse() {
+            String category = column("category");
+            String price = column("price");
+            long priceMinor;
+            try {
+                priceMinor = price == null || price.trim().isEmpty() ? 0 : Money.parse(price);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid price: " + price);
+            }
+            return new BookForm(column("name"), column("description"),
+                    category == null ? null : CATEGORY_SPLITTER.splitToList(category),
+                    column("author"), priceMinor);
+        }
+
+        private String column(String name) {
+            Integer index = columns.get(name);
+            return index == null || index >= record.size() ? null : record.get(index);
+        }
+
+        /**
+         * Reads one RFC 4180 record, whose quoted fields may span several lines.
+         *
+         * @return the fields of the record, or null at the end of the file.
+         */
+        private List<String> readRecord() throws IOException {
+            int c = reader.read();
+            if (c == -1) {
+                return null;
+            }
+            List<String> fields = new ArrayList<>();
+            StringBuilder field = new StringBuilder();
+            boolean quoted = false;
+            while (c != -1) {
+                if (quoted) {
+                    if (c == '"') {
+                        reader.mark(1);
+                        int next = reader.read();
+                        if (next == '"') {
+                            field.append('"');
+                        } else {
+                            quoted = false;
+                            reader.reset();
+                        }
+                    } else {
+                        field.append((char) c);
+                    }
+                } else if (c == '"' && field.length() == 0) {
+                    quoted = true;
+                } else if (c == ',') {
+                    fields.add(field.toString());
+                    field.setLength(0);
+                } else if (c == '\n') {
+                    break;
+                } else if (c != '\r') {
+                    field.append((char) c);
+                }
+                c = reader.read();
+            }
+            fields.add(field.toString());
+            return fields;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.itcs443.bookstore.service;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hashing;
+import com.itcs443.bookstore.form.BookQueryForm;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Read-through cache of queryBooks results.
+ *
+ * A result page is stored as the ids of its books plus the cursor of the next page, in
+ * memcache and in a small in-heap cache in front of it. Entries are keyed by a hash of the
+ * normalized filters and by the catalog generation, so createBook invalidates all of them.
+ */
+public class BookQueryCache {
+
+    private static final String MEMCACHE_PREFIX = "BookQuery:";
+
+    private static final int EXPIRATION_SECONDS = 60 * 60;
+
+    private static final int LOCAL_MAXIMUM_SIZE = 1000;
+
+    private static final BookQueryCache INSTANCE = new BookQueryCache();
+
+    /**
+     * One cached page of a query result.
+     */
+    public static class Page implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ArrayList<Long> bookIds;
+        private final String nextCursor;
+
+        public Page(List<Long> bookIds, String nextCursor) {
+            this.bookIds = new ArrayList<>(bookIds);
+            this.nextCursor = nextCursor;
+        }
+
+        public List<Long> getBookIds() {
+            return Collections.unmodifiableList(bookIds);
+        }
+
+        public String getNextCursor() {
+            return nextCursor;
+        }
+    }
+
+    private final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+
+    private final Cache<String, Page> localCache = CacheBuilder.newBuilder()
+            .maximumSize(LOCAL_MAXIMUM_SIZE)
+            .recordStats()
+            .build();
+
+    private BookQueryCache() {}
+
+    public static BookQueryCache get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the cached page for the given query, or null.
+     *
+     * @param form the query.
+     * @param cursor the cursor of the page, null for the first page.
+     * @param pageSize the size of the page.
+     * @param generation the current catalog generation.
+     * @return the cached page, or null when it is not cached.
+     */
+    public Page get(BookQueryForm form, String cursor, int pageSize, long generation) {
+        if (generation == CatalogGeneration.UNKNOWN) {
+            return null;
+        }
+        String key = getKey(form, cursor, pageSize, generation);
+        Page page = localCache.getIfPresent(key);
+        if (page == null) {
+            page = (Page) memcache.get(key);
+            if (page != null) {
+                localCache.put(key, page);
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Caches the page for the given query.
+     *
+     * @param form the query.
+     * @param cursor the cursor of the page, null for the first page.
+     * @param pageSize the size of the page.
+     * @param generation the catalog generation the page was computed at.
+     * @param page the page to cache.
+     */
+    public void put(BookQueryForm form, String cursor, int pageSize, long generation, Page page) {
+        if (generation == CatalogGeneration.UNKNOWN) {
+            return;
+        }
+        String key = getKey(form, cursor, pageSize, generation);
+        localCache.put(key, page);
+        memcache.put(key, page, Expiration.byDeltaSeconds(EXPIRATION_SECONDS));
+    }
+
+    /**
+     * Returns the cache key of the given query. Filters are normalized and sorted, so that
+     * queries differing only in filter order, case or spacing share an entry.
+     */
+    private static String getKey(BookQueryForm form, String cursor, int pageSize, long generation) {
+        List<String> filters = new ArrayList<>();
+        for (BookQueryForm.Filter filter : form.getFilters()) {
+            String value = filter.getValue() == null ? "" : filter.getValue().trim();
+            if (filter.getField() != BookQueryForm.Field.CATEGORY
+                    && filter.getField() != BookQueryForm.Field.PRICE) {
+                value = Joiner.on(' ').join(BookSearchIndex.tokenize(value));
+            }
+            filters.add(filter.getField() + " " + filter.getOperator() + " " + value);
+        }
+        Collections.sort(filters);
+
+        String canonical = Joiner.on('\n').useForNull("").join(ImmutableList.<String>builder()
+                .addAll(filters)
+                .add("cursor " + (cursor == null ? "" : cursor))
+                .add("limit " + pageSize)
+                .build());
+        return MEMCACHE_PREFIX + generation + ":"
+                + Hashing.sha1().hashString(canonical, Charsets.UTF_8).toString();
+    }
+
+    /**
+     * Returns the hit, miss and eviction counts of the in-heap cache.
+     *
+     * @return the statistics of the in-heap cache.
+     */
+    public CacheStats getStats() {
+        return localCache.stats();
+    }
+}
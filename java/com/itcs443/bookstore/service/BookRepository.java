@@ -0,0 +1,227 @@
+package com.itcs443.bookstore.service;
+
+import static com.itcs443.bookstore.service.OfyService.ofy;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.common.collect.Lists;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Work;
+import com.googlecode.objectify.cmd.Query;
+import com.itcs443.bookstore.domain.Book;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads and saves Book entities through a bounded in-heap cache in front of Objectify,
+ * whose own cache is memcache. A local hit costs no RPC at all.
+ *
+ * Entries expire after a few minutes, are replaced on save, and are all dropped when the
+ * catalog generation shows that books were saved on another instance. The generation is
+ * checked at most every few seconds.
+ */
+public class BookRepository {
+
+    private static final int MAXIMUM_SIZE = 10000;
+
+    private static final long EXPIRE_AFTER_WRITE_MINUTES = 5;
+
+    private static final long GENERATION_CHECK_INTERVAL_MILLIS = 5 * 1000L;
+
+    /**
+     * The largest number of entities the datastore accepts in one put.
+     */
+    private static final int SAVE_BATCH_SIZE = 500;
+
+    /**
+     * The number of books re-saved by one step of the price migration.
+     */
+    public static final int MIGRATION_CHUNK_SIZE = 200;
+
+    private static final BookRepository INSTANCE = new BookRepository();
+
+    private final Cache<Key<Book>, Book> cache = CacheBuilder.newBuilder()
+            .maximumSize(MAXIMUM_SIZE)
+            .expireAfterWrite(EXPIRE_AFTER_WRITE_MINUTES, TimeUnit.MINUTES)
+            .recordStats()
+            .build();
+
+    /**
+     * The catalog generation the cache is up to date with.
+     */
+    private volatile long generation = CatalogGeneration.UNKNOWN;
+
+    private volatile long generationCheckedAt;
+
+    private BookRepository() {}
+
+    public static BookRepository get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the Book with the given key.
+     *
+     * @param key the key of the Book.
+     * @return the Book, or null when it does not exist.
+     */
+    public Book get(Key<Book> key) {
+        checkGeneration();
+        Book book = cache.getIfPresent(key);
+        if (book == null) {
+            book = ofy().transactionless().load().key(key).now();
+            if (book != null) {
+                cache.put(key, book);
+            }
+        }
+        return book;
+    }
+
+    /**
+     * Returns the Books with the given keys, loading the ones not in the cache in one batch.
+     *
+     * @param keys the keys of the Books.
+     * @return the Books in the order of the keys. Books that do not exist are left out.
+     */
+    public Map<Key<Book>, Book> get(Collection<Key<Book>> keys) {
+        checkGeneration();
+        Map<Key<Book>, Book> cached = cache.getAllPresent(keys);
+        List<Key<Book>> missingKeys = new ArrayList<>(keys.size() - cached.size());
+        for (Key<Book> key : keys) {
+            if (!cached.containsKey(key)) {
+                missingKeys.add(key);
+            }
+        }
+        Map<Key<Book>, Book> loaded = missingKeys.isEmpty()
+                ? cached : ofy().transactionless().load().keys(missingKeys);
+        cache.putAll(loaded);
+
+        Map<Key<Book>, Book> books = new LinkedHashMap<>();
+        for (Key<Book> key : keys) {
+            Book book = cached.containsKey(key) ? cached.get(key) : loaded.get(key);
+            if (book != null) {
+                books.put(key, book);
+            }
+        }
+        return books;
+    }
+
+    /**
+     * Saves the given Book and bumps the catalog generation.
+     *
+     * @param book the Book to save.
+     * @return the new catalog generation.
+     */
+    public long save(Book book) {
+        ofy().save().entity(book).now();
+        cache.put(Key.create(Book.class, book.getId()), book);
+        return bumpGeneration();
+    }
+
+    /**
+     * Replaces the cached copy of a Book whose stock shards Inventory changed in a
+     * transaction, so that the cached Books are never modified. The catalog generation is
+     * not bumped: the shards are not part of the catalog the other caches hold. Other
+     * instances see the new count once their cached copy expires, and Inventory reads it
+     * fresh when it reserves or restocks.
+     *
+     * @param book the Book as saved.
+     */
+    public void updateStockShards(Book book) {
+        cache.put(Key.create(Book.class, book.getId()), book);
+    }
+
+    /**
+     * Saves the given Books in batches and bumps the catalog generation once.
+     *
+     * @param books the Books to save.
+     * @return the new catalog generation.
+     */
+    public long saveAll(List<Book> books) {
+        for (List<Book> batch : Lists.partition(books, SAVE_BATCH_SIZE)) {
+            ofy().save().entities(batch).now();
+        }
+        for (Book book : books) {
+            cache.put(Key.create(Book.class, book.getId()), book);
+        }
+        return bumpGeneration();
+    }
+
+    /**
+     * Bumps the catalog generation after new Books were saved by a bulk import.
+     * The imported books are not cached, so that they do not evict the books being browsed.
+     *
+     * @return the new catalog generation.
+     */
+    public long markImported() {
+        return bumpGeneration();
+    }
+
+    /**
+     * Re-saves the next chunk of Books, so that the books saved with a double price are
+     * stored and indexed with their price in minor units. The catalog generation is bumped
+     * once, by the last step, so that the other instances reload the catalog a single time.
+     * The price filters of queryBooks only match the books stored in the new format.
+     *
+     * @param cursor the cursor returned by the previous step, null for the first one.
+     * @return the cursor of the next step, or null when every book was read.
+     */
+    public Cursor migratePrices(Cursor cursor) {
+        Query<Book> query = ofy().load().type(Book.class).limit(MIGRATION_CHUNK_SIZE);
+        if (cursor != null) {
+            query = query.startAt(cursor);
+        }
+        QueryResultIterator<Book> iterator = query.iterator();
+        List<Book> books = new ArrayList<>(MIGRATION_CHUNK_SIZE);
+        while (iterator.hasNext()) {
+            books.add(iterator.next());
+        }
+        if (!books.isEmpty()) {
+            ofy().save().entities(books).now();
+        }
+        if (books.size() < MIGRATION_CHUNK_SIZE) {
+            bumpGeneration();
+            return null;
+        }
+        return iterator.getCursor();
+    }
+
+    /**
+     * Returns the hit, miss and eviction counts of the local cache.
+     *
+     * @return the statistics of the local cache.
+     */
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    private long bumpGeneration() {
+        long newGeneration = CatalogGeneration.bump();
+        // Only the books just saved changed since the cache was up to date.
+        if (generation != CatalogGeneration.UNKNOWN && generation + 1 == newGeneration) {
+            generation = newGeneration;
+        }
+        return newGeneration;
+    }
+
+    private void checkGeneration() {
+        long now = System.currentTimeMillis();
+        if (now - generationCheckedAt < GENERATION_CHECK_INTERVAL_MILLIS) {
+            return;
+        }
+        generationCheckedAt = now;
+        long currentGeneration = CatalogGeneration.get();
+        if (currentGeneration == CatalogGeneration.UNKNOWN || currentGeneration != generation) {
+            cache.invalidateAll();
+            generation = currentGeneration;
+        }
+    }
+}
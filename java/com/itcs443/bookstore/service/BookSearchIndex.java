@@ -0,0 +1,269 @@
+package com.itcs443.bookstore.service;
+
+import com.google.common.collect.ImmutableList;
+import com.itcs443.bookstore.domain.Book;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * In-process inverted index over the name, author, description and category of every Book.
+ *
+ * Text is split into lower-cased tokens. Every token is indexed twice: on its own, under
+ * an empty field (e.g. ":rowling"), and qualified with the field it came from
+ * (e.g. "author:rowling"). Tokens never hold a ':', so a prefix of one kind of key never
+ * matches a key of the other kind. A search is a list of terms that are all matched as
+ * prefixes and combined with AND.
+ *
+ * The index is kept in sync with the datastore by a CatalogSync, checked against the catalog
+ * generation passed by every search.
+ */
+public class BookSearchIndex {
+
+    private static final BookSearchIndex INSTANCE = new BookSearchIndex();
+
+    /**
+     * A single search term, matched as a prefix of the indexed tokens.
+     */
+    public static class Term {
+        private final String field;
+        private final String prefix;
+
+        /**
+         * @param field the field to search in, or null to search in every field.
+         * @param prefix the prefix of the token, already tokenized.
+         */
+        public Term(String field, String prefix) {
+            this.field = field;
+            this.prefix = prefix;
+        }
+
+        public String getField() {
+            return field;
+        }
+
+        public String getPrefix() {
+            return prefix;
+        }
+
+        private String toIndexKey() {
+            return (field == null ? "" : field) + ":" + prefix;
+        }
+    }
+
+    /**
+     * The postings of the catalog, replaced at once by a rebuild.
+     */
+    private static class Index {
+        /**
+         * Index keys to the ids of the books containing them.
+         */
+        private final NavigableMap<String, Set<Long>> postings = new TreeMap<>();
+
+        /**
+         * Book ids to the index keys of the book, so that a book can be re-indexed.
+         */
+        private final Map<Long, List<String>> keysByBook = new HashMap<>();
+
+        private void add(Book book) {
+            List<String> oldKeys = keysByBook.remove(book.getId());
+            if (oldKeys != null) {
+                for (String key : oldKeys) {
+                    Set<Long> posting = postings.get(key);
+                    posting.remove(book.getId());
+                    if (posting.isEmpty()) {
+                        postings.remove(key);
+                    }
+                }
+            }
+
+            Set<String> keys = new LinkedHashSet<>();
+            addKeys(keys, "name", book.getName());
+            addKeys(keys, "author", book.getAuthor());
+            addKeys(keys, "description", book.getDescription());
+            if (book.getCategory() != null) {
+                for (String category : book.getCategory()) {
+                    addKeys(keys, "category", category);
+                }
+            }
+            for (String key : keys) {
+                Set<Long> posting = postings.get(key);
+                if (posting == null) {
+                    posting = new TreeSet<>();
+                    postings.put(key, posting);
+                }
+                posting.add(book.getId());
+            }
+            keysByBook.put(book.getId(), new ArrayList<>(keys));
+        }
+
+        private Set<Long> matchPrefix(String prefix) {
+            Set<Long> ids = new TreeSet<>();
+            for (Set<Long> posting
+                    : postings.subMap(prefix, true, prefix + Character.MAX_VALUE, true).values()) {
+                ids.addAll(posting);
+            }
+            return ids;
+        }
+    }
+
+    private final CatalogSync<Index> sync = new CatalogSync<Index>("book search index",
+            new Index()) {
+        @Override
+        Index newIndex() {
+            return new Index();
+        }
+
+        @Override
+        void add(Index index, Book book) {
+            index.add(book);
+        }
+    };
+
+    private BookSearchIndex() {}
+
+    public static BookSearchIndex get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Splits the given text into lower-cased tokens of letters and digits.
+     *
+     * @param text the text to tokenize, may be null.
+     * @return the tokens in the order they appear.
+     */
+    public static List<String> tokenize(String text) {
+        if (text == null) {
+            return Collections.emptyList();
+        }
+        List<String> tokens = new ArrayList<>();
+        StringBuilder token = new StringBuilder();
+        String lowerCased = text.toLowerCase(Locale.ROOT);
+        for (int i = 0; i < lowerCased.length(); i++) {
+            char c = lowerCased.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                token.append(c);
+            } else if (token.length() > 0) {
+                tokens.add(token.toString());
+                token.setLength(0);
+            }
+        }
+        if (token.length() > 0) {
+            tokens.add(token.toString());
+        }
+        return tokens;
+    }
+
+    /**
+     * Returns true when the index is up to date with the given catalog generation.
+     *
+     * @param currentGeneration the current catalog generation.
+     * @return true when the index is up to date.
+     */
+    public boolean isCurrent(long currentGeneration) {
+        return sync.isCurrent(currentGeneration);
+    }
+
+    /**
+     * Adds the given book to the index, or re-indexes it if it is already there.
+     *
+     * @param book the Book to index.
+     * @param newGeneration the catalog generation returned by the bump for this book.
+     */
+    public void index(Book book, long newGeneration) {
+        index(Collections.singletonList(book), newGeneration);
+    }
+
+    /**
+     * Adds the given books to the index, or re-indexes the ones already there.
+     *
+     * @param books the Books to index.
+     * @param newGeneration the catalog generation returned by the bump for these books.
+     */
+    public void index(Collection<Book> books, long newGeneration) {
+        sync.index(books, newGeneration);
+    }
+
+    /**
+     * Returns the ids of the books matching all of the given terms, in ascending order.
+     * No terms match every book.
+     *
+     * @param terms the terms to match.
+     * @param currentGeneration the current catalog generation.
+     * @return the ids of the matching books.
+     */
+    public List<Long> search(List<Term> terms, long currentGeneration) {
+        sync.ensureFresh(currentGeneration);
+        sync.readLock().lock();
+        try {
+            Index index = sync.current();
+            if (terms.isEmpty()) {
+                return ImmutableList.copyOf(new TreeSet<>(index.keysByBook.keySet()));
+            }
+
+            // Intersect starting with the most selective term.
+            List<Set<Long>> matches = new ArrayList<>(terms.size());
+            for (Term term : terms) {
+                matches.add(index.matchPrefix(term.toIndexKey()));
+            }
+            Collections.sort(matches, new Comparator<Set<Long>>() {
+                @Override
+                public int compare(Set<Long> a, Set<Long> b) {
+                    return Integer.compare(a.size(), b.size());
+                }
+            });
+            TreeSet<Long> result = new TreeSet<>(matches.get(0));
+            for (int i = 1; i < matches.size() && !result.isEmpty(); i++) {
+                result.retainAll(matches.get(i));
+            }
+            return ImmutableList.copyOf(result);
+        } finally {
+            sync.readLock().unlock();
+        }
+    }
+
+    /**
+     * Builds the index if it was not yet, or catches up if it is stale, e.g. from the
+     * warmup request.
+     */
+    public void warmUp() {
+        sync.ensureFresh(CatalogGeneration.get());
+    }
+
+    /**
+     * Rebuilds the whole index from a scan of the Book kind.
+     * Searches keep being served from the previous index while the scan runs.
+     *
+     * @param currentGeneration the catalog generation read before the scan.
+     */
+    public void rebuild(long currentGeneration) {
+        sync.rebuild(currentGeneration);
+    }
+
+    /**
+     * Re-indexes the books updated since the previous scan or catch-up.
+     *
+     * @param currentGeneration the catalog generation read before the query.
+     */
+    void catchUp(long currentGeneration) {
+        sync.catchUp(currentGeneration);
+    }
+
+    private static void addKeys(Set<String> keys, String field, String text) {
+        for (String token : tokenize(text)) {
+            keys.add(":" + token);
+            keys.add(field + ":" + token);
+        }
+    }
+}
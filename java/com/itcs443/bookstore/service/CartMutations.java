@@ -0,0 +1,287 @@
+package com.itcs443.bookstore.service;
+
+import static com.itcs443.bookstore.service.OfyService.factory;
+import static com.itcs443.bookstore.service.OfyService.ofy;
+
+import com.google.common.base.Preconditions;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.LoadResult;
+import com.googlecode.objectify.Work;
+import com.itcs443.bookstore.domain.Book;
+import com.itcs443.bookstore.domain.Cart;
+import com.itcs443.bookstore.domain.CartJournal;
+import com.itcs443.bookstore.domain.CartOperation;
+import com.itcs443.bookstore.domain.Profile;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Applies cart mutations without contending on the Profile entity group.
+ *
+ * addBookToCart and removeBookFromCart only append a CartOperation, keyed by the client
+ * request id, to one of a few CartJournal shards of the user. Each shard is its own entity
+ * group, so concurrent appends from several tabs rarely touch the same group, and a retried
+ * request finds its operation there while it is pending. The shard numbers its operations
+ * in the append transaction. The operations are compacted into the Cart, in one transaction
+ * with the Profile and the shards, when the cart is read or checked out, and deleted there:
+ * a retry arriving after that is answered by the IdempotencyStore of the API method.
+ */
+public class CartMutations {
+
+    /**
+     * The number of journal shards per user. A compaction transaction spans the Profile
+     * entity group plus every shard, which must stay under the cross-group limit.
+     */
+    public static final int SHARD_COUNT = 4;
+
+    /**
+     * The largest number of operations appended or compacted in one transaction. A commit
+     * writes at most 500 entities: an append also writes the CartJournal, a compaction the
+     * Cart and the Profile.
+     */
+    public static final int MAX_OPERATIONS_PER_COMMIT = 450;
+
+    /**
+     * The order of the operations of one shard.
+     */
+    private static final Comparator<CartOperation> BY_SEQUENCE =
+            new Comparator<CartOperation>() {
+                @Override
+                public int compare(CartOperation a, CartOperation b) {
+                    return Long.compare(a.getSequence(), b.getSequence());
+                }
+            };
+
+    private CartMutations() {}
+
+    /**
+     * Returns the journal shard of the given request.
+     *
+     * @param userId the userId of the customer.
+     * @param requestId the client request id.
+     * @return the key of the CartJournal shard.
+     */
+    public static Key<CartJournal> getJournalKey(String userId, String requestId) {
+        int shard = (requestId.hashCode() & Integer.MAX_VALUE) % SHARD_COUNT;
+        return CartJournal.createKey(userId, shard);
+    }
+
+    /**
+     * Appends the given operation to its journal shard, unless an operation with the same
+     * request id is pending there.
+     *
+     * @param operation the CartOperation to append.
+     * @return true when appended, false when the request was already seen.
+     * @throws IllegalArgumentException when the pending operation with the same request id
+     *         is not the same add or remove of the same book.
+     */
+    public static boolean append(CartOperation operation) {
+        return appendAll(Collections.singletonList(operation));
+    }
+
+    /**
+     * Appends the given operations, which must all belong to the same journal shard, in one
+     * transaction, numbered in order. The batch is skipped when its first operation is
+     * pending.
+     *
+     * @param operations the CartOperations to append, in order, at most
+     *        MAX_OPERATIONS_PER_COMMIT of them.
+     * @return true when appended, false when the batch was already seen.
+     * @throws IllegalArgumentException when the pending first operation is not the same add
+     *         or remove of the same book as the first of the batch.
+     */
+    public static boolean appendAll(final List<CartOperation> operations) {
+        if (operations.isEmpty()) {
+            return true;
+        }
+        Preconditions.checkArgument(operations.size() <= MAX_OPERATIONS_PER_COMMIT,
+                "At most %s operations per batch", MAX_OPERATIONS_PER_COMMIT);
+        final CartOperation first = operations.get(0);
+        final Key<CartJournal> journalKey = first.getJournalKey();
+        return ofy().transact(new Work<Boolean>() {
+            @Override
+            public Boolean run() {
+                // Both loads are started before either is read.
+                LoadResult<CartJournal> journalResult = ofy().load().key(journalKey);
+                CartOperation pending = ofy().load().key(first.getKey()).now();
+                if (pending != null) {
+                    if (pending.isAdd() != first.isAdd()
+                            || !pending.getBookKey().equals(first.getBookKey())) {
+                        throw new IllegalArgumentException("Request id "
+                                + first.getRequestId() + " was used for another operation");
+                    }
+                    return false;
+                }
+                CartJournal journal = journalResult.now();
+                if (journal == null) {
+                    journal = new CartJournal(journalKey);
+                }
+                for (CartOperation operation : operations) {
+                    operation.setSequence(journal.nextSequence());
+                }
+                ofy().save().entity(journal).now();
+                ofy().save().entities(operations).now();
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Returns how many copies of the given book the user sees in the ongoing cart, i.e.
+     * with the pending operations applied. Nothing is written.
+     *
+     * @param context the context of the current API call.
+     * @param bookKey the key of the Book.
+     * @return the quantity of the book, 0 when it is not in the cart.
+     */
+    public static int getQuantity(RequestContext context, Key<Book> bookKey) {
+        return getQuantities(context, Collections.singleton(bookKey)).get(bookKey);
+    }
+
+    /**
+     * Returns how many copies of each of the given books the user sees in the ongoing cart,
+     * reading the cart and the journal once. Nothing is written.
+     *
+     * @param context the context of the current API call.
+     * @param bookKeys the keys of the Books.
+     * @return the quantity of every given book, 0 when it is not in the cart.
+     */
+    public static Map<Key<Book>, Integer> getQuantities(RequestContext context,
+            Collection<Key<Book>> bookKeys) {
+        Cart cart = context.getOngoingCart();
+        Map<Key<Book>, Integer> quantities = new HashMap<>();
+        for (Key<Book> bookKey : bookKeys) {
+            quantities.put(bookKey, cart == null ? 0 : cart.getQuantity(bookKey.getId()));
+        }
+        for (CartOperation operation : order(loadOperations(context.getUser().getUserId()))) {
+            Integer quantity = quantities.get(operation.getBookKey());
+            if (quantity == null) {
+                continue;
+            }
+            // A remove of a book that is not in the cart does nothing.
+            quantities.put(operation.getBookKey(),
+                    operation.isAdd() ? quantity + 1 : Math.max(0, quantity - 1));
+        }
+        return quantities;
+    }
+
+    /**
+     * Returns the ongoing cart of the user with every pending operation applied.
+     * A transaction only runs when the journal is not empty, and one more runs for every
+     * MAX_OPERATIONS_PER_COMMIT operations.
+     *
+     * @param context the context of the current API call.
+     * @return the ongoing Cart, or null when there is none.
+     */
+    public static Cart getCompactedCart(final RequestContext context) {
+        String userId = context.getUser().getUserId();
+        if (isEmpty(loadOperations(userId))) {
+            return context.getOngoingCart();
+        }
+        Cart cart;
+        do {
+            cart = ofy().transact(new Work<Cart>() {
+                @Override
+                public Cart run() {
+                    context.loadForTransaction();
+                    return compact(context);
+                }
+            });
+        } while (!isEmpty(loadOperations(userId)));
+        return cart;
+    }
+
+    /**
+     * Applies the oldest pending operations of the user to the ongoing cart, creating the
+     * cart if needed, and deletes them. Must run in a transaction, after
+     * context.loadForTransaction(). At most MAX_OPERATIONS_PER_COMMIT operations are
+     * applied, so that the commit stays under the entity limit; getCompactedCart applies
+     * the others.
+     *
+     * @param context the context of the current API call.
+     * @return the ongoing Cart, or null when there is none and nothing was pending.
+     */
+    public static Cart compact(RequestContext context) {
+        String userId = context.getUser().getUserId();
+
+        List<CartOperation> operations = order(loadOperations(userId));
+        if (operations.size() > MAX_OPERATIONS_PER_COMMIT) {
+            operations = operations.subList(0, MAX_OPERATIONS_PER_COMMIT);
+        }
+        Cart cart = context.getOngoingCart();
+        if (operations.isEmpty()) {
+            return cart;
+        }
+        ofy().delete().entities(operations).now();
+
+        Profile profile = context.getProfile();
+        if (cart == null) {
+            Key<Cart> cartKey = factory().allocateId(context.getProfileKey(), Cart.class);
+            cart = new Cart(cartKey.getId(), userId);
+            cart.setCustomerDisplayName(profile.getDisplayName());
+            profile.update(cart.getWebsafeKey());
+            context.setOngoingCart(cart);
+        }
+
+        cart.applyAll(operations);
+        ofy().save().entities(cart, profile).now();
+        return cart;
+    }
+
+    private static boolean isEmpty(List<List<CartOperation>> shards) {
+        for (List<CartOperation> shard : shards) {
+            if (!shard.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Orders the operations of the shards: each shard in the order it numbered them, and
+     * the shards merged by creation time, the only order they share.
+     */
+    private static List<CartOperation> order(List<List<CartOperation>> shards) {
+        List<Deque<CartOperation>> queues = new ArrayList<>(shards.size());
+        int size = 0;
+        for (List<CartOperation> shard : shards) {
+            List<CartOperation> sorted = new ArrayList<>(shard);
+            Collections.sort(sorted, BY_SEQUENCE);
+            queues.add(new ArrayDeque<>(sorted));
+            size += sorted.size();
+        }
+        List<CartOperation> ordered = new ArrayList<>(size);
+        while (ordered.size() < size) {
+            Deque<CartOperation> next = null;
+            for (Deque<CartOperation> queue : queues) {
+                if (!queue.isEmpty() && (next == null || queue.peekFirst().getCreatedAt()
+                        .before(next.peekFirst().getCreatedAt()))) {
+                    next = queue;
+                }
+            }
+            ordered.add(next.removeFirst());
+        }
+        return ordered;
+    }
+
+    /**
+     * Loads the operations of every journal shard of the user, one list per shard.
+     * The shard queries are all started before any of them is read.
+     */
+    private static List<List<CartOperation>> loadOperations(String userId) {
+        List<List<CartOperation>> shards = new ArrayList<>(SHARD_COUNT);
+        for (int shard = 0; shard < SHARD_COUNT; shard++) {
+            shards.add(ofy().load().type(CartOperation.class)
+                    .ancestor(CartJournal.createKey(userId, shard)).list());
+        }
+        return shards;
+    }
+}
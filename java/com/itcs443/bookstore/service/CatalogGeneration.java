@@ -0,0 +1,45 @@
+package com.itcs443.bookstore.service;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+/**
+ * A counter in memcache that is bumped on every change to the Book catalog.
+ * Caches of catalog data key or validate their entries with it, so a bump invalidates
+ * them on every instance at once.
+ */
+public class CatalogGeneration {
+
+    /**
+     * Returned when memcache is not available. Caches must not store anything under it.
+     */
+    public static final long UNKNOWN = -1;
+
+    private static final String MEMCACHE_KEY = "CatalogGeneration";
+
+    private static final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+
+    private CatalogGeneration() {}
+
+    /**
+     * Returns the current generation of the catalog.
+     * When the counter was evicted it starts again from the current time, so that it never
+     * goes back to a generation that caches may still hold.
+     *
+     * @return the current generation, or UNKNOWN.
+     */
+    public static long get() {
+        Long generation = memcache.increment(MEMCACHE_KEY, 0L, System.currentTimeMillis());
+        return generation == null ? UNKNOWN : generation;
+    }
+
+    /**
+     * Bumps the generation of the catalog, to be called after Books are saved.
+     *
+     * @return the new generation, or UNKNOWN.
+     */
+    public static long bump() {
+        Long generation = memcache.increment(MEMCACHE_KEY, 1L, System.currentTimeMillis());
+        return generation == null ? UNKNOWN : generation;
+    }
+}
@@ -0,0 +1,274 @@
+package com.itcs443.bookstore.service;
+
+import static com.itcs443.bookstore.service.OfyService.ofy;
+
+import com.itcs443.bookstore.domain.Book;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+/**
+ * Keeps an in-process index of the books of the catalog in sync with the datastore.
+ *
+ * The index is built from a datastore scan on the warmup request, or on first use, and
+ * kept up to date by createBook. It remembers the catalog generation it is up to date with.
+ * When the generation moves on because books were saved on another instance, one request
+ * catches up with a query on the update time of the books, while the other requests keep
+ * being served from the index as it is.
+ *
+ * @param <T> the type of the index.
+ */
+abstract class CatalogSync<T> {
+
+    private static final Logger LOG = Logger.getLogger(CatalogSync.class.getName());
+
+    /**
+     * How long the index is served before it catches up with the datastore, in case a
+     * generation bump was lost with memcache.
+     */
+    private static final long SYNC_INTERVAL_MILLIS = 10 * 60 * 1000L;
+
+    /**
+     * The shortest time between two catch-ups caused by a new catalog generation,
+     * so that a bulk import does not trigger a catch-up per batch.
+     */
+    private static final long MIN_SYNC_INTERVAL_MILLIS = 30 * 1000L;
+
+    /**
+     * How far back a catch-up queries from the start of the previous one, to cover the
+     * eventual consistency of the query and the clocks of the instances.
+     */
+    private static final long SYNC_OVERLAP_MILLIS = 60 * 1000L;
+
+    /**
+     * How often the generation is read for the requests that do not pass it.
+     */
+    private static final long GENERATION_CHECK_INTERVAL_MILLIS = 5 * 1000L;
+
+    private final String name;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private T index;
+
+    /**
+     * Books indexed while a rebuild is running, replayed once the rebuild is done.
+     */
+    private Map<Long, Book> indexedDuringRebuild;
+
+    /**
+     * The time the last scan or catch-up started, 0 until the index is built.
+     */
+    private volatile long syncedAt;
+
+    /**
+     * The catalog generation the index is up to date with.
+     */
+    private volatile long generation = CatalogGeneration.UNKNOWN;
+
+    private volatile long generationCheckedAt;
+
+    /**
+     * True while a request checks the generation or catches up, so that the others do not
+     * wait for it.
+     */
+    private final AtomicBoolean syncing = new AtomicBoolean();
+
+    /**
+     * @param name the name of the index in the logs.
+     * @param index the empty index served until the first scan.
+     */
+    CatalogSync(String name, T index) {
+        this.name = name;
+        this.index = index;
+    }
+
+    /**
+     * Returns a new empty index.
+     */
+    abstract T newIndex();
+
+    /**
+     * Adds the given book to the index, or re-indexes it if it is already there.
+     */
+    abstract void add(T index, Book book);
+
+    /**
+     * The lock to hold while reading the index.
+     */
+    Lock readLock() {
+        return lock.readLock();
+    }
+
+    /**
+     * Returns the index, to be read while holding the read lock.
+     */
+    T current() {
+        return index;
+    }
+
+    boolean isCurrent(long currentGeneration) {
+        return currentGeneration != CatalogGeneration.UNKNOWN && generation == currentGeneration;
+    }
+
+    void index(Collection<Book> books, long newGeneration) {
+        lock.writeLock().lock();
+        try {
+            // Only these books changed since the index was up to date.
+            if (generation != CatalogGeneration.UNKNOWN && generation + 1 == newGeneration) {
+                generation = newGeneration;
+            }
+            for (Book book : books) {
+                add(index, book);
+                if (indexedDuringRebuild != null) {
+                    indexedDuringRebuild.put(book.getId(), book);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Rebuilds the whole index from a scan of the Book kind.
+     * The previous index keeps being served while the scan runs.
+     *
+     * @param currentGeneration the catalog generation read before the scan.
+     */
+    void rebuild(long currentGeneration) {
+        long startedAt = System.currentTimeMillis();
+        lock.writeLock().lock();
+        try {
+            indexedDuringRebuild = new HashMap<>();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        T newIndex = newIndex();
+        int count = 0;
+        boolean scanned = false;
+        try {
+            for (Book book : ofy().load().type(Book.class).iterable()) {
+                add(newIndex, book);
+                count++;
+            }
+            scanned = true;
+        } finally {
+            lock.writeLock().lock();
+            try {
+                if (scanned) {
+                    for (Book book : indexedDuringRebuild.values()) {
+                        add(newIndex, book);
+                    }
+                    index = newIndex;
+                    syncedAt = startedAt;
+                    generation = currentGeneration;
+                }
+                indexedDuringRebuild = null;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        LOG.info("Rebuilt the " + name + " with " + count + " books");
+    }
+
+    /**
+     * Re-indexes the books updated since the previous scan or catch-up.
+     *
+     * @param currentGeneration the catalog generation read before the query.
+     */
+    void catchUp(long currentGeneration) {
+        long startedAt = System.currentTimeMillis();
+        List<Book> books = ofy().load().type(Book.class)
+                .filter("updatedAt >=", new Date(syncedAt - SYNC_OVERLAP_MILLIS)).list();
+        lock.writeLock().lock();
+        try {
+            for (Book book : books) {
+                add(index, book);
+            }
+            syncedAt = startedAt;
+            generation = currentGeneration;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        LOG.info("Caught up with " + books.size() + " updated books in the " + name);
+    }
+
+    /**
+     * Builds the index on first use, blocking the requests that need it. Once built, a
+     * stale index is caught up by a single request, and served as it is to the others.
+     *
+     * @param currentGeneration the current catalog generation.
+     */
+    void ensureFresh(long currentGeneration) {
+        if (syncedAt == 0) {
+            build(currentGeneration);
+        } else if (isStale(currentGeneration, System.currentTimeMillis())
+                && syncing.compareAndSet(false, true)) {
+            try {
+                if (isStale(currentGeneration, System.currentTimeMillis())) {
+                    catchUp(currentGeneration);
+                }
+            } finally {
+                syncing.set(false);
+            }
+        }
+    }
+
+    /**
+     * Like {@link #ensureFresh(long)}, but reads the catalog generation itself, at most every
+     * few seconds, so that most requests cost no RPC.
+     */
+    void ensureFresh() {
+        if (syncedAt == 0) {
+            build(CatalogGeneration.get());
+            return;
+        }
+        if (!needsCheck(System.currentTimeMillis()) || !syncing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            long now = System.currentTimeMillis();
+            if (!needsCheck(now)) {
+                return;
+            }
+            generationCheckedAt = now;
+            long currentGeneration = CatalogGeneration.get();
+            if (isStale(currentGeneration, now)) {
+                catchUp(currentGeneration);
+            }
+        } finally {
+            syncing.set(false);
+        }
+    }
+
+    private synchronized void build(long currentGeneration) {
+        if (syncedAt == 0) {
+            rebuild(currentGeneration);
+        }
+    }
+
+    private boolean isStale(long currentGeneration, long now) {
+        long age = now - syncedAt;
+        return age > SYNC_INTERVAL_MILLIS
+                || (!isCurrent(currentGeneration) && age > MIN_SYNC_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Returns true when the index is due for a catch-up, or may be behind the catalog
+     * generation and was not checked against it lately.
+     */
+    private boolean needsCheck(long now) {
+        long age = now - syncedAt;
+        return age > SYNC_INTERVAL_MILLIS || (age > MIN_SYNC_INTERVAL_MILLIS
+                && now - generationCheckedAt >= GENERATION_CHECK_INTERVAL_MILLIS);
+    }
+}
@@ -0,0 +1,354 @@
+package com.itcs443.bookstore.service;
+
+import com.itcs443.bookstore.domain.Book;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * In-process index of the books of every category, for category navigation.
+ *
+ * Every book gets a dense ordinal. A category holds the ids of its books in ascending order,
+ * to serve a page with a binary search, and a bitmap of their ordinals. The number of books
+ * of a category is kept as it changes; the facet counts of a set of books, e.g. the result
+ * of a search or the books of another category, are the cardinalities of its bitmap AND-ed
+ * with the bitmap of every category.
+ *
+ * The index is kept in sync with the datastore by a CatalogSync, which reads the catalog
+ * generation at most every few seconds, so that browsing costs no RPC.
+ */
+public class CategoryIndex {
+
+    private static final CategoryIndex INSTANCE = new CategoryIndex();
+
+    /**
+     * The number of books of a category in a set of books.
+     */
+    public static class Facet {
+        private final String category;
+        private final int count;
+
+        private Facet(String category, int count) {
+            this.category = category;
+            this.count = count;
+        }
+
+        public String getCategory() {
+            return category;
+        }
+
+        public int getCount() {
+            return count;
+        }
+    }
+
+    /**
+     * One page of the books of a category, with the facet counts of all its books.
+     */
+    public static class Page {
+        private final List<Long> bookIds;
+        private final boolean more;
+        private final int count;
+        private final List<Facet> facets;
+
+        private Page(List<Long> bookIds, boolean more, int count, List<Facet> facets) {
+            this.bookIds = bookIds;
+            this.more = more;
+            this.count = count;
+            this.facets = facets;
+        }
+
+        public List<Long> getBookIds() {
+            return bookIds;
+        }
+
+        /**
+         * Returns true when the category has books after this page.
+         */
+        public boolean hasMore() {
+            return more;
+        }
+
+        /**
+         * The number of books of the category.
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * The other categories of the books of the category.
+         */
+        public List<Facet> getFacets() {
+            return facets;
+        }
+    }
+
+    /**
+     * The books of one category.
+     */
+    private static class Category {
+        private long[] sortedIds = new long[16];
+        private int count;
+        private long[] bitmap = new long[1];
+
+        private void add(long bookId, int ordinal) {
+            int position = Arrays.binarySearch(sortedIds, 0, count, bookId);
+            if (position >= 0) {
+                return;
+            }
+            position = -position - 1;
+            if (count == sortedIds.length) {
+                sortedIds = Arrays.copyOf(sortedIds, count * 2);
+            }
+            System.arraycopy(sortedIds, position, sortedIds, position + 1, count - position);
+            sortedIds[position] = bookId;
+            count++;
+            if (ordinal >> 6 >= bitmap.length) {
+                bitmap = Arrays.copyOf(bitmap, Math.max(bitmap.length * 2, (ordinal >> 6) + 1));
+            }
+            bitmap[ordinal >> 6] |= 1L << ordinal;
+        }
+
+        private void remove(long bookId, int ordinal) {
+            int position = Arrays.binarySearch(sortedIds, 0, count, bookId);
+            if (position < 0) {
+                return;
+            }
+            System.arraycopy(sortedIds, position + 1, sortedIds, position, count - position - 1);
+            count--;
+            bitmap[ordinal >> 6] &= ~(1L << ordinal);
+        }
+    }
+
+    /**
+     * The whole index, replaced at once by a rebuild.
+     */
+    private static class Index {
+        private final Map<Long, Integer> ordinals = new HashMap<>();
+        private final Map<Long, List<String>> categoriesByBook = new HashMap<>();
+        private final TreeMap<String, Category> categories = new TreeMap<>();
+
+        private void add(Book book) {
+            Integer ordinal = ordinals.get(book.getId());
+            if (ordinal == null) {
+                ordinal = ordinals.size();
+                ordinals.put(book.getId(), ordinal);
+            }
+            List<String> oldCategories = categoriesByBook.remove(book.getId());
+            if (oldCategories != null) {
+                for (String name : oldCategories) {
+                    Category category = categories.get(name);
+                    if (category == null) {
+                        // Listed twice in the book.
+                        continue;
+                    }
+                    category.remove(book.getId(), ordinal);
+                    if (category.count == 0) {
+                        categories.remove(name);
+                    }
+                }
+            }
+            List<String> newCategories = book.getCategory() == null
+                    ? Collections.<String>emptyList() : book.getCategory();
+            for (String name : newCategories) {
+                Category category = categories.get(name);
+                if (category == null) {
+                    category = new Category();
+                    categories.put(name, category);
+                }
+                category.add(book.getId(), ordinal);
+            }
+            categoriesByBook.put(book.getId(), newCategories);
+        }
+
+        /**
+         * Returns the facet counts of the books set in the given bitmap, leaving out the
+         * categories with no book in it.
+         */
+        private List<Facet> countFacets(long[] selection) {
+            List<Facet> facets = new ArrayList<>();
+            for (Map.Entry<String, Category> entry : categories.entrySet()) {
+                long[] bitmap = entry.getValue().bitmap;
+                int count = 0;
+                for (int i = Math.min(bitmap.length, selection.length) - 1; i >= 0; i--) {
+                    count += Long.bitCount(bitmap[i] & selection[i]);
+                }
+                if (count > 0) {
+                    facets.add(new Facet(entry.getKey(), count));
+                }
+            }
+            return facets;
+        }
+    }
+
+    private final CatalogSync<Index> sync = new CatalogSync<Index>("category index",
+            new Index()) {
+        @Override
+        Index newIndex() {
+            return new Index();
+        }
+
+        @Override
+        void add(Index index, Book book) {
+            index.add(book);
+        }
+    };
+
+    private CategoryIndex() {}
+
+    public static CategoryIndex get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Adds the given books to the index, or moves the ones already there to their current
+     * categories.
+     *
+     * @param books the Books to index.
+     * @param newGeneration the catalog generation returned by the bump for these books.
+     */
+    public void index(Collection<Book> books, long newGeneration) {
+        sync.index(books, newGeneration);
+    }
+
+    /**
+     * Adds the given book to the index, or moves it to its current categories.
+     *
+     * @param book the Book to index.
+     * @param newGeneration the catalog generation returned by the bump for this book.
+     */
+    public void index(Book book, long newGeneration) {
+        index(Collections.singletonList(book), newGeneration);
+    }
+
+    /**
+     * Returns every category with its number of books, in the order of their names.
+     *
+     * @return the facet counts of the whole catalog.
+     */
+    public List<Facet> getCategories() {
+        sync.ensureFresh();
+        sync.readLock().lock();
+        try {
+            Index index = sync.current();
+            List<Facet> facets = new ArrayList<>(index.categories.size());
+            for (Map.Entry<String, Category> entry : index.categories.entrySet()) {
+                facets.add(new Facet(entry.getKey(), entry.getValue().count));
+            }
+            return facets;
+        } finally {
+            sync.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns a page of the books of a category in ascending id order, with the other
+     * categories of its books.
+     *
+     * @param name the name of the category.
+     * @param afterId the id of the last book of the previous page, null for the first page.
+     * @param pageSize the largest number of books in the page.
+     * @return the page, empty when the category has no book.
+     */
+    public Page browse(String name, Long afterId, int pageSize) {
+        sync.ensureFresh();
+        sync.readLock().lock();
+        try {
+            Index index = sync.current();
+            Category category = index.categories.get(name);
+            if (category == null) {
+                return new Page(Collections.<Long>emptyList(), false, 0,
+                        Collections.<Facet>emptyList());
+            }
+            int from = 0;
+            if (afterId != null) {
+                int position = Arrays.binarySearch(category.sortedIds, 0, category.count, afterId);
+                from = position >= 0 ? position + 1 : -position - 1;
+            }
+            int to = Math.min(from + pageSize, category.count);
+            List<Long> bookIds = new ArrayList<>(Math.max(0, to - from));
+            for (int i = from; i < to; i++) {
+                bookIds.add(category.sortedIds[i]);
+            }
+            List<Facet> facets = index.countFacets(category.bitmap);
+            // The category itself counts every book of the page.
+            for (Iterator<Facet> iterator = facets.iterator(); iterator.hasNext();) {
+                if (iterator.next().category.equals(name)) {
+                    iterator.remove();
+                }
+            }
+            return new Page(bookIds, to < category.count, category.count, facets);
+        } finally {
+            sync.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the facet counts of the given books, e.g. the result of a search, restricted
+     * to the books of all the given categories.
+     *
+     * @param bookIds the ids of the books.
+     * @param requiredCategories the categories the books must all be in, may be empty.
+     * @return the categories of the books with their number of books.
+     */
+    public List<Facet> countFacets(Collection<Long> bookIds,
+            Collection<String> requiredCategories) {
+        sync.ensureFresh();
+        sync.readLock().lock();
+        try {
+            Index index = sync.current();
+            long[] selection = new long[(index.ordinals.size() >> 6) + 1];
+            for (long bookId : bookIds) {
+                Integer ordinal = index.ordinals.get(bookId);
+                if (ordinal != null) {
+                    selection[ordinal >> 6] |= 1L << ordinal;
+                }
+            }
+            for (String name : requiredCategories) {
+                Category category = index.categories.get(name);
+                for (int i = 0; i < selection.length; i++) {
+                    selection[i] &= category != null && i < category.bitmap.length
+                            ? category.bitmap[i] : 0;
+                }
+            }
+            return index.countFacets(selection);
+        } finally {
+            sync.readLock().unlock();
+        }
+    }
+
+    /**
+     * Builds the index if it was not yet, or catches up if it is stale, e.g. from the
+     * warmup request.
+     */
+    public void warmUp() {
+        sync.ensureFresh();
+    }
+
+    /**
+     * Rebuilds the whole index from a scan of the Book kind.
+     * Categories keep being served from the previous index while the scan runs.
+     *
+     * @param currentGeneration the catalog generation read before the scan.
+     */
+    public void rebuild(long currentGeneration) {
+        sync.rebuild(currentGeneration);
+    }
+
+    /**
+     * Re-indexes the books updated since the previous scan or catch-up.
+     *
+     * @param currentGeneration the catalog generation read before the query.
+     */
+    void catchUp(long currentGeneration) {
+        sync.catchUp(currentGeneration);
+    }
+}
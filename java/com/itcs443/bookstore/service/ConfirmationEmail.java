@@ -0,0 +1,206 @@
+package com.itcs443.bookstore.service;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.utils.SystemProperty;
+import com.googlecode.objectify.Key;
+import com.itcs443.bookstore.domain.Cart;
+import com.itcs443.bookstore.domain.CartItem;
+import com.itcs443.bookstore.domain.Money;
+
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+
+/**
+ * Builds the order confirmation e-mail from the snapshot of the checked-out Cart, with one
+ * line per book. The text and HTML templates are parsed once, when the class is loaded.
+ *
+ * The rendered bodies of an order are cached in memcache by the key of the order, so that
+ * a retried e-mail is neither rendered again nor needs its Cart loaded.
+ */
+public class ConfirmationEmail {
+
+    private static final String MEMCACHE_PREFIX = "ConfirmationEmail:";
+
+    /**
+     * Longer than the retries of an e-mail last.
+     */
+    private static final int CACHE_SECONDS = (int) TimeUnit.DAYS.toSeconds(1);
+
+    private static final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+
+    private static final String SUBJECT = "Thank you for ordering at our ICT Bookstore!";
+
+    private static final MailTemplate TEXT = MailTemplate.text(
+            "Hi {{name}},\n You have purchased the following order.\n\n"
+            + "Order: {{orderId}}\n"
+            + "{{#items}}{{quantity}} x {{title}} by {{author}} @ {{unitPrice}} = {{subtotal}}\n{{/items}}"
+            + "Total: {{total}}\n"
+            + "Date: {{date}}\n"
+            + "Ship To: {{address}}\n"
+            + "\n\nThis is an automatically generated message to confirm receipt of your order via the Internet. You do not need to reply to this e-mail, but you may wish to save it for your records."
+            + "\n\nYour order should arrive in four to six weeks."
+            + "\n\nShould you have any questions about your order, feel free to call customer services at 555-5555. Again, thank you for your purchase.");
+
+    private static final MailTemplate HTML = MailTemplate.html(
+            "<p>Hi {{name}},<br>You have purchased the following order.</p>"
+            + "<p>Order: {{orderId}}</p>"
+            + "<table><tr><th>Title</th><th>Author</th><th>Unit price</th><th>Quantity</th><th>Subtotal</th></tr>"
+            + "{{#items}}<tr><td>{{title}}</td><td>{{author}}</td><td>{{unitPrice}}</td>"
+            + "<td>{{quantity}}</td><td>{{subtotal}}</td></tr>{{/items}}"
+            + "<tr><td colspan=\"4\">Total</td><td>{{total}}</td></tr></table>"
+            + "<p>Date: {{date}}<br>Ship To: {{address}}</p>"
+            + "<p>This is an automatically generated message to confirm receipt of your order via the Internet. You do not need to reply to this e-mail, but you may wish to save it for your records.</p>"
+            + "<p>Your order should arrive in four to six weeks.</p>"
+            + "<p>Should you have any questions about your order, feel free to call customer services at 555-5555. Again, thank you for your purchase.</p>");
+
+    /**
+     * The template of e-mails enqueued before the cart key was passed, with a summary only.
+     */
+    private static final MailTemplate SUMMARY_TEXT = MailTemplate.text(
+            "Hi {{name}},\n You have purchased the following order.\n\n{{cartInfo}}"
+            + "\n\nThis is an automatically generated message to confirm receipt of your order via the Internet. You do not need to reply to this e-mail, but you may wish to save it for your records."
+            + "\n\nYour order should arrive in four to six weeks."
+            + "\n\nShould you have any questions about your order, feel free to call customer services at 555-5555. Again, thank you for your purchase.");
+
+    /**
+     * The rendered text and HTML bodies of the confirmation of an order.
+     */
+    public static class Content implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String text;
+        private final String html;
+
+        private Content(String text, String html) {
+            this.text = text;
+            this.html = html;
+        }
+    }
+
+    private ConfirmationEmail() {}
+
+    /**
+     * Returns the cached contents of the given orders.
+     *
+     * @param cartKeys the keys of the checked-out Carts.
+     * @return the contents found, by key of the Cart.
+     */
+    public static Map<Key<Cart>, Content> getCached(Collection<Key<Cart>> cartKeys) {
+        Map<String, Key<Cart>> keysByMemcacheKey = new HashMap<>();
+        for (Key<Cart> cartKey : cartKeys) {
+            keysByMemcacheKey.put(getMemcacheKey(cartKey), cartKey);
+        }
+        Map<Key<Cart>, Content> contents = new HashMap<>();
+        for (Map.Entry<String, Object> entry
+                : memcache.getAll(keysByMemcacheKey.keySet()).entrySet()) {
+            contents.put(keysByMemcacheKey.get(entry.getKey()), (Content) entry.getValue());
+        }
+        return contents;
+    }
+
+    /**
+     * Renders the confirmation of the given order and caches it.
+     *
+     * @param name the display name of the customer.
+     * @param cart the checked-out Cart.
+     * @return the rendered content.
+     */
+    public static Content render(String name, Cart cart) {
+        Map<String, Object> values = new HashMap<>();
+        values.put("name", name);
+        values.put("orderId", cart.getId());
+        values.put("total", Money.format(cart.getTotalMinor()));
+        values.put("date", cart.getDate());
+        values.put("address", cart.getAddress());
+        List<Map<String, Object>> items = new ArrayList<>(cart.getItems().size());
+        for (CartItem item : cart.getItems()) {
+            Map<String, Object> line = new HashMap<>();
+            line.put("title", item.getName());
+            line.put("author", item.getAuthor());
+            line.put("unitPrice", Money.format(item.getUnitPriceMinor()));
+            line.put("quantity", item.getQuantity());
+            line.put("subtotal", Money.format(item.getSubtotalMinor()));
+            items.add(line);
+        }
+        values.put("items", items);
+
+        Content content = new Content(TEXT.render(values), HTML.render(values));
+        memcache.put(getMemcacheKey(cart.getKey()), content,
+                Expiration.byDeltaSeconds(CACHE_SECONDS));
+        return content;
+    }
+
+    /**
+     * Builds the multipart text and HTML confirmation of an order.
+     *
+     * @param session the mail session.
+     * @param email the address of the customer.
+     * @param rendered the content rendered from the checked-out Cart.
+     * @return the message to send.
+     */
+    public static Message build(Session session, String email, Content rendered)
+            throws MessagingException, UnsupportedEncodingException {
+        MimeBodyPart text = new MimeBodyPart();
+        text.setText(rendered.text, "UTF-8");
+        MimeBodyPart html = new MimeBodyPart();
+        html.setContent(rendered.html, "text/html; charset=UTF-8");
+        MimeMultipart content = new MimeMultipart("alternative");
+        content.addBodyPart(text);
+        content.addBodyPart(html);
+
+        Message message = createMessage(session, email);
+        message.setContent(content);
+        return message;
+    }
+
+    /**
+     * Builds the plain text confirmation of an order known only by its summary.
+     *
+     * @param session the mail session.
+     * @param email the address of the customer.
+     * @param name the display name of the customer.
+     * @param cartInfo the summary of the order.
+     * @return the message to send.
+     */
+    public static Message buildSummary(Session session, String email, String name,
+            String cartInfo) throws MessagingException, UnsupportedEncodingException {
+        Map<String, Object> values = new HashMap<>();
+        values.put("name", name);
+        values.put("cartInfo", cartInfo);
+        Message message = createMessage(session, email);
+        message.setText(SUMMARY_TEXT.render(values));
+        return message;
+    }
+
+    private static String getMemcacheKey(Key<Cart> cartKey) {
+        return MEMCACHE_PREFIX + cartKey.getString();
+    }
+
+    private static Message createMessage(Session session, String email)
+            throws MessagingException, UnsupportedEncodingException {
+        Message message = new MimeMessage(session);
+        InternetAddress from = new InternetAddress(
+                String.format("noreply@%s.appspotmail.com",
+                        SystemProperty.applicationId.get()), "ICT Bookstore");
+        message.setFrom(from);
+        message.addRecipient(Message.RecipientType.TO, new InternetAddress(email, ""));
+        message.setSubject(SUBJECT);
+        return message;
+    }
+}
@@ -0,0 +1,113 @@
+package com.itcs443.bookstore.service;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.ApiConfig;
+import com.google.apphosting.api.ApiProxy.Delegate;
+import com.google.apphosting.api.ApiProxy.Environment;
+import com.google.apphosting.api.ApiProxy.LogRecord;
+import com.google.common.util.concurrent.ForwardingFuture;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Wraps the App Engine API delegate to count every RPC in ApiMetrics, and the datastore
+ * commits that fail and are retried by Objectify.
+ */
+public class CountingApiDelegate implements Delegate<Environment> {
+
+    private static final String DATASTORE = "datastore_v3";
+
+    private static final String COMMIT = "Commit";
+
+    private final Delegate<Environment> delegate;
+
+    private CountingApiDelegate(Delegate<Environment> delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Installs the counting delegate, unless it already is.
+     */
+    @SuppressWarnings("unchecked")
+    public static synchronized void install() {
+        Delegate<Environment> current = ApiProxy.getDelegate();
+        if (current != null && !(current instanceof CountingApiDelegate)) {
+            ApiProxy.setDelegate(new CountingApiDelegate(current));
+        }
+    }
+
+    @Override
+    public byte[] makeSyncCall(Environment environment, String packageName, String methodName,
+            byte[] request) throws ApiProxy.ApiProxyException {
+        ApiMetrics.get().countRpc(packageName + "." + methodName);
+        try {
+            return delegate.makeSyncCall(environment, packageName, methodName, request);
+        } catch (ApiProxy.ApiProxyException e) {
+            countFailure(packageName, methodName);
+            throw e;
+        }
+    }
+
+    @Override
+    public Future<byte[]> makeAsyncCall(Environment environment, final String packageName,
+            final String methodName, byte[] request, ApiConfig apiConfig) {
+        ApiMetrics.get().countRpc(packageName + "." + methodName);
+        final Future<byte[]> result =
+                delegate.makeAsyncCall(environment, packageName, methodName, request, apiConfig);
+        if (!DATASTORE.equals(packageName) || !COMMIT.equals(methodName)) {
+            return result;
+        }
+        return new ForwardingFuture<byte[]>() {
+            @Override
+            protected Future<byte[]> delegate() {
+                return result;
+            }
+
+            @Override
+            public byte[] get() throws InterruptedException, ExecutionException {
+                try {
+                    return super.get();
+                } catch (ExecutionException e) {
+                    countFailure(packageName, methodName);
+                    throw e;
+                }
+            }
+
+            @Override
+            public byte[] get(long timeout, TimeUnit unit)
+                    throws InterruptedException, ExecutionException, TimeoutException {
+                try {
+                    return super.get(timeout, unit);
+                } catch (ExecutionException e) {
+                    countFailure(packageName, methodName);
+                    throw e;
+                }
+            }
+        };
+    }
+
+    @Override
+    public void log(Environment environment, LogRecord record) {
+        delegate.log(environment, record);
+    }
+
+    @Override
+    public void flushLogs(Environment environment) {
+        delegate.flushLogs(environment);
+    }
+
+    @Override
+    public List<Thread> getRequestThreads(Environment environment) {
+        return delegate.getRequestThreads(environment);
+    }
+
+    private static void countFailure(String packageName, String methodName) {
+        if (DATASTORE.equals(packageName) && COMMIT.equals(methodName)) {
+            ApiMetrics.get().countCommitConflict();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.itcs443.bookstore.service;
+
+import static com.itcs443.bookstore.service.OfyService.ofy;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.base.Joiner;
+import com.google.common.hash.Hashing;
+import com.googlecode.objectify.Key;
+import com.itcs443.bookstore.domain.IdempotencyRecord;
+import com.itcs443.bookstore.domain.Profile;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The results of the requests made with a client request id, kept for a day so that a
+ * retried request returns the result of the first attempt without running it again.
+ *
+ * A result is a short String encoded by the API method, stored as an IdempotencyRecord and
+ * cached in memcache, so that most replays cost a single memcache get. It is kept with a
+ * fingerprint of the arguments of the request: the caller rejects a request id that comes
+ * back with other arguments instead of replaying a result that is not its own. Memcache is only
+ * filled once the result is committed: a record saved in a transaction is cached by the
+ * first replay that finds it in the datastore. A cron job deletes the expired records.
+ */
+public class IdempotencyStore {
+
+    private static final String MEMCACHE_PREFIX = "Idempotency:";
+
+    private static final long TTL_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private static final int PURGE_BATCH_SIZE = 500;
+
+    private static final IdempotencyStore INSTANCE = new IdempotencyStore();
+
+    /**
+     * The recorded result of a request, with the fingerprint of its arguments.
+     */
+    public static class Entry implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String fingerprint;
+        private final String result;
+
+        private Entry(String fingerprint, String result) {
+            this.fingerprint = fingerprint;
+            this.result = result;
+        }
+
+        public String getResult() {
+            return result;
+        }
+
+        /**
+         * Returns whether the request was recorded with the given arguments.
+         *
+         * @param fingerprint the fingerprint of the arguments of the retry.
+         * @return true when the retry is the recorded request.
+         */
+        public boolean matches(String fingerprint) {
+            return this.fingerprint.equals(fingerprint);
+        }
+    }
+
+    private final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+
+    private IdempotencyStore() {}
+
+    public static IdempotencyStore get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the fingerprint of the given arguments of a request: a SHA-256 hash, so that
+     * the record keeps no card details.
+     *
+     * @param arguments the arguments, in order. A null is fingerprinted as an empty String.
+     * @return the fingerprint, as hex.
+     */
+    public static String fingerprint(Object... arguments) {
+        return Hashing.sha256().hashString(
+                Joiner.on('\0').useForNull("").join(Arrays.asList(arguments)),
+                StandardCharsets.UTF_8).toString();
+    }
+
+    /**
+     * Returns the recorded result of a request. In a transaction, the record is read in it.
+     *
+     * @param profileKey the key of the Profile of the user.
+     * @param method the name of the API method.
+     * @param requestId the client request id.
+     * @return the recorded entry, or null when the request was not recorded or expired.
+     */
+    public Entry get(Key<Profile> profileKey, String method, String requestId) {
+        Key<IdempotencyRecord> key = IdempotencyRecord.createKey(profileKey, method, requestId);
+        boolean inTransaction = ofy().getTransaction() != null;
+        if (!inTransaction) {
+            Entry cached = (Entry) memcache.get(getMemcacheKey(key));
+            if (cached != null) {
+                return cached;
+            }
+        }
+        IdempotencyRecord record = ofy().load().key(key).now();
+        if (record == null || record.isExpired()) {
+            return null;
+        }
+        Entry entry = new Entry(record.getFingerprint(), record.getResult());
+        if (!inTransaction) {
+            cache(key, entry, record.getExpiresAt());
+        }
+        return entry;
+    }
+
+    /**
+     * Records the result of a request. In a transaction, the record is saved in it and only
+     * cached by a later get, so that a rolled back result is never replayed.
+     *
+     * @param profileKey the key of the Profile of the user.
+     * @param method the name of the API method.
+     * @param requestId the client request id.
+     * @param fingerprint the fingerprint of the arguments of the request.
+     * @param result the encoded result.
+     */
+    public void put(Key<Profile> profileKey, String method, String requestId,
+            String fingerprint, String result) {
+        IdempotencyRecord record = new IdempotencyRecord(profileKey, method, requestId,
+                fingerprint, result, new Date(System.currentTimeMillis() + TTL_MILLIS));
+        if (ofy().getTransaction() != null) {
+            ofy().save().entity(record).now();
+            return;
+        }
+        // Not waited for: a lost record only means that a retry runs the request again.
+        ofy().save().entity(record);
+        cache(Key.create(record), new Entry(fingerprint, result), record.getExpiresAt());
+    }
+
+    /**
+     * Deletes the expired records, a batch at a time.
+     *
+     * @param deadline the time in milliseconds after which no batch is started.
+     * @return the number of records deleted.
+     */
+    public int purgeExpired(long deadline) {
+        int deleted = 0;
+        while (System.currentTimeMillis() < deadline) {
+            List<Key<IdempotencyRecord>> keys = ofy().load().type(IdempotencyRecord.class)
+                    .filter("expiresAt <", new Date())
+                    .limit(PURGE_BATCH_SIZE)
+                    .keys().list();
+            if (keys.isEmpty()) {
+                break;
+            }
+            ofy().delete().keys(keys).now();
+            deleted += keys.size();
+        }
+        return deleted;
+    }
+
+    private void cache(Key<IdempotencyRecord> key, Entry entry, Date expiresAt) {
+        memcache.put(getMemcacheKey(key), entry, Expiration.onDate(expiresAt));
+    }
+
+    private static String getMemcacheKey(Key<IdempotencyRecord> key) {
+        return MEMCACHE_PREFIX + key.getString();
+    }
+}
@@ -0,0 +1,418 @@
+package com.itcs443.bookstore.service;
+
+import static com.itcs443.bookstore.service.OfyService.ofy;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.VoidWork;
+import com.googlecode.objectify.Work;
+import com.itcs443.bookstore.domain.Book;
+import com.itcs443.bookstore.domain.Cart;
+import com.itcs443.bookstore.domain.CartItem;
+import com.itcs443.bookstore.domain.OrderStatus;
+import com.itcs443.bookstore.domain.StockReservation;
+import com.itcs443.bookstore.domain.StockShard;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The stock of the books, kept in StockShards and taken by the orders as StockReservations.
+ *
+ * The stock of a book is split into shards, so that the reservations of a hot title are
+ * spread over many entity groups instead of serializing on one. A book without shards is
+ * not tracked and never runs out. A restock spreads the copies evenly over the shards.
+ *
+ * The price stage of OrderPipeline takes the copies of an order from random shards, one
+ * shard per transaction, and the payment stage commits the reservation with the order.
+ * A reservation that is not committed within RESERVATION_MILLIS is released by a cron job,
+ * which returns the copies and rejects the order, as do declined and rejected orders. The
+ * payment stage pins the reservation before charging, so it cannot expire mid-payment.
+ *
+ * addBookToCart checks the availability against an in-heap cache of the totals, which may
+ * be a few seconds old: it only keeps customers from adding books that are sold out, the
+ * reservation is what prevents overselling.
+ */
+public class Inventory {
+
+    public static final int DEFAULT_SHARD_COUNT = 8;
+
+    /**
+     * The largest number of shards of a book. A restock updates all of them in one
+     * transaction, which stays under the limit of 25 entity groups.
+     */
+    public static final int MAX_SHARD_COUNT = 20;
+
+    private static final long RESERVATION_MILLIS = TimeUnit.MINUTES.toMillis(15);
+
+    private static final long AVAILABILITY_EXPIRE_SECONDS = 5;
+
+    private static final int MAXIMUM_SIZE = 10000;
+
+    private static final int SWEEP_BATCH_SIZE = 100;
+
+    private static final Inventory INSTANCE = new Inventory();
+
+    private final Random random = new Random();
+
+    /**
+     * The total available of the tracked books, by book id.
+     */
+    private final Cache<Long, Long> availability = CacheBuilder.newBuilder()
+            .maximumSize(MAXIMUM_SIZE)
+            .expireAfterWrite(AVAILABILITY_EXPIRE_SECONDS, TimeUnit.SECONDS)
+            .build();
+
+    private Inventory() {}
+
+    public static Inventory get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns true when the book is not tracked or has at least the given quantity left.
+     *
+     * @param book the Book.
+     * @param quantity the quantity wanted.
+     * @return false when the book is known to be sold out.
+     */
+    public boolean isAvailable(Book book, long quantity) {
+        Long available = getAvailable(Collections.singletonList(book)).get(book.getId());
+        return available == null || available >= quantity;
+    }
+
+    /**
+     * Returns the quantity available of the tracked books, loading the shards of the books
+     * that are not cached in one batch.
+     *
+     * @param books the Books.
+     * @return the quantity available by book id. Books that are not tracked are left out.
+     */
+    public Map<Long, Long> getAvailable(Collection<Book> books) {
+        Map<Long, Long> available = new HashMap<>();
+        List<Key<StockShard>> missingKeys = new ArrayList<>();
+        List<Book> missingBooks = new ArrayList<>();
+        for (Book book : books) {
+            if (book.getStockShards() == 0) {
+                continue;
+            }
+            Long cached = availability.getIfPresent(book.getId());
+            if (cached != null) {
+                available.put(book.getId(), cached);
+                continue;
+            }
+            missingBooks.add(book);
+            for (int shard = 0; shard < book.getStockShards(); shard++) {
+                missingKeys.add(StockShard.createKey(book.getId(), shard));
+            }
+        }
+        if (missingKeys.isEmpty()) {
+            return available;
+        }
+        Map<Key<StockShard>, StockShard> shards =
+                ofy().transactionless().load().keys(missingKeys);
+        for (Book book : missingBooks) {
+            long total = 0;
+            for (int shard = 0; shard < book.getStockShards(); shard++) {
+                StockShard stockShard = shards.get(StockShard.createKey(book.getId(), shard));
+                total += stockShard == null ? 0 : stockShard.getAvailable();
+            }
+            availability.put(book.getId(), total);
+            available.put(book.getId(), total);
+        }
+        return available;
+    }
+
+    /**
+     * Adds copies of a book, spread evenly over its shards, in one transaction with the
+     * Book, so that the number of shards is checked against the stored one and never
+     * lowered. The stock of a book that is not tracked starts at the given quantity.
+     *
+     * @param bookKey the key of the Book.
+     * @param quantity the number of copies to add.
+     * @param shardCount the number of shards, null to keep the current one, or
+     *        DEFAULT_SHARD_COUNT when the book is not tracked yet.
+     * @return the Book, or null when it does not exist.
+     * @throws IllegalArgumentException when shardCount is lower than the current number of
+     *         shards, whose copies would no longer be counted.
+     */
+    public Book restock(final Key<Book> bookKey, final long quantity,
+            final Integer shardCount) {
+        final boolean[] resharded = new boolean[1];
+        Book book = ofy().transact(new Work<Book>() {
+            @Override
+            public Book run() {
+                Book book = ofy().load().key(bookKey).now();
+                if (book == null) {
+                    return null;
+                }
+                int current = book.getStockShards();
+                int count = shardCount != null ? shardCount
+                        : current > 0 ? current : DEFAULT_SHARD_COUNT;
+                if (count < current) {
+                    throw new IllegalArgumentException(
+                            "The number of shards must be at least " + current);
+                }
+                List<Key<StockShard>> keys = new ArrayList<>(count);
+                for (int shard = 0; shard < count; shard++) {
+                    keys.add(StockShard.createKey(book.getId(), shard));
+                }
+                Map<Key<StockShard>, StockShard> shards = ofy().load().keys(keys);
+                List<StockShard> updated = new ArrayList<>(count);
+                for (int shard = 0; shard < count; shard++) {
+                    StockShard stockShard = shards.get(keys.get(shard));
+                    if (stockShard == null) {
+                        stockShard = new StockShard(keys.get(shard));
+                    }
+                    stockShard.add(quantity / count + (shard < quantity % count ? 1 : 0));
+                    updated.add(stockShard);
+                }
+                ofy().save().entities(updated).now();
+                if (count != current) {
+                    book.setStockShards(count);
+                    ofy().save().entity(book).now();
+                }
+                resharded[0] = count != current;
+                return book;
+            }
+        });
+        if (book == null) {
+            return null;
+        }
+        if (resharded[0]) {
+            BookRepository.get().updateStockShards(book);
+        }
+        availability.invalidate(book.getId());
+        return book;
+    }
+
+    /**
+     * Reserves the copies of the tracked books of an order. A book that cannot be reserved
+     * in full gets its copies back at once; the caller releases the others when it rejects
+     * the order.
+     *
+     * @param order the order.
+     * @return the names of the books that are out of stock, empty when all were reserved.
+     */
+    public List<String> reserve(Cart order) {
+        Key<StockReservation> reservationKey = StockReservation.createKey(order.getKey());
+        // Not from BookRepository: a book cached before its first restock is not tracked
+        // there yet. Objectify reads the Books through memcache, which a restock updates.
+        Map<Key<Book>, Book> books = ofy().transactionless().load().keys(order.getBookKeys());
+        List<String> outOfStock = new ArrayList<>(0);
+        for (CartItem item : order.getItems()) {
+            Book book = books.get(item.getBookKey());
+            if (book == null || book.getStockShards() == 0 || item.getQuantity() == 0) {
+                continue;
+            }
+            if (!reserve(reservationKey, book, item.getQuantity())) {
+                outOfStock.add(book.getName());
+            }
+        }
+        return outOfStock;
+    }
+
+    /**
+     * Keeps the reservation of an order from expiring while its payment is in flight, in
+     * the transaction that checks the order before charging it. The expiry is postponed by
+     * a whole RESERVATION_MILLIS, so the sweeper cannot release the copies of an order that
+     * is being charged.
+     *
+     * @param orderKey the key of the order.
+     * @return false when the reservation was already released, so the order must not be
+     *         charged.
+     */
+    public boolean pin(Key<Cart> orderKey) {
+        StockReservation reservation = ofy().load().key(StockReservation.createKey(orderKey)).now();
+        if (reservation == null) {
+            // No tracked book in the order.
+            return true;
+        }
+        if (!reservation.isHeld()) {
+            return false;
+        }
+        reservation.extend(new Date(System.currentTimeMillis() + RESERVATION_MILLIS));
+        ofy().save().entity(reservation).now();
+        return true;
+    }
+
+    /**
+     * Commits the reservation of an order, in the transaction that confirms the order.
+     *
+     * @param orderKey the key of the order.
+     */
+    public void commit(Key<Cart> orderKey) {
+        StockReservation reservation = ofy().load().key(StockReservation.createKey(orderKey)).now();
+        if (reservation != null && reservation.isHeld()) {
+            reservation.commit();
+            ofy().save().entity(reservation).now();
+        }
+    }
+
+    /**
+     * Releases the reservation of an order and returns its copies to their shards. An order
+     * that is not final yet is rejected, as its reservation expired.
+     *
+     * @param orderKey the key of the order.
+     */
+    public void release(final Key<Cart> orderKey) {
+        final Key<StockReservation> reservationKey = StockReservation.createKey(orderKey);
+        StockReservation released = ofy().transact(new Work<StockReservation>() {
+            @Override
+            public StockReservation run() {
+                StockReservation reservation = ofy().load().key(reservationKey).now();
+                if (reservation == null
+                        || reservation.getStatus() == StockReservation.Status.COMMITTED) {
+                    return null;
+                }
+                if (reservation.isHeld()) {
+                    reservation.release();
+                    ofy().save().entity(reservation).now();
+                    Cart order = ofy().load().key(orderKey).now();
+                    if (order != null && !order.getStatus().isFinal()) {
+                        order.setStatus(OrderStatus.REJECTED, "The stock reservation expired");
+                        ofy().save().entity(order).now();
+                    }
+                }
+                return reservation;
+            }
+        });
+        if (released != null) {
+            returnStock(reservationKey, released.getShardKeys(null));
+        }
+    }
+
+    /**
+     * Releases the reservations that expired, and finishes the releases that stopped
+     * halfway, a batch at a time.
+     *
+     * @param deadline the time in milliseconds after which no batch is started.
+     * @return the number of reservations released.
+     */
+    public int releaseExpired(long deadline) {
+        int released = 0;
+        while (System.currentTimeMillis() < deadline) {
+            List<Key<StockReservation>> keys = ofy().load().type(StockReservation.class)
+                    .filter("expiresAt <", new Date())
+                    .limit(SWEEP_BATCH_SIZE)
+                    .keys().list();
+            if (keys.isEmpty()) {
+                break;
+            }
+            for (Key<StockReservation> key : keys) {
+                release(key.<Cart>getParent());
+                released++;
+            }
+        }
+        return released;
+    }
+
+    /**
+     * Takes the given quantity of a book from its shards, in random order.
+     *
+     * @return false when the book does not have enough copies left.
+     */
+    private boolean reserve(final Key<StockReservation> reservationKey, final Book book,
+            long quantity) {
+        StockReservation reservation = ofy().load().key(reservationKey).now();
+        if (reservation != null) {
+            if (!reservation.isHeld() || reservation.isReserved(book.getId())) {
+                return true;
+            }
+            // A previous attempt stopped halfway: start again from the whole quantity.
+            returnStock(reservationKey, reservation.getShardKeys(book.getId()));
+        }
+
+        List<Integer> shards = new ArrayList<>(book.getStockShards());
+        for (int shard = 0; shard < book.getStockShards(); shard++) {
+            shards.add(shard);
+        }
+        Collections.shuffle(shards, random);
+        long remaining = quantity;
+        for (int shard : shards) {
+            if (remaining == 0) {
+                break;
+            }
+            remaining -= take(reservationKey, StockShard.createKey(book.getId(), shard), remaining);
+        }
+        availability.invalidate(book.getId());
+        if (remaining > 0) {
+            StockReservation partial = ofy().load().key(reservationKey).now();
+            if (partial != null) {
+                returnStock(reservationKey, partial.getShardKeys(book.getId()));
+            }
+            return false;
+        }
+
+        ofy().transact(new VoidWork() {
+            @Override
+            public void vrun() {
+                StockReservation reservation = ofy().load().key(reservationKey).now();
+                reservation.markReserved(book.getId());
+                ofy().save().entity(reservation).now();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Takes up to the given quantity from one shard, recording it in the reservation.
+     *
+     * @return the quantity taken.
+     */
+    private long take(final Key<StockReservation> reservationKey, final Key<StockShard> shardKey,
+            final long quantity) {
+        return ofy().transact(new Work<Long>() {
+            @Override
+            public Long run() {
+                StockReservation reservation = ofy().load().key(reservationKey).now();
+                if (reservation == null) {
+                    reservation = new StockReservation(reservationKey.<Cart>getParent(),
+                            new Date(System.currentTimeMillis() + RESERVATION_MILLIS));
+                } else if (!reservation.isHeld()) {
+                    return 0L;
+                }
+                StockShard shard = ofy().load().key(shardKey).now();
+                long taken = shard == null ? 0 : shard.take(quantity);
+                if (taken > 0) {
+                    reservation.addTaken(shardKey, taken);
+                    ofy().save().entities(reservation, shard).now();
+                }
+                return taken;
+            }
+        });
+    }
+
+    /**
+     * Returns the copies taken from the given shards, one shard per transaction.
+     */
+    private void returnStock(final Key<StockReservation> reservationKey,
+            Collection<Key<StockShard>> shardKeys) {
+        for (final Key<StockShard> shardKey : shardKeys) {
+            ofy().transact(new VoidWork() {
+                @Override
+                public void vrun() {
+                    StockReservation reservation = ofy().load().key(reservationKey).now();
+                    long taken = reservation == null ? 0 : reservation.removeShard(shardKey);
+                    if (taken == 0) {
+                        return;
+                    }
+                    StockShard shard = ofy().load().key(shardKey).now();
+                    if (shard == null) {
+                        shard = new StockShard(shardKey);
+                    }
+                    shard.add(taken);
+                    ofy().save().entities(reservation, shard).now();
+                }
+            });
+        }
+    }
+}
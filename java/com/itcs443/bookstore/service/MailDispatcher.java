@@ -0,0 +1,406 @@
+package com.itcs443.bookstore.service;
+
+import static com.itcs443.bookstore.service.OfyService.ofy;
+
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskHandle;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.googlecode.objectify.Key;
+import com.itcs443.bookstore.domain.Cart;
+import com.itcs443.bookstore.domain.FailedEmail;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+
+/**
+ * Sends the confirmation e-mails of the confirmed orders.
+ *
+ * The payment stage of OrderPipeline adds each e-mail to a pull queue in the transaction
+ * that confirms the order. A cron job leases the pending e-mails in batches, loads the
+ * carts whose confirmation is not cached yet with one batch get, and sends them with one
+ * mail session, at most a fixed number per second. A confirmation is rendered once, on its
+ * first attempt, and retries use the cached rendering.
+ *
+ * A failed e-mail is enqueued again with its attempt count in the "attempts" parameter and
+ * an exponential backoff, and is moved to the FailedEmail kind once its retry budget is
+ * spent. The retry count of the queue is not used: it also grows when a lease is given back
+ * unsent at the end of a run. A run stops early after a few failures in a row, so that an
+ * unavailable mail provider is not hammered.
+ *
+ * The session is built from the "mail." system properties. Outside App Engine, with
+ * JavaMail ahead of the SDK on the classpath, setting mail.transport.protocol.rfc822 to smtp
+ * and mail.smtp.host and mail.smtp.port sends through an SMTP server, e.g. a local stand-in
+ * during tests.
+ */
+public class MailDispatcher {
+
+    private static final Logger LOG = Logger.getLogger(MailDispatcher.class.getName());
+
+    /**
+     * The pull queue of the pending e-mails, declared in queue.xml.
+     */
+    public static final String QUEUE_NAME = "confirmation-emails";
+
+    private static final int LEASE_BATCH_SIZE = 50;
+
+    /**
+     * Long enough to send a whole batch at the rate limit.
+     */
+    private static final long LEASE_SECONDS = 60;
+
+    /**
+     * The number of attempts before an e-mail is moved to the FailedEmail kind.
+     */
+    static final int MAX_ATTEMPTS = 8;
+
+    /**
+     * The task parameter counting the failed attempts to send an e-mail.
+     */
+    static final String ATTEMPTS_PARAM = "attempts";
+
+    private static final long BASE_BACKOFF_SECONDS = 30;
+
+    private static final long MAX_BACKOFF_SECONDS = 60 * 60;
+
+    private static final int MAX_CONSECUTIVE_FAILURES = 5;
+
+    /**
+     * The system property holding the largest number of e-mails sent per second.
+     */
+    private static final String RATE_PROPERTY = "bookstore.mail.maxPerSecond";
+
+    private static final double DEFAULT_MAX_PER_SECOND = 10;
+
+    private static final MailDispatcher INSTANCE = new MailDispatcher();
+
+    /**
+     * Counters of the e-mails handled by this instance since it started.
+     */
+    public static class Metrics {
+        private final long sent;
+        private final long failed;
+        private final long deadLettered;
+        private final long sendMillisTotal;
+        private final long sendMillisMax;
+        private final long queueDepth;
+
+        private Metrics(long sent, long failed, long deadLettered, long sendMillisTotal,
+                long sendMillisMax, long queueDepth) {
+            this.sent = sent;
+            this.failed = failed;
+            this.deadLettered = deadLettered;
+            this.sendMillisTotal = sendMillisTotal;
+            this.sendMillisMax = sendMillisMax;
+            this.queueDepth = queueDepth;
+        }
+
+        public long getSent() {
+            return sent;
+        }
+
+        public long getFailed() {
+            return failed;
+        }
+
+        public long getDeadLettered() {
+            return deadLettered;
+        }
+
+        /**
+         * The time spent sending e-mails, including the failed attempts.
+         */
+        public long getSendMillisTotal() {
+            return sendMillisTotal;
+        }
+
+        public long getSendMillisMax() {
+            return sendMillisMax;
+        }
+
+        /**
+         * The number of pending e-mails at the end of the last run, or -1 before the first.
+         */
+        public long getQueueDepth() {
+            return queueDepth;
+        }
+
+        @Override
+        public String toString() {
+            return "sent=" + sent + " failed=" + failed + " deadLettered=" + deadLettered
+                    + " avgSendMillis=" + (sent + failed == 0 ? 0 : sendMillisTotal / (sent + failed))
+                    + " maxSendMillis=" + sendMillisMax + " queueDepth=" + queueDepth;
+        }
+    }
+
+    private final Session session;
+
+    private final long minSendIntervalMillis;
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong deadLettered = new AtomicLong();
+    private final AtomicLong sendMillisTotal = new AtomicLong();
+    private final AtomicLong sendMillisMax = new AtomicLong();
+    private final AtomicLong queueDepth = new AtomicLong(-1);
+
+    private long nextSendAt;
+
+    private MailDispatcher() {
+        Properties props = new Properties();
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("mail.")) {
+                props.setProperty(name, System.getProperty(name));
+            }
+        }
+        session = Session.getInstance(props, null);
+
+        double maxPerSecond = DEFAULT_MAX_PER_SECOND;
+        String rate = System.getProperty(RATE_PROPERTY);
+        if (rate != null) {
+            maxPerSecond = Double.parseDouble(rate);
+        }
+        minSendIntervalMillis = (long) (1000 / maxPerSecond);
+    }
+
+    public static MailDispatcher get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Enqueues a confirmation e-mail. Only the key of the order is enqueued; the e-mail is
+     * rendered from the Cart when it is first sent.
+     *
+     * @param transaction the transaction to enqueue in, or null.
+     * @param email the address of the customer.
+     * @param name the display name of the customer.
+     * @param cartKey the key of the checked-out Cart.
+     */
+    public void enqueueConfirmation(Transaction transaction, String email, String name,
+            Key<Cart> cartKey) {
+        getQueue().add(transaction, TaskOptions.Builder.withMethod(TaskOptions.Method.PULL)
+                .param("email", email)
+                .param("name", name)
+                .param("cartKey", cartKey.getString()));
+    }
+
+    /**
+     * Enqueues a confirmation e-mail of an order known only by its summary, as enqueued
+     * before the cart key was passed.
+     *
+     * @param email the address of the customer.
+     * @param name the display name of the customer.
+     * @param cartInfo the summary of the order.
+     */
+    public void enqueueSummaryConfirmation(String email, String name, String cartInfo) {
+        getQueue().add(TaskOptions.Builder.withMethod(TaskOptions.Method.PULL)
+                .param("email", email)
+                .param("name", name)
+                .param("cartInfo", cartInfo));
+    }
+
+    /**
+     * Sends pending e-mails until the queue is empty or the deadline is reached.
+     *
+     * @param deadlineMillis the time at which no more e-mails are leased.
+     * @return the metrics after the run.
+     */
+    public Metrics dispatch(long deadlineMillis) {
+        Queue queue = getQueue();
+        int consecutiveFailures = 0;
+        while (System.currentTimeMillis() < deadlineMillis
+                && consecutiveFailures < MAX_CONSECUTIVE_FAILURES) {
+            List<TaskHandle> tasks = queue.leaseTasks(LEASE_SECONDS, TimeUnit.SECONDS,
+                    LEASE_BATCH_SIZE);
+            if (tasks.isEmpty()) {
+                break;
+            }
+            List<TaskHandle> done = new ArrayList<>(tasks.size());
+            List<TaskOptions> retries = new ArrayList<>();
+
+            // Reads every task, then loads the carts of the batch at once
+            Map<TaskHandle, Map<String, String>> paramsByTask = new LinkedHashMap<>();
+            Set<Key<Cart>> cartKeys = new HashSet<>();
+            for (TaskHandle task : tasks) {
+                try {
+                    Map<String, String> params = getParams(task);
+                    if (params.containsKey("cartKey")) {
+                        cartKeys.add(Key.<Cart>create(params.get("cartKey")));
+                    }
+                    paramsByTask.put(task, params);
+                } catch (UnsupportedEncodingException | RuntimeException e) {
+                    LOG.log(Level.SEVERE, "Unreadable e-mail task " + task.getName(), e);
+                    deadLetter(new LinkedHashMap<String, String>(), 0, e.toString());
+                    done.add(task);
+                }
+            }
+            Map<Key<Cart>, ConfirmationEmail.Content> contents =
+                    ConfirmationEmail.getCached(cartKeys);
+            cartKeys.removeAll(contents.keySet());
+            Map<Key<Cart>, Cart> carts = ofy().load().keys(cartKeys);
+
+            for (Map.Entry<TaskHandle, Map<String, String>> entry : paramsByTask.entrySet()) {
+                TaskHandle task = entry.getKey();
+                Map<String, String> params = entry.getValue();
+                if (System.currentTimeMillis() >= deadlineMillis
+                        || consecutiveFailures >= MAX_CONSECUTIVE_FAILURES) {
+                    // Released for the next run; this is not counted as an attempt.
+                    queue.modifyTaskLease(task, 0, TimeUnit.SECONDS);
+                    continue;
+                }
+                ConfirmationEmail.Content content = null;
+                if (params.containsKey("cartKey")) {
+                    Key<Cart> cartKey = Key.create(params.get("cartKey"));
+                    content = contents.get(cartKey);
+                    if (content == null) {
+                        Cart cart = carts.get(cartKey);
+                        if (cart == null) {
+                            deadLetter(params, getAttempts(params),
+                                    "No cart found with key: " + params.get("cartKey"));
+                            done.add(task);
+                            continue;
+                        }
+                        content = ConfirmationEmail.render(params.get("name"), cart);
+                        contents.put(cartKey, content);
+                    }
+                }
+                if (send(params, content)) {
+                    consecutiveFailures = 0;
+                    done.add(task);
+                } else {
+                    consecutiveFailures++;
+                    int attempts = getAttempts(params) + 1;
+                    if (attempts >= MAX_ATTEMPTS) {
+                        deadLetter(params, attempts, "Retry budget spent");
+                    } else {
+                        retries.add(createRetry(params, attempts));
+                    }
+                    done.add(task);
+                }
+            }
+            // The copies are added before the originals are deleted, so a failure in between
+            // can only send an e-mail twice, never lose it.
+            if (!retries.isEmpty()) {
+                queue.add(retries);
+            }
+            if (!done.isEmpty()) {
+                queue.deleteTask(done);
+            }
+        }
+        queueDepth.set(queue.fetchStatistics().getNumTasks());
+        Metrics metrics = getMetrics();
+        LOG.info("Confirmation e-mails: " + metrics);
+        return metrics;
+    }
+
+    public Metrics getMetrics() {
+        return new Metrics(sent.get(), failed.get(), deadLettered.get(), sendMillisTotal.get(),
+                sendMillisMax.get(), queueDepth.get());
+    }
+
+    private static Queue getQueue() {
+        return QueueFactory.getQueue(QUEUE_NAME);
+    }
+
+    private static Map<String, String> getParams(TaskHandle task)
+            throws UnsupportedEncodingException {
+        Map<String, String> params = new LinkedHashMap<>();
+        for (Map.Entry<String, String> param : task.extractParams()) {
+            params.put(param.getKey(), param.getValue());
+        }
+        return params;
+    }
+
+    private static int getAttempts(Map<String, String> params) {
+        try {
+            String attempts = params.get(ATTEMPTS_PARAM);
+            return attempts == null ? 0 : Integer.parseInt(attempts);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Returns a copy of an e-mail task with the given attempt count, due after the backoff.
+     */
+    private static TaskOptions createRetry(Map<String, String> params, int attempts) {
+        TaskOptions retry = TaskOptions.Builder.withMethod(TaskOptions.Method.PULL)
+                .countdownMillis(TimeUnit.SECONDS.toMillis(getBackoffSeconds(attempts - 1)));
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            if (!ATTEMPTS_PARAM.equals(param.getKey())) {
+                retry.param(param.getKey(), param.getValue());
+            }
+        }
+        return retry.param(ATTEMPTS_PARAM, Integer.toString(attempts));
+    }
+
+    private static long getBackoffSeconds(int attempts) {
+        return Math.min(MAX_BACKOFF_SECONDS, BASE_BACKOFF_SECONDS << Math.min(attempts, 20));
+    }
+
+    /**
+     * Sends one e-mail, waiting first for the rate limit.
+     *
+     * @param params the parameters of the e-mail.
+     * @param content the rendered confirmation, or null for an e-mail with a summary only.
+     * @return true when the e-mail was sent.
+     */
+    private boolean send(Map<String, String> params, ConfirmationEmail.Content content) {
+        throttle();
+        String email = params.get("email");
+        long startedAt = System.currentTimeMillis();
+        try {
+            Message message = content == null
+                    ? ConfirmationEmail.buildSummary(session, email, params.get("name"),
+                            params.get("cartInfo"))
+                    : ConfirmationEmail.build(session, email, content);
+            Transport.send(message);
+            sent.incrementAndGet();
+            return true;
+        } catch (MessagingException | UnsupportedEncodingException e) {
+            LOG.log(Level.WARNING, String.format("Failed to send an mail to %s", email), e);
+            failed.incrementAndGet();
+            return false;
+        } finally {
+            long millis = System.currentTimeMillis() - startedAt;
+            sendMillisTotal.addAndGet(millis);
+            long max;
+            do {
+                max = sendMillisMax.get();
+            } while (millis > max && !sendMillisMax.compareAndSet(max, millis));
+        }
+    }
+
+    private synchronized void throttle() {
+        long now = System.currentTimeMillis();
+        if (nextSendAt > now) {
+            try {
+                Thread.sleep(nextSendAt - now);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        nextSendAt = Math.max(now, nextSendAt) + minSendIntervalMillis;
+    }
+
+    private void deadLetter(Map<String, String> params, int attempts, String reason) {
+        ofy().save().entity(new FailedEmail(params, attempts, reason)).now();
+        deadLettered.incrementAndGet();
+    }
+}
@@ -0,0 +1,200 @@
+package com.itcs443.bookstore.service;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.escape.Escaper;
+import com.google.common.html.HtmlEscapers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal template, parsed once and then rendered many times.
+ *
+ * {{name}} is replaced by the value of name, HTML-escaped in HTML templates.
+ * {{#items}}...{{/items}} is repeated for every map of the list items, the keys of the
+ * map hiding the outer ones, or rendered once when items is true or any other non-null value.
+ */
+public class MailTemplate {
+
+    /**
+     * One parsed part of a template.
+     */
+    private interface Segment {
+        void render(StringBuilder out, List<Map<String, ?>> scopes, Escaper escaper);
+    }
+
+    private static class Text implements Segment {
+        private final String text;
+
+        private Text(String text) {
+            this.text = text;
+        }
+
+        @Override
+        public void render(StringBuilder out, List<Map<String, ?>> scopes, Escaper escaper) {
+            out.append(text);
+        }
+    }
+
+    private static class Variable implements Segment {
+        private final String name;
+
+        private Variable(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void render(StringBuilder out, List<Map<String, ?>> scopes, Escaper escaper) {
+            Object value = lookup(scopes, name);
+            if (value != null) {
+                out.append(escaper == null ? value.toString() : escaper.escape(value.toString()));
+            }
+        }
+    }
+
+    private static class Section implements Segment {
+        private final String name;
+        private final List<Segment> children;
+
+        private Section(String name, List<Segment> children) {
+            this.name = name;
+            this.children = children;
+        }
+
+        @Override
+        public void render(StringBuilder out, List<Map<String, ?>> scopes, Escaper escaper) {
+            Object value = lookup(scopes, name);
+            if (value == null || Boolean.FALSE.equals(value)) {
+                return;
+            }
+            if (value instanceof List) {
+                for (Object element : (List<?>) value) {
+                    @SuppressWarnings("unchecked")
+                    Map<String, ?> scope = (Map<String, ?>) element;
+                    scopes.add(scope);
+                    renderAll(children, out, scopes, escaper);
+                    scopes.remove(scopes.size() - 1);
+                }
+            } else {
+                renderAll(children, out, scopes, escaper);
+            }
+        }
+    }
+
+    /**
+     * The buffer of each thread, reused by every render.
+     */
+    private static final ThreadLocal<StringBuilder> buffers = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(4096);
+        }
+    };
+
+    private final List<Segment> segments;
+
+    private final Escaper escaper;
+
+    private MailTemplate(List<Segment> segments, Escaper escaper) {
+        this.segments = segments;
+        this.escaper = escaper;
+    }
+
+    /**
+     * Parses a plain text template.
+     *
+     * @param source the template.
+     * @return the parsed template.
+     * @throws IllegalArgumentException when a tag or section is not closed.
+     */
+    public static MailTemplate text(String source) {
+        return new MailTemplate(parse(source), null);
+    }
+
+    /**
+     * Parses an HTML template, whose values are escaped.
+     *
+     * @param source the template.
+     * @return the parsed template.
+     * @throws IllegalArgumentException when a tag or section is not closed.
+     */
+    public static MailTemplate html(String source) {
+        return new MailTemplate(parse(source), HtmlEscapers.htmlEscaper());
+    }
+
+    /**
+     * Renders the template with the given values.
+     *
+     * @param values the values of the template.
+     * @return the rendered text.
+     */
+    public String render(Map<String, ?> values) {
+        StringBuilder out = buffers.get();
+        out.setLength(0);
+        List<Map<String, ?>> scopes = new ArrayList<>(2);
+        scopes.add(values);
+        renderAll(segments, out, scopes, escaper);
+        return out.toString();
+    }
+
+    private static void renderAll(List<Segment> segments, StringBuilder out,
+            List<Map<String, ?>> scopes, Escaper escaper) {
+        for (Segment segment : segments) {
+            segment.render(out, scopes, escaper);
+        }
+    }
+
+    private static Object lookup(List<Map<String, ?>> scopes, String name) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            Map<String, ?> scope = scopes.get(i);
+            if (scope.containsKey(name)) {
+                return scope.get(name);
+            }
+        }
+        return null;
+    }
+
+    private static List<Segment> parse(String source) {
+        List<List<Segment>> stack = new ArrayList<>();
+        List<String> sectionNames = new ArrayList<>();
+        List<Segment> current = new ArrayList<>();
+        int position = 0;
+        while (position < source.length()) {
+            int open = source.indexOf("{{", position);
+            if (open < 0) {
+                current.add(new Text(source.substring(position)));
+                break;
+            }
+            if (open > position) {
+                current.add(new Text(source.substring(position, open)));
+            }
+            int close = source.indexOf("}}", open);
+            if (close < 0) {
+                throw new IllegalArgumentException("Unclosed tag at " + open);
+            }
+            String tag = source.substring(open + 2, close).trim();
+            if (tag.startsWith("#")) {
+                stack.add(current);
+                sectionNames.add(tag.substring(1));
+                current = new ArrayList<>();
+            } else if (tag.startsWith("/")) {
+                if (sectionNames.isEmpty()
+                        || !sectionNames.get(sectionNames.size() - 1).equals(tag.substring(1))) {
+                    throw new IllegalArgumentException("Unexpected " + tag + " at " + open);
+                }
+                Section section = new Section(sectionNames.remove(sectionNames.size() - 1),
+                        ImmutableList.copyOf(current));
+                current = stack.remove(stack.size() - 1);
+                current.add(section);
+            } else {
+                current.add(new Variable(tag));
+            }
+            position = close + 2;
+        }
+        if (!sectionNames.isEmpty()) {
+            throw new IllegalArgumentException("Unclosed section " + sectionNames.get(0));
+        }
+        return ImmutableList.copyOf(current);
+    }
+}
@@ -5,7 +5,17 @@ import com.googlecode.objectify.ObjectifyFactory;
 import com.googlecode.objectify.ObjectifyService;
 import com.itcs443.bookstore.domain.Book;
 import com.itcs443.bookstore.domain.Cart;
+import com.itcs443.bookstore.domain.CartJournal;
+import com.itcs443.bookstore.domain.CartOperation;
+import com.itcs443.bookstore.domain.FailedEmail;
+import com.itcs443.bookstore.domain.IdempotencyRecord;
+import com.itcs443.bookstore.domain.ImportCheckpoint;
 import com.itcs443.bookstore.domain.Profile;
+import com.itcs443.bookstore.domain.SalesCounterShard;
+import com.itcs443.bookstore.domain.SalesReceipt;
+import com.itcs443.bookstore.domain.SalesStatsState;
+import com.itcs443.bookstore.domain.StockReservation;
+import com.itcs443.bookstore.domain.StockShard;
 
 /**
  * Custom Objectify Service that this application should use.
@@ -18,6 +28,16 @@ public class OfyService {
         factory().register(Profile.class);
         factory().register(Book.class);
         factory().register(Cart.class);
+        factory().register(CartJournal.class);
+        factory().register(CartOperation.class);
+        factory().register(ImportCheckpoint.class);
+        factory().register(SalesCounterShard.class);
+        factory().register(SalesReceipt.class);
+        factory().register(SalesStatsState.class);
+        factory().register(FailedEmail.class);
+        factory().register(IdempotencyRecord.class);
+        factory().register(StockShard.class);
+        factory().register(StockReservation.class);
 
     }
 
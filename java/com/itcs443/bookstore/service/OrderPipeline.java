@@ -0,0 +1,322 @@
+package com.itcs443.bookstore.service;
+
+import static com.itcs443.bookstore.service.OfyService.factory;
+import static com.itcs443.bookstore.service.OfyService.ofy;
+
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.common.base.Joiner;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.VoidWork;
+import com.googlecode.objectify.Work;
+import com.itcs443.bookstore.domain.Book;
+import com.itcs443.bookstore.domain.Cart;
+import com.itcs443.bookstore.domain.OrderStatus;
+import com.itcs443.bookstore.domain.Profile;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * The stages an order goes through after checkout took it.
+ *
+ * checkout only saves the order as RECEIVED and enqueues the first stage, so it answers
+ * quickly whatever the load. Each stage then runs as a task of its own push queue, whose
+ * max-concurrent-requests in queue.xml bounds how many orders are in it at once:
+ * VALIDATE checks the cart and the form, PRICE reprices the cart with the current books
+ * and reserves their stock in the Inventory, and PAY charges it through the
+ * PaymentProcessor, after pinning the reservation so that it cannot expire while the charge
+ * is in flight. A paid order commits its reservation and enqueues the sales counter update
+ * and the confirmation e-mail; a rejected or declined order releases it. A charge whose
+ * order left the PRICED status anyway is refunded.
+ *
+ * checkout clears the ongoing cart of the customer, so a stage that rejects an order, or
+ * whose payment is declined, puts its books back in a new ongoing cart, in the same
+ * transaction. A customer who started another cart meanwhile keeps that one.
+ *
+ * A stage moves the order to its next status and enqueues the next stage in the same
+ * transaction, and does nothing when the order is not in the status it expects. A task
+ * that is retried, or run twice, therefore never applies a stage twice.
+ */
+public class OrderPipeline {
+
+    private static final Logger LOG = Logger.getLogger(OrderPipeline.class.getName());
+
+    /**
+     * The URL of ProcessOrderServlet, which runs the stages.
+     */
+    public static final String URL = "/tasks/process_order";
+
+    /**
+     * The system property naming the PaymentProcessor class.
+     */
+    private static final String PROCESSOR_PROPERTY = "bookstore.payment.processor";
+
+    private static final PaymentProcessor processor = createPaymentProcessor();
+
+    /**
+     * A stage of the pipeline and the queue it runs in.
+     */
+    public enum Stage {
+        VALIDATE("checkout-validate", OrderStatus.RECEIVED),
+        PRICE("checkout-price", OrderStatus.VALIDATED),
+        PAY("checkout-payment", OrderStatus.PRICED);
+
+        private final String queueName;
+
+        private final OrderStatus expectedStatus;
+
+        Stage(String queueName, OrderStatus expectedStatus) {
+            this.queueName = queueName;
+            this.expectedStatus = expectedStatus;
+        }
+    }
+
+    private OrderPipeline() {}
+
+    /**
+     * Enqueues a stage of the given order.
+     *
+     * @param transaction the transaction to enqueue in, or null.
+     * @param stage the stage to run.
+     * @param orderKey the key of the checked-out Cart.
+     */
+    public static void enqueue(Transaction transaction, Stage stage, Key<Cart> orderKey) {
+        QueueFactory.getQueue(stage.queueName).add(transaction,
+                TaskOptions.Builder.withUrl(URL)
+                .param("stage", stage.name())
+                .param("orderKey", orderKey.getString()));
+    }
+
+    /**
+     * Runs a stage of the given order.
+     *
+     * @param stage the stage to run.
+     * @param orderKey the key of the checked-out Cart.
+     * @throws IOException when the payment provider could not be reached.
+     */
+    public static void run(Stage stage, Key<Cart> orderKey) throws IOException {
+        switch (stage) {
+            case VALIDATE:
+                validate(orderKey);
+                break;
+            case PRICE:
+                price(orderKey);
+                break;
+            default:
+                pay(orderKey);
+                break;
+        }
+    }
+
+    private static void validate(final Key<Cart> orderKey) {
+        ofy().transact(new VoidWork() {
+            @Override
+            public void vrun() {
+                Cart order = loadOrder(orderKey, Stage.VALIDATE);
+                if (order == null) {
+                    return;
+                }
+                String reason = getInvalidReason(order);
+                if (reason != null) {
+                    order.setStatus(OrderStatus.REJECTED, reason);
+                    restoreCart(order);
+                } else {
+                    order.setStatus(OrderStatus.VALIDATED, null);
+                    enqueue(ofy().getTransaction(), Stage.PRICE, orderKey);
+                }
+                ofy().save().entity(order).now();
+            }
+        });
+    }
+
+    private static void price(final Key<Cart> orderKey) {
+        // Loads the books before the transaction, so that they are not enlisted in it.
+        Cart current = ofy().load().key(orderKey).now();
+        if (current == null || current.getStatus() != Stage.PRICE.expectedStatus) {
+            return;
+        }
+        final Map<Key<Book>, Book> books = BookRepository.get().get(current.getBookKeys());
+        final List<String> missingKeys = new ArrayList<>(0);
+        for (Key<Book> bookKey : current.getBookKeys()) {
+            if (!books.containsKey(bookKey)) {
+                missingKeys.add(bookKey.getString());
+            }
+        }
+        // The stock is taken shard by shard, each in a transaction of its own.
+        final List<String> outOfStock = missingKeys.isEmpty()
+                ? Inventory.get().reserve(current) : new ArrayList<String>(0);
+
+        OrderStatus status = ofy().transact(new Work<OrderStatus>() {
+            @Override
+            public OrderStatus run() {
+                Cart order = loadOrder(orderKey, Stage.PRICE);
+                if (order == null) {
+                    return null;
+                }
+                if (!missingKeys.isEmpty()) {
+                    order.setStatus(OrderStatus.REJECTED,
+                            "No book found with key: " + Joiner.on(", ").join(missingKeys));
+                } else if (!outOfStock.isEmpty()) {
+                    order.setStatus(OrderStatus.REJECTED,
+                            "Out of stock: " + Joiner.on(", ").join(outOfStock));
+                } else {
+                    order.reprice(books);
+                    order.setStatus(OrderStatus.PRICED, null);
+                    enqueue(ofy().getTransaction(), Stage.PAY, orderKey);
+                }
+                if (order.getStatus() == OrderStatus.REJECTED) {
+                    restoreCart(order);
+                }
+                ofy().save().entity(order).now();
+                return order.getStatus();
+            }
+        });
+        if (status == OrderStatus.REJECTED) {
+            Inventory.get().release(orderKey);
+        }
+    }
+
+    private static void pay(final Key<Cart> orderKey) throws IOException {
+        // Checks the order and pins its reservation, so that the sweeper cannot reject it
+        // while the charge is in flight.
+        Cart current = ofy().transact(new Work<Cart>() {
+            @Override
+            public Cart run() {
+                Cart order = loadOrder(orderKey, Stage.PAY);
+                if (order == null || !Inventory.get().pin(orderKey)) {
+                    return null;
+                }
+                return order;
+            }
+        });
+        if (current == null) {
+            return;
+        }
+        // Outside of the transaction: the processor charges an order at most once.
+        final PaymentProcessor.Result result = processor.charge(orderKey.getString(), current);
+
+        OrderStatus status = ofy().transact(new Work<OrderStatus>() {
+            @Override
+            public OrderStatus run() {
+                Cart order = loadOrder(orderKey, Stage.PAY);
+                if (order == null) {
+                    return null;
+                }
+                if (!result.isApproved()) {
+                    order.setStatus(OrderStatus.PAYMENT_DECLINED, result.getReason());
+                    restoreCart(order);
+                    ofy().save().entity(order).now();
+                    return order.getStatus();
+                }
+                order.setPaymentId(result.getPaymentId());
+                order.setStatus(OrderStatus.CONFIRMED, null);
+                ofy().save().entity(order).now();
+                // The reservation is a child of the order, so it is in the same entity group.
+                Inventory.get().commit(orderKey);
+
+                // The Profile is the parent of the cart, so it is in the same entity group.
+                Profile profile = ofy().load().key(order.getProfileKey()).now();
+                if (profile != null) {
+                    MailDispatcher.get().enqueueConfirmation(ofy().getTransaction(),
+                            profile.getMainEmail(), profile.getDisplayName(), orderKey);
+                }
+                SalesStats.enqueueUpdate(ofy().getTransaction(), orderKey);
+                return order.getStatus();
+            }
+        });
+        if (status == OrderStatus.PAYMENT_DECLINED) {
+            Inventory.get().release(orderKey);
+        } else if (status == null && result.isApproved()) {
+            refund(orderKey, result.getPaymentId());
+        }
+    }
+
+    /**
+     * Refunds the charge of an order that left the PRICED status while it was charged.
+     */
+    private static void refund(Key<Cart> orderKey, String paymentId) {
+        LOG.warning("Order " + orderKey.getString() + " was charged as " + paymentId
+                + " after it left the PRICED status, refunding it");
+        try {
+            processor.refund(orderKey.getString(), paymentId);
+        } catch (IOException e) {
+            // Not retried: a retry of the stage skips the order, as it is no longer PRICED.
+            LOG.severe("Cannot refund " + paymentId + " of order " + orderKey.getString()
+                    + ", it must be refunded by hand: " + e);
+        }
+    }
+
+    /**
+     * Puts the books of a rejected order back in a new ongoing cart of its customer, unless
+     * the customer already has one. Must run in the transaction of the order: the Profile
+     * and the new Cart are in its entity group.
+     */
+    private static void restoreCart(Cart order) {
+        Profile profile = ofy().load().key(order.getProfileKey()).now();
+        if (profile == null || profile.haveOngoingOrder() || order.getItems().isEmpty()) {
+            return;
+        }
+        Key<Cart> cartKey = factory().allocateId(order.getProfileKey(), Cart.class);
+        Cart cart = order.copyItems(cartKey.getId());
+        profile.update(cart.getWebsafeKey());
+        ofy().save().entities(cart, profile).now();
+    }
+
+    /**
+     * Loads the order in the current transaction.
+     *
+     * @return the order, or null when it is not in the status the stage expects.
+     */
+    private static Cart loadOrder(Key<Cart> orderKey, Stage stage) {
+        Cart order = ofy().load().key(orderKey).now();
+        if (order == null) {
+            LOG.warning("No order found with key: " + orderKey.getString());
+            return null;
+        }
+        if (order.getStatus() != stage.expectedStatus) {
+            LOG.info("Order " + orderKey.getString() + " is " + order.getStatus()
+                    + ", skipping " + stage);
+            return null;
+        }
+        return order;
+    }
+
+    /**
+     * Returns why the order cannot be processed, or null when it is valid.
+     */
+    private static String getInvalidReason(Cart order) {
+        if (order.getItems().isEmpty()) {
+            return "The cart is empty";
+        }
+        if (isBlank(order.getAddress())) {
+            return "The address is required";
+        }
+        if (isBlank(order.getCardName()) || isBlank(order.getCardNumber())
+                || isBlank(order.getCardExpiryDate()) || order.getCardCcv() == null) {
+            return "The card details are required";
+        }
+        return null;
+    }
+
+    private static boolean isBlank(String value) {
+        return value == null || value.trim().isEmpty();
+    }
+
+    private static PaymentProcessor createPaymentProcessor() {
+        String className = System.getProperty(PROCESSOR_PROPERTY);
+        if (className == null) {
+            return new StubPaymentProcessor();
+        }
+        try {
+            return (PaymentProcessor) Class.forName(className)
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create the payment processor " + className, e);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.itcs443.bookstore.service;
+
+import com.itcs443.bookstore.domain.Cart;
+
+import java.io.IOException;
+
+/**
+ * Charges the card of an order, called by the payment stage of the checkout pipeline.
+ *
+ * The stage is retried when the charge throws or its result could not be recorded, so an
+ * implementation must charge an order at most once, using the order id as the idempotency
+ * key of the provider. The implementation is named by the bookstore.payment.processor
+ * system property, StubPaymentProcessor by default.
+ */
+public interface PaymentProcessor {
+
+    /**
+     * The outcome of a charge.
+     */
+    class Result {
+        private final boolean approved;
+        private final String paymentId;
+        private final String reason;
+
+        private Result(boolean approved, String paymentId, String reason) {
+            this.approved = approved;
+            this.paymentId = paymentId;
+            this.reason = reason;
+        }
+
+        public static Result approved(String paymentId) {
+            return new Result(true, paymentId, null);
+        }
+
+        public static Result declined(String reason) {
+            return new Result(false, null, reason);
+        }
+
+        public boolean isApproved() {
+            return approved;
+        }
+
+        public String getPaymentId() {
+            return paymentId;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+    }
+
+    /**
+     * Charges the total of the given order to its card.
+     *
+     * @param orderId the websafe key of the order, unique per order.
+     * @param order the priced order.
+     * @return whether the charge was approved.
+     * @throws IOException when the provider could not be reached; the stage is retried.
+     */
+    Result charge(String orderId, Cart order) throws IOException;
+
+    /**
+     * Refunds a charge whose order could not be confirmed, e.g. because it was rejected
+     * while the charge was in flight. Refunding a payment twice must refund it once.
+     *
+     * @param orderId the websafe key of the order.
+     * @param paymentId the payment id of the approved charge.
+     * @throws IOException when the provider could not be reached.
+     */
+    void refund(String orderId, String paymentId) throws IOException;
+}
@@ -0,0 +1,153 @@
+package com.itcs443.bookstore.service;
+
+import static com.itcs443.bookstore.service.OfyService.ofy;
+
+import com.google.appengine.api.users.User;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.LoadResult;
+import com.itcs443.bookstore.domain.Cart;
+import com.itcs443.bookstore.domain.Profile;
+
+/**
+ * Holds the caller's Profile and ongoing Cart for the duration of one API call.
+ *
+ * The Profile load starts as soon as the context is created, and the Cart is loaded at
+ * most once per call. Inside a transaction, loadForTransaction() reloads both in a single
+ * batch, using the already known cart key instead of waiting for the Profile first.
+ */
+public class RequestContext {
+
+    private final User user;
+
+    private final Key<Profile> profileKey;
+
+    private LoadResult<Profile> profileResult;
+
+    private Profile profile;
+
+    private boolean cartLoaded;
+
+    private Cart cart;
+
+    private RequestContext(User user) {
+        this.user = user;
+        this.profileKey = Key.create(Profile.class, user.getUserId());
+        // Objectify loads are asynchronous, so this only starts the fetch.
+        this.profileResult = ofy().load().key(profileKey);
+    }
+
+    /**
+     * Creates the context of the given user and starts loading the Profile.
+     *
+     * @param user the signed in user.
+     * @return the context of the user.
+     */
+    public static RequestContext forUser(User user) {
+        return new RequestContext(user);
+    }
+
+    /*
+     * Get the display name from the user's email. For example, if the email is
+     * nutjane@example.com, then the display name becomes "nutjane."
+     */
+    public static String extractDefaultDisplayNameFromEmail(String email) {
+        return email == null ? null : email.substring(0, email.indexOf("@"));
+    }
+
+    public User getUser() {
+        return user;
+    }
+
+    public Key<Profile> getProfileKey() {
+        return profileKey;
+    }
+
+    /**
+     * Returns true when the user has saved a Profile.
+     *
+     * @return true when the Profile exists in the datastore.
+     */
+    public boolean hasStoredProfile() {
+        getProfile();
+        return profileResult.now() != null;
+    }
+
+    /**
+     * Gets the Profile entity for the current user
+     * or creates it if it doesn't exist. A created Profile is not saved.
+     *
+     * @return user's Profile
+     */
+    public Profile getProfile() {
+        if (profile == null) {
+            profile = profileResult.now();
+            if (profile == null) {
+                // Create a new Profile if it doesn't exist.
+                String email = user.getEmail();
+                profile = new Profile(user.getUserId(),
+                        extractDefaultDisplayNameFromEmail(email), email, "");
+            }
+        }
+        return profile;
+    }
+
+    /**
+     * Returns the key of the ongoing cart of the user.
+     *
+     * @return the key of the ongoing Cart, or null when there is none.
+     */
+    public Key<Cart> getOngoingCartKey() {
+        Profile profile = getProfile();
+        return profile.haveOngoingOrder() ? Key.<Cart>create(profile.getOnGoingCartId()) : null;
+    }
+
+    /**
+     * Returns the ongoing cart of the user, loading it on the first call.
+     *
+     * @return the ongoing Cart, or null when there is none.
+     */
+    public Cart getOngoingCart() {
+        if (!cartLoaded) {
+            Key<Cart> cartKey = getOngoingCartKey();
+            cart = cartKey == null ? null : ofy().load().key(cartKey).now();
+            cartLoaded = true;
+        }
+        return cart;
+    }
+
+    /**
+     * Reloads the Profile and the ongoing Cart with the current Objectify instance, so that
+     * inside a transaction both are enlisted in it. Both are fetched in one batch with the
+     * cart key known so far, and the Cart is only fetched again if the Profile now points
+     * to another one. Safe to call again when the transaction is retried.
+     *
+     * @return the reloaded Profile, created if it doesn't exist.
+     */
+    public Profile loadForTransaction() {
+        Key<Cart> knownCartKey = getOngoingCartKey();
+        profileResult = ofy().load().key(profileKey);
+        LoadResult<Cart> cartResult = knownCartKey == null ? null : ofy().load().key(knownCartKey);
+
+        profile = null;
+        Key<Cart> cartKey = getOngoingCartKey();
+        if (cartKey == null) {
+            cart = null;
+        } else if (cartKey.equals(knownCartKey)) {
+            cart = cartResult.now();
+        } else {
+            cart = ofy().load().key(cartKey).now();
+        }
+        cartLoaded = true;
+        return profile;
+    }
+
+    /**
+     * Replaces the ongoing cart, e.g. after a new one was created in a transaction.
+     *
+     * @param cart the new ongoing Cart.
+     */
+    public void setOngoingCart(Cart cart) {
+        this.cart = cart;
+        this.cartLoaded = true;
+    }
+}
@@ -0,0 +1,482 @@
+package com.itcs443.bookstore.service;
+
+import static com.itcs443.bookstore.service.OfyService.ofy;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.VoidWork;
+import com.googlecode.objectify.Work;
+import com.googlecode.objectify.cmd.Query;
+import com.itcs443.bookstore.domain.Book;
+import com.itcs443.bookstore.domain.Cart;
+import com.itcs443.bookstore.domain.CartItem;
+import com.itcs443.bookstore.domain.Money;
+import com.itcs443.bookstore.domain.SalesCounterShard;
+import com.itcs443.bookstore.domain.SalesReceipt;
+import com.itcs443.bookstore.domain.SalesStatsState;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Sales counters maintained from confirmed orders: units sold and revenue per book,
+ * revenue and orders per day, and orders and revenue per customer.
+ *
+ * The payment stage of OrderPipeline enqueues a task in the transaction that confirms an
+ * order, and the task adds the cart to the counters.
+ * A cart is added in a few transactions, each covering at most BOOKS_PER_TRANSACTION books
+ * to stay under the cross-group limit, and each saving a SalesReceipt so that it is never
+ * counted twice. Reading a set of counters is one batch get of their shards.
+ *
+ * Counters belong to an epoch. A rebuild fills a new epoch from the cart history while new
+ * checkouts are added to both epochs, the receipts keeping the two paths from counting a
+ * cart twice, and the new epoch is served once the whole history was read. The counters
+ * and receipts of the epochs that are no longer served are then deleted.
+ */
+public class SalesStats {
+
+    /**
+     * Counters of one kind, with the number of shards they are split into.
+     */
+    public enum CounterType {
+        /**
+         * Updated by every checkout.
+         */
+        DAY("day", 8),
+        BOOK("book", 4),
+        CUSTOMER("customer", 1);
+
+        private final String prefix;
+        private final int shardCount;
+
+        CounterType(String prefix, int shardCount) {
+            this.prefix = prefix;
+            this.shardCount = shardCount;
+        }
+
+        public String getCounterName(String id) {
+            return prefix + ":" + id;
+        }
+    }
+
+    /**
+     * The push queue of the counter updates, declared in queue.xml.
+     */
+    public static final String QUEUE_NAME = "sales-stats";
+
+    /**
+     * The largest number of books counted in one transaction. With the receipt, the day and
+     * the customer counters, a transaction stays under the limit of 25 entity groups.
+     */
+    public static final int BOOKS_PER_TRANSACTION = 20;
+
+    /**
+     * The largest number of days in one report.
+     */
+    public static final int MAX_DAYS = 92;
+
+    /**
+     * The largest number of books in one report.
+     */
+    public static final int MAX_BOOKS = 100;
+
+    /**
+     * The number of carts read by one step of a rebuild.
+     */
+    public static final int REBUILD_CHUNK_SIZE = 100;
+
+    private static final int PURGE_BATCH_SIZE = 500;
+
+    private static final Random random = new Random();
+
+    /**
+     * The totals of one counter.
+     */
+    public static class Total {
+        private final String id;
+        private long units;
+        private long revenueMinor;
+        private long orders;
+
+        private Total(String id) {
+            this.id = id;
+        }
+
+        /**
+         * The day (yyyy-MM-dd, UTC), websafe Book key or userId this total is about.
+         */
+        public String getId() {
+            return id;
+        }
+
+        public long getUnits() {
+            return units;
+        }
+
+        public long getRevenueMinor() {
+            return revenueMinor;
+        }
+
+        /**
+         * The revenue formatted in major units, for display.
+         */
+        public String getRevenue() {
+            return Money.format(revenueMinor);
+        }
+
+        public long getOrders() {
+            return orders;
+        }
+    }
+
+    /**
+     * The totals returned by getSalesStats.
+     */
+    public static class Report {
+        private final long epoch;
+        private final List<Total> days;
+        private final List<Total> books;
+        private final Total customer;
+
+        private Report(long epoch, List<Total> days, List<Total> books, Total customer) {
+            this.epoch = epoch;
+            this.days = days;
+            this.books = books;
+            this.customer = customer;
+        }
+
+        public long getEpoch() {
+            return epoch;
+        }
+
+        public List<Total> getDays() {
+            return days;
+        }
+
+        public List<Total> getBooks() {
+            return books;
+        }
+
+        public Total getCustomer() {
+            return customer;
+        }
+    }
+
+    private SalesStats() {}
+
+    /**
+     * Returns the day of the given date, as used in counter names.
+     *
+     * @param date the date.
+     * @return the day, formatted as yyyy-MM-dd in UTC.
+     */
+    public static String getDay(Date date) {
+        SimpleDateFormat dayFormat = new SimpleDateFormat("yyyy-MM-dd", Locale.ROOT);
+        dayFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return dayFormat.format(date);
+    }
+
+    /**
+     * Loads the current state, or the initial one when none was saved.
+     */
+    public static SalesStatsState loadState() {
+        SalesStatsState state = ofy().load().key(SalesStatsState.createKey()).now();
+        return state == null ? SalesStatsState.createInitial() : state;
+    }
+
+    /**
+     * Enqueues the update of the counters with a confirmed order.
+     *
+     * @param transaction the transaction to enqueue in, or null.
+     * @param cartKey the key of the confirmed Cart.
+     */
+    public static void enqueueUpdate(Transaction transaction, Key<Cart> cartKey) {
+        QueueFactory.getQueue(QUEUE_NAME).add(transaction,
+                TaskOptions.Builder.withUrl("/tasks/update_sales_stats")
+                .param("cartKey", cartKey.getString()));
+    }
+
+    /**
+     * Adds a checked-out cart to the served epoch, and to the epoch being rebuilt if any.
+     *
+     * @param cart the checked-out Cart.
+     */
+    public static void add(Cart cart) {
+        SalesStatsState state = loadState();
+        addToEpoch(cart, state.getEpoch());
+        if (state.isBuilding()) {
+            addToEpoch(cart, state.getBuildingEpoch());
+        }
+    }
+
+    /**
+     * Adds a checked-out cart to the counters of the given epoch, unless it was already.
+     *
+     * @param cart the checked-out Cart.
+     * @param epoch the epoch of the counters.
+     */
+    public static void addToEpoch(final Cart cart, final long epoch) {
+        final String websafeCartKey = cart.getWebsafeKey();
+        List<List<CartItem>> parts = Lists.partition(cart.getItems(), BOOKS_PER_TRANSACTION);
+        int partCount = Math.max(1, parts.size());
+        for (int part = 0; part < partCount; part++) {
+            final List<CartItem> items = parts.isEmpty()
+                    ? Collections.<CartItem>emptyList() : parts.get(part);
+            // The order wide counters are added with the first part.
+            final boolean firstPart = part == 0;
+            final Key<SalesReceipt> receiptKey = SalesReceipt.createKey(epoch, websafeCartKey, part);
+            ofy().transact(new VoidWork() {
+                @Override
+                public void vrun() {
+                    if (ofy().load().key(receiptKey).now() != null) {
+                        return;
+                    }
+                    Map<Key<SalesCounterShard>, Total> deltas = new LinkedHashMap<>();
+                    for (CartItem item : items) {
+                        addDelta(deltas, epoch, CounterType.BOOK, item.getWebsafeBookKey(),
+                                item.getQuantity(), item.getSubtotalMinor());
+                    }
+                    if (firstPart) {
+                        long units = getUnitCount(cart);
+                        if (cart.getDate() != null) {
+                            addDelta(deltas, epoch, CounterType.DAY, getDay(cart.getDate()),
+                                    units, cart.getTotalMinor());
+                        }
+                        addDelta(deltas, epoch, CounterType.CUSTOMER, cart.getCustomerUserID(),
+                                units, cart.getTotalMinor());
+                    }
+
+                    Map<Key<SalesCounterShard>, SalesCounterShard> shards =
+                            ofy().load().keys(deltas.keySet());
+                    List<Object> entities = new ArrayList<>(deltas.size() + 1);
+                    for (Map.Entry<Key<SalesCounterShard>, Total> entry : deltas.entrySet()) {
+                        SalesCounterShard shard = shards.get(entry.getKey());
+                        if (shard == null) {
+                            shard = new SalesCounterShard(entry.getKey());
+                        }
+                        Total delta = entry.getValue();
+                        shard.add(delta.units, delta.revenueMinor, delta.orders);
+                        entities.add(shard);
+                    }
+                    entities.add(new SalesReceipt(receiptKey));
+                    ofy().save().entities(entities).now();
+                }
+            });
+        }
+    }
+
+    /**
+     * Reads the served counters of the given days, books and customer with one batch get.
+     *
+     * @param days the days, formatted as yyyy-MM-dd.
+     * @param bookKeys the keys of the books.
+     * @param customerUserId the userId of the customer, or null.
+     * @return the totals, in the order they were asked for.
+     */
+    public static Report read(List<String> days, Collection<Key<Book>> bookKeys,
+            String customerUserId) {
+        long epoch = loadState().getEpoch();
+
+        Map<Total, List<Key<SalesCounterShard>>> shardKeys = new LinkedHashMap<>();
+        List<Total> dayTotals = new ArrayList<>(days.size());
+        for (String day : days) {
+            dayTotals.add(addTotal(shardKeys, epoch, CounterType.DAY, day));
+        }
+        List<Total> bookTotals = new ArrayList<>(bookKeys.size());
+        for (Key<Book> bookKey : bookKeys) {
+            bookTotals.add(addTotal(shardKeys, epoch, CounterType.BOOK, bookKey.getString()));
+        }
+        Total customerTotal = customerUserId == null
+                ? null : addTotal(shardKeys, epoch, CounterType.CUSTOMER, customerUserId);
+
+        List<Key<SalesCounterShard>> allKeys = new ArrayList<>();
+        for (List<Key<SalesCounterShard>> keys : shardKeys.values()) {
+            allKeys.addAll(keys);
+        }
+        Map<Key<SalesCounterShard>, SalesCounterShard> shards = ofy().load().keys(allKeys);
+        for (Map.Entry<Total, List<Key<SalesCounterShard>>> entry : shardKeys.entrySet()) {
+            Total total = entry.getKey();
+            for (Key<SalesCounterShard> key : entry.getValue()) {
+                SalesCounterShard shard = shards.get(key);
+                if (shard != null) {
+                    total.units += shard.getUnits();
+                    total.revenueMinor += shard.getRevenueMinor();
+                    total.orders += shard.getOrders();
+                }
+            }
+        }
+        return new Report(epoch, ImmutableList.copyOf(dayTotals),
+                ImmutableList.copyOf(bookTotals), customerTotal);
+    }
+
+    /**
+     * Starts a rebuild into a new epoch, unless one is already running.
+     *
+     * @param restart true to start over even if a rebuild is running.
+     * @return the epoch to rebuild, or null when a rebuild is already running.
+     */
+    public static Long startRebuild(final boolean restart) {
+        return ofy().transact(new Work<Long>() {
+            @Override
+            public Long run() {
+                SalesStatsState state = loadState();
+                if (state.isBuilding() && !restart) {
+                    return null;
+                }
+                long epoch = state.startBuilding();
+                ofy().save().entity(state).now();
+                return epoch;
+            }
+        });
+    }
+
+    /**
+     * Adds the next chunk of checked-out carts to the epoch being rebuilt.
+     *
+     * @param epoch the epoch being rebuilt.
+     * @param cursor the cursor returned by the previous step, null for the first one.
+     * @return the cursor of the next step, or null when every cart was read.
+     */
+    public static Cursor rebuildStep(long epoch, Cursor cursor) {
+        Query<Cart> query = ofy().load().type(Cart.class)
+                .filter("checkedOut", true).limit(REBUILD_CHUNK_SIZE);
+        if (cursor != null) {
+            query = query.startAt(cursor);
+        }
+        QueryResultIterator<Cart> iterator = query.iterator();
+        int count = 0;
+        while (iterator.hasNext()) {
+            Cart cart = iterator.next();
+            // Orders still in the checkout pipeline are counted once confirmed.
+            if (cart.isConfirmed()) {
+                addToEpoch(cart, epoch);
+            }
+            count++;
+        }
+        return count < REBUILD_CHUNK_SIZE ? null : iterator.getCursor();
+    }
+
+    /**
+     * Serves the rebuilt epoch, if it is still the one being rebuilt.
+     *
+     * @param epoch the epoch that was rebuilt.
+     * @return the epoch served until now, or null when the given epoch is not served. Every
+     *         epoch from it up to the given one is obsolete.
+     */
+    public static Long finishRebuild(final long epoch) {
+        return ofy().transact(new Work<Long>() {
+            @Override
+            public Long run() {
+                SalesStatsState state = loadState();
+                if (!state.isBuilding() || state.getBuildingEpoch() != epoch) {
+                    return null;
+                }
+                long previousEpoch = state.getEpoch();
+                state.finishBuilding();
+                ofy().save().entity(state).now();
+                return previousEpoch;
+            }
+        });
+    }
+
+    /**
+     * Deletes the counters and receipts of an epoch that is neither served nor being
+     * rebuilt, a batch at a time.
+     *
+     * @param epoch the obsolete epoch.
+     * @param deadline the time in milliseconds after which no batch is started.
+     * @return true when the epoch has nothing left to delete.
+     */
+    public static boolean purgeEpoch(long epoch, long deadline) {
+        SalesStatsState state = loadState();
+        if (epoch == state.getEpoch()
+                || (state.isBuilding() && epoch == state.getBuildingEpoch())) {
+            return true;
+        }
+        return purgeKind(SalesCounterShard.class, epoch, deadline)
+                && purgeKind(SalesReceipt.class, epoch, deadline);
+    }
+
+    /**
+     * Deletes the entities of the given kind whose name starts with the epoch.
+     *
+     * @return true when none is left.
+     */
+    private static boolean purgeKind(Class<?> kind, long epoch, long deadline) {
+        // The names are "epoch/...", so the entities of an epoch are one range of keys.
+        Key<?> first = Key.create(kind, epoch + "/");
+        Key<?> last = Key.create(kind, epoch + "/" + Character.MAX_VALUE);
+        while (System.currentTimeMillis() < deadline) {
+            List<? extends Key<?>> keys = ofy().load().type(kind)
+                    .filterKey(">=", first).filterKey("<", last)
+                    .limit(PURGE_BATCH_SIZE).keys().list();
+            if (keys.isEmpty()) {
+                return true;
+            }
+            ofy().delete().keys(keys).now();
+        }
+        return false;
+    }
+
+    /**
+     * Returns true when the given epoch is still the one being rebuilt.
+     *
+     * @param epoch the epoch of the rebuild.
+     * @return true when the rebuild was neither finished nor restarted.
+     */
+    public static boolean isBuilding(long epoch) {
+        SalesStatsState state = loadState();
+        return state.isBuilding() && state.getBuildingEpoch() == epoch;
+    }
+
+    private static Total addTotal(Map<Total, List<Key<SalesCounterShard>>> shardKeys, long epoch,
+            CounterType type, String id) {
+        Total total = new Total(id);
+        List<Key<SalesCounterShard>> keys = new ArrayList<>(type.shardCount);
+        for (int shard = 0; shard < type.shardCount; shard++) {
+            keys.add(SalesCounterShard.createKey(epoch, type.getCounterName(id), shard));
+        }
+        shardKeys.put(total, keys);
+        return total;
+    }
+
+    /**
+     * Adds one order to a random shard of the given counter.
+     */
+    private static void addDelta(Map<Key<SalesCounterShard>, Total> deltas, long epoch,
+            CounterType type, String id, long units, long revenueMinor) {
+        Total delta = new Total(id);
+        delta.units = units;
+        delta.revenueMinor = revenueMinor;
+        delta.orders = 1;
+        deltas.put(pickShard(epoch, type, id), delta);
+    }
+
+    private static Key<SalesCounterShard> pickShard(long epoch, CounterType type, String id) {
+        return SalesCounterShard.createKey(epoch, type.getCounterName(id),
+                random.nextInt(type.shardCount));
+    }
+
+    private static long getUnitCount(Cart cart) {
+        long units = 0;
+        for (CartItem item : cart.getItems()) {
+            units += item.getQuantity();
+        }
+        return units;
+    }
+}
@@ -0,0 +1,63 @@
+package com.itcs443.bookstore.service;
+
+import com.itcs443.bookstore.domain.Cart;
+
+import java.io.IOException;
+
+/**
+ * A local PaymentProcessor that charges nothing. It approves the cards whose number passes
+ * the Luhn check, e.g. 4111111111111111, and declines the others.
+ *
+ * The bookstore.payment.stubLatencyMillis system property adds a delay to every charge,
+ * to stand in for the provider in load tests.
+ */
+public class StubPaymentProcessor implements PaymentProcessor {
+
+    private static final String LATENCY_PROPERTY = "bookstore.payment.stubLatencyMillis";
+
+    private final long latencyMillis = Long.getLong(LATENCY_PROPERTY, 0);
+
+    @Override
+    public Result charge(String orderId, Cart order) throws IOException {
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while charging " + orderId);
+            }
+        }
+        if (!isValidCardNumber(order.getCardNumber())) {
+            return Result.declined("Invalid card number");
+        }
+        // The same order always gets the same payment id.
+        return Result.approved("stub-" + orderId);
+    }
+
+    @Override
+    public void refund(String orderId, String paymentId) throws IOException {
+        // Nothing was charged.
+    }
+
+    private static boolean isValidCardNumber(String cardNumber) {
+        if (cardNumber == null) {
+            return false;
+        }
+        String digits = cardNumber.replaceAll("[ -]", "");
+        if (digits.length() < 12 || !digits.matches("[0-9]+")) {
+            return false;
+        }
+        int sum = 0;
+        for (int i = 0; i < digits.length(); i++) {
+            int digit = digits.charAt(digits.length() - 1 - i) - '0';
+            if (i % 2 == 1) {
+                digit *= 2;
+                if (digit > 9) {
+                    digit -= 9;
+                }
+            }
+            sum += digit;
+        }
+        return sum % 10 == 0;
+    }
+}
@@ -0,0 +1,108 @@
+package com.itcs443.bookstore.servlet;
+
+import com.google.api.server.spi.config.ApiMethod;
+import com.google.common.collect.ImmutableSet;
+import com.itcs443.bookstore.service.ApiMetrics;
+import com.itcs443.bookstore.service.CountingApiDelegate;
+import com.itcs443.bookstore.spi.BookStoreApi;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Set;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * A filter timing every API call, named after the last part of the Endpoints path,
+ * e.g. /_ah/spi/com.itcs443.bookstore.spi.BookStoreApi.queryBooks is "queryBooks".
+ * Paths not naming an API method of BookStoreApi are all counted as "other".
+ */
+public class ApiMetricsFilter implements Filter {
+
+    /**
+     * The names of the API methods of BookStoreApi, collected once at init.
+     */
+    private Set<String> methods = ImmutableSet.of();
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+        CountingApiDelegate.install();
+        ImmutableSet.Builder<String> builder = ImmutableSet.builder();
+        for (Method method : BookStoreApi.class.getMethods()) {
+            ApiMethod apiMethod = method.getAnnotation(ApiMethod.class);
+            if (apiMethod != null) {
+                // The SPI path names the Java method, which may differ from the API name.
+                builder.add(method.getName());
+                if (!apiMethod.name().isEmpty()) {
+                    builder.add(apiMethod.name());
+                }
+            }
+        }
+        methods = builder.build();
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        ApiMetrics metrics = ApiMetrics.get();
+        metrics.startCall(getMethod((HttpServletRequest) request));
+        StatusResponse statusResponse = new StatusResponse((HttpServletResponse) response);
+        boolean failed = true;
+        try {
+            chain.doFilter(request, statusResponse);
+            failed = statusResponse.status >= 400;
+        } finally {
+            metrics.endCall(failed);
+        }
+    }
+
+    /**
+     * Remembers the status of the response, which Servlet 2.5 cannot read back.
+     */
+    private static class StatusResponse extends HttpServletResponseWrapper {
+        private int status = SC_OK;
+
+        private StatusResponse(HttpServletResponse response) {
+            super(response);
+        }
+
+        @Override
+        public void setStatus(int status) {
+            this.status = status;
+            super.setStatus(status);
+        }
+
+        @Override
+        public void sendError(int status) throws IOException {
+            this.status = status;
+            super.sendError(status);
+        }
+
+        @Override
+        public void sendError(int status, String message) throws IOException {
+            this.status = status;
+            super.sendError(status, message);
+        }
+    }
+
+    @Override
+    public void destroy() {}
+
+    private String getMethod(HttpServletRequest request) {
+        String path = request.getPathInfo();
+        if (path == null) {
+            path = request.getRequestURI();
+        }
+        String method = path.substring(path.lastIndexOf('.') + 1);
+        // Keeps unexpected paths from creating a metric each.
+        return methods.contains(method) ? method : "other";
+    }
+}
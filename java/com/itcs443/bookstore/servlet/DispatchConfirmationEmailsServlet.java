@@ -0,0 +1,30 @@
+package com.itcs443.bookstore.servlet;
+
+import com.itcs443.bookstore.service.MailDispatcher;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet run by cron to send the pending confirmation e-mails.
+ */
+public class DispatchConfirmationEmailsServlet extends HttpServlet {
+
+    /**
+     * Shorter than the cron interval, so that two runs do not overlap.
+     */
+    private static final long RUN_MILLIS = 50 * 1000L;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        MailDispatcher.Metrics metrics =
+                MailDispatcher.get().dispatch(System.currentTimeMillis() + RUN_MILLIS);
+        response.setContentType("text/plain");
+        response.getWriter().println(metrics);
+    }
+}
@@ -0,0 +1,272 @@
+package com.itcs443.bookstore.servlet;
+
+import static com.itcs443.bookstore.service.OfyService.ofy;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.apphosting.api.ApiProxy;
+import com.google.common.base.Joiner;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.cmd.Query;
+import com.itcs443.bookstore.domain.Cart;
+import com.itcs443.bookstore.domain.CartItem;
+import com.itcs443.bookstore.domain.Money;
+import com.itcs443.bookstore.domain.Profile;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * A servlet for exporting the checked-out carts as NDJSON or CSV, oldest first.
+ *
+ * Carts are read in chunks with query cursors and written to the response as they are
+ * read, so memory does not grow with the order history. Parameters:
+ * format (ndjson or csv), from and to (ISO 8601, from inclusive, to exclusive),
+ * cursor (to resume an export) and chunkSize.
+ *
+ * When the request deadline comes before the last cart, the export ends with a line
+ * holding the cursor to resume from: {"nextCursor": "..."} in NDJSON, or
+ * "# nextCursor=..." in CSV. Payment details are never exported. Each order is exported
+ * with its status in the checkout pipeline; only the CONFIRMED ones were paid.
+ *
+ * The carts checked out before their date was indexed are only exported once
+ * ReindexOrderDatesServlet re-saved them.
+ */
+public class ExportOrdersServlet extends HttpServlet {
+
+    private static final int DEFAULT_CHUNK_SIZE = 500;
+
+    private static final int MAX_CHUNK_SIZE = 1000;
+
+    /**
+     * The time kept before the request deadline to end the response.
+     */
+    private static final long DEADLINE_MARGIN_MILLIS = 5 * 1000L;
+
+    private static final String[] CSV_HEADER = {"id", "websafeKey", "customerUserId",
+            "customerDisplayName", "date", "status", "total", "itemCount", "items", "address"};
+
+    private static final JsonFactory JSON = new JsonFactory()
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+            .disable(JsonGenerator.Feature.FLUSH_PASSED_TO_STREAM);
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        boolean csv = "csv".equalsIgnoreCase(request.getParameter("format"));
+        int chunkSize = getChunkSize(request.getParameter("chunkSize"));
+        Date from;
+        Date to;
+        Cursor cursor;
+        try {
+            from = parseDate(request.getParameter("from"));
+            to = parseDate(request.getParameter("to"));
+            String websafeCursor = request.getParameter("cursor");
+            cursor = websafeCursor == null ? null : Cursor.fromWebSafeString(websafeCursor);
+        } catch (IllegalArgumentException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+
+        Query<Cart> query = ofy().load().type(Cart.class).filter("checkedOut", true);
+        if (from != null) {
+            query = query.filter("date >=", from);
+        }
+        if (to != null) {
+            query = query.filter("date <", to);
+        }
+        query = query.order("date");
+
+        long deadlineMillis = System.currentTimeMillis()
+                + ApiProxy.getCurrentEnvironment().getRemainingMillis() - DEADLINE_MARGIN_MILLIS;
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ROOT);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        response.setContentType(csv ? "text/csv" : "application/x-ndjson");
+        response.setCharacterEncoding("UTF-8");
+        Writer out = response.getWriter();
+        if (csv) {
+            writeCsvRecord(out, CSV_HEADER);
+        }
+
+        while (true) {
+            Query<Cart> chunkQuery = query.limit(chunkSize);
+            if (cursor != null) {
+                chunkQuery = chunkQuery.startAt(cursor);
+            }
+            QueryResultIterator<Cart> iterator = chunkQuery.iterator();
+            List<Cart> carts = new ArrayList<>(chunkSize);
+            while (iterator.hasNext()) {
+                carts.add(iterator.next());
+            }
+            cursor = iterator.getCursor();
+
+            Map<String, String> displayNames = resolveCustomerDisplayNames(carts);
+            for (Cart cart : carts) {
+                if (csv) {
+                    writeCsv(out, cart, displayNames, dateFormat);
+                } else {
+                    writeJson(out, cart, displayNames, dateFormat);
+                }
+            }
+            out.flush();
+            // Drops the carts of this chunk from the session cache.
+            ofy().clear();
+
+            if (carts.size() < chunkSize) {
+                break;
+            }
+            if (System.currentTimeMillis() > deadlineMillis) {
+                String nextCursor = cursor.toWebSafeString();
+                if (csv) {
+                    out.write("# nextCursor=" + nextCursor + "\n");
+                } else {
+                    JsonGenerator json = JSON.createGenerator(out);
+                    json.writeStartObject();
+                    json.writeStringField("nextCursor", nextCursor);
+                    json.writeEndObject();
+                    json.flush();
+                    out.write("\n");
+                }
+                break;
+            }
+        }
+        out.flush();
+    }
+
+    private static int getChunkSize(String chunkSize) {
+        try {
+            int size = chunkSize == null ? DEFAULT_CHUNK_SIZE : Integer.parseInt(chunkSize);
+            return size <= 0 ? DEFAULT_CHUNK_SIZE : Math.min(size, MAX_CHUNK_SIZE);
+        } catch (NumberFormatException e) {
+            return DEFAULT_CHUNK_SIZE;
+        }
+    }
+
+    /**
+     * Parses an ISO 8601 date or date and time.
+     *
+     * @throws IllegalArgumentException when the date is not valid.
+     */
+    private static Date parseDate(String date) {
+        if (date == null || date.isEmpty()) {
+            return null;
+        }
+        try {
+            return DatatypeConverter.parseDateTime(date).getTime();
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid date: " + date);
+        }
+    }
+
+    /**
+     * Returns the display names of the customers of the carts saved before it was stored
+     * in Cart, with one batch load of their Profiles.
+     */
+    private static Map<String, String> resolveCustomerDisplayNames(List<Cart> carts) {
+        Set<Key<Profile>> profileKeys = new HashSet<>();
+        for (Cart cart : carts) {
+            if (!cart.hasCustomerDisplayName()) {
+                profileKeys.add(cart.getProfileKey());
+            }
+        }
+        Map<String, String> displayNames = new HashMap<>();
+        if (!profileKeys.isEmpty()) {
+            for (Profile profile : ofy().load().keys(profileKeys).values()) {
+                displayNames.put(profile.getUserId(), profile.getDisplayName());
+            }
+        }
+        return displayNames;
+    }
+
+    private static String getCustomerDisplayName(Cart cart, Map<String, String> displayNames) {
+        String displayName = displayNames.get(cart.getCustomerUserID());
+        return displayName == null ? cart.getCustomerDisplayName() : displayName;
+    }
+
+    private static void writeJson(Writer out, Cart cart, Map<String, String> displayNames,
+            SimpleDateFormat dateFormat) throws IOException {
+        JsonGenerator json = JSON.createGenerator(out);
+        json.writeStartObject();
+        json.writeNumberField("id", cart.getId());
+        json.writeStringField("websafeKey", cart.getWebsafeKey());
+        json.writeStringField("customerUserId", cart.getCustomerUserID());
+        json.writeStringField("customerDisplayName", getCustomerDisplayName(cart, displayNames));
+        json.writeStringField("date", cart.getDate() == null ? null : dateFormat.format(cart.getDate()));
+        json.writeStringField("status", cart.getStatus().name());
+        json.writeNumberField("total", Money.toDecimal(cart.getTotalMinor()));
+        json.writeStringField("address", cart.getAddress());
+        json.writeArrayFieldStart("items");
+        for (CartItem item : cart.getItems()) {
+            json.writeStartObject();
+            json.writeNumberField("bookId", item.getBookId());
+            json.writeStringField("name", item.getName());
+            json.writeStringField("author", item.getAuthor());
+            json.writeNumberField("quantity", item.getQuantity());
+            json.writeNumberField("unitPrice", Money.toDecimal(item.getUnitPriceMinor()));
+            json.writeNumberField("subtotal", Money.toDecimal(item.getSubtotalMinor()));
+            json.writeEndObject();
+        }
+        json.writeEndArray();
+        json.writeEndObject();
+        json.flush();
+        out.write("\n");
+    }
+
+    private static void writeCsv(Writer out, Cart cart, Map<String, String> displayNames,
+            SimpleDateFormat dateFormat) throws IOException {
+        List<String> items = new ArrayList<>(cart.getItems().size());
+        int itemCount = 0;
+        for (CartItem item : cart.getItems()) {
+            items.add(item.getBookId() + "x" + item.getQuantity());
+            itemCount += item.getQuantity();
+        }
+        writeCsvRecord(out, new String[] {
+                String.valueOf(cart.getId()),
+                cart.getWebsafeKey(),
+                cart.getCustomerUserID(),
+                getCustomerDisplayName(cart, displayNames),
+                cart.getDate() == null ? "" : dateFormat.format(cart.getDate()),
+                cart.getStatus().name(),
+                Money.format(cart.getTotalMinor()),
+                String.valueOf(itemCount),
+                Joiner.on(';').join(items),
+                cart.getAddress()});
+    }
+
+    private static void writeCsvRecord(Writer out, String[] fields) throws IOException {
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            String field = fields[i] == null ? "" : fields[i];
+            if (field.indexOf(',') >= 0 || field.indexOf('"') >= 0
+                    || field.indexOf('\n') >= 0 || field.indexOf('\r') >= 0) {
+                out.write('"');
+                out.write(field.replace("\"", "\"\""));
+                out.write('"');
+            } else {
+                out.write(field);
+            }
+        }
+        out.write("\r\n");
+    }
+}
@@ -0,0 +1,90 @@
+package com.itcs443.bookstore.servlet;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.apphosting.api.ApiProxy;
+import com.itcs443.bookstore.domain.ImportCheckpoint;
+import com.itcs443.bookstore.service.BookImporter;
+import com.itcs443.bookstore.service.BookImporter.Format;
+import com.itcs443.bookstore.service.BookImporter.ImportResult;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet for importing a CSV or JSON lines file of books, posted as the request body
+ * with the importId and format parameters in the query string.
+ *
+ * The import stops reading a little before the request deadline and answers with
+ * "finished": false. Posting the same file again with the same importId resumes it.
+ */
+public class ImportBooksServlet extends HttpServlet {
+
+    /**
+     * The time kept before the request deadline to finish the puts in flight.
+     */
+    private static final long DEADLINE_MARGIN_MILLIS = 10 * 1000L;
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        if (request.getCharacterEncoding() == null) {
+            request.setCharacterEncoding("UTF-8");
+        }
+        String importId = request.getParameter("importId");
+        if (importId == null || importId.isEmpty()) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "importId is required");
+            return;
+        }
+        Format format = getFormat(request);
+        if (format == null) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                    "format must be csv or jsonl");
+            return;
+        }
+        long deadlineMillis = System.currentTimeMillis()
+                + ApiProxy.getCurrentEnvironment().getRemainingMillis() - DEADLINE_MARGIN_MILLIS;
+        ImportResult result = new BookImporter(importId, format)
+                .run(request.getReader(), deadlineMillis);
+
+        ImportCheckpoint checkpoint = result.getCheckpoint();
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("importId", checkpoint.getImportId());
+        body.put("finished", checkpoint.isFinished());
+        body.put("rowsDone", checkpoint.getRowsDone());
+        body.put("booksCreated", checkpoint.getBooksCreated());
+        body.put("rowsRejected", checkpoint.getRowsRejected());
+        body.put("booksCreatedByThisRun", result.getBooksCreated());
+        body.put("elapsedMillis", result.getElapsedMillis());
+        body.put("booksPerSecond", result.getBooksPerSecond());
+        body.put("errors", result.getErrors());
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        JSON.writeValue(response.getWriter(), body);
+    }
+
+    /**
+     * Returns the format named by the format parameter, or else by the content type.
+     */
+    private static Format getFormat(HttpServletRequest request) {
+        String format = request.getParameter("format");
+        if (format == null) {
+            String contentType = request.getContentType();
+            return contentType != null && contentType.toLowerCase(Locale.ROOT).contains("csv")
+                    ? Format.CSV : Format.JSONL;
+        }
+        try {
+            return Format.valueOf(format.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.itcs443.bookstore.servlet;
+
+import com.itcs443.bookstore.service.ApiMetrics;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet exposing the metrics of this instance in the Prometheus text format.
+ */
+public class MetricsServlet extends HttpServlet {
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        response.setContentType("text/plain; version=0.0.4");
+        response.setCharacterEncoding("UTF-8");
+        ApiMetrics.get().write(response.getWriter());
+    }
+}
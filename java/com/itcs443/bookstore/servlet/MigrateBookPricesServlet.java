@@ -0,0 +1,59 @@
+package com.itcs443.bookstore.servlet;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.itcs443.bookstore.service.BookRepository;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet for storing the price of every Book in minor units.
+ *
+ * Books, carts and sales counters saved with double amounts are converted when loaded, and
+ * stored in the new format the next time they are saved. Only the books also need to be
+ * re-saved, because price filters run against the index of the new property. A GET, from
+ * an admin, starts the migration; each step re-saves a chunk of books and enqueues the
+ * next step as a POST with the cursor.
+ */
+public class MigrateBookPricesServlet extends HttpServlet {
+
+    private static final Logger LOG = Logger.getLogger(
+            MigrateBookPricesServlet.class.getName());
+
+    private static final String URL = "/tasks/migrate_book_prices";
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        LOG.info("Migrating the book prices to minor units");
+        enqueueStep(null);
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        String websafeCursor = request.getParameter("cursor");
+        Cursor cursor = BookRepository.get().migratePrices(
+                websafeCursor == null ? null : Cursor.fromWebSafeString(websafeCursor));
+        if (cursor != null) {
+            enqueueStep(cursor.toWebSafeString());
+        } else {
+            LOG.info("Migrated the book prices to minor units");
+        }
+    }
+
+    private static void enqueueStep(String cursor) {
+        TaskOptions task = TaskOptions.Builder.withUrl(URL);
+        if (cursor != null) {
+            task.param("cursor", cursor);
+        }
+        QueueFactory.getDefaultQueue().add(task);
+    }
+}
@@ -0,0 +1,39 @@
+package com.itcs443.bookstore.servlet;
+
+import com.googlecode.objectify.Key;
+import com.itcs443.bookstore.domain.Cart;
+import com.itcs443.bookstore.service.OrderPipeline;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet for running one stage of the checkout pipeline, enqueued by checkout and by
+ * the previous stage. A failure answers an error, so that the task is retried.
+ */
+public class ProcessOrderServlet extends HttpServlet {
+
+    private static final Logger LOG = Logger.getLogger(ProcessOrderServlet.class.getName());
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        OrderPipeline.Stage stage;
+        Key<Cart> orderKey;
+        try {
+            stage = OrderPipeline.Stage.valueOf(request.getParameter("stage"));
+            orderKey = Key.create(request.getParameter("orderKey"));
+        } catch (IllegalArgumentException | NullPointerException e) {
+            // Retrying would not help.
+            LOG.warning("Invalid order task: stage=" + request.getParameter("stage")
+                    + " orderKey=" + request.getParameter("orderKey"));
+            return;
+        }
+        OrderPipeline.run(stage, orderKey);
+    }
+}
@@ -0,0 +1,29 @@
+package com.itcs443.bookstore.servlet;
+
+import com.itcs443.bookstore.service.IdempotencyStore;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet run by cron to delete the expired idempotency records.
+ */
+public class PurgeIdempotencyRecordsServlet extends HttpServlet {
+
+    /**
+     * Well within the request deadline; the next run deletes what is left.
+     */
+    private static final long RUN_MILLIS = 50 * 1000L;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        int deleted = IdempotencyStore.get().purgeExpired(System.currentTimeMillis() + RUN_MILLIS);
+        response.setContentType("text/plain");
+        response.getWriter().println("deleted=" + deleted);
+    }
+}
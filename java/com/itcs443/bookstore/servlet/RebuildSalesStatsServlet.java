@@ -0,0 +1,100 @@
+package com.itcs443.bookstore.servlet;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.itcs443.bookstore.service.SalesStats;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet for recomputing the sales counters from the cart history.
+ *
+ * A GET, from cron or an admin, starts a rebuild into a new epoch (restart=true starts
+ * over when one is running). Each step then reads a chunk of carts and enqueues the next
+ * step as a POST with the epoch and cursor, until the new epoch can be served. Then POSTs
+ * with purgeUntil delete the epochs from the previously served one up to the new one.
+ */
+public class RebuildSalesStatsServlet extends HttpServlet {
+
+    private static final Logger LOG = Logger.getLogger(
+            RebuildSalesStatsServlet.class.getName());
+
+    private static final String URL = "/crons/rebuild_sales_stats";
+
+    private static final long RUN_MILLIS = 50 * 1000L;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        Long epoch = SalesStats.startRebuild(Boolean.parseBoolean(request.getParameter("restart")));
+        if (epoch == null) {
+            LOG.info("A rebuild of the sales counters is already running");
+            return;
+        }
+        LOG.info("Rebuilding the sales counters into epoch " + epoch);
+        enqueueStep(epoch, null);
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        long epoch = Long.parseLong(request.getParameter("epoch"));
+        String purgeUntil = request.getParameter("purgeUntil");
+        if (purgeUntil != null) {
+            purge(epoch, Long.parseLong(purgeUntil));
+            return;
+        }
+        if (!SalesStats.isBuilding(epoch)) {
+            LOG.info("The rebuild of epoch " + epoch + " was replaced");
+            return;
+        }
+        String websafeCursor = request.getParameter("cursor");
+        Cursor cursor = SalesStats.rebuildStep(epoch,
+                websafeCursor == null ? null : Cursor.fromWebSafeString(websafeCursor));
+        if (cursor != null) {
+            enqueueStep(epoch, cursor.toWebSafeString());
+            return;
+        }
+        Long previousEpoch = SalesStats.finishRebuild(epoch);
+        if (previousEpoch != null) {
+            LOG.info("Serving the rebuilt sales counters of epoch " + epoch);
+            enqueuePurge(previousEpoch, epoch);
+        }
+    }
+
+    /**
+     * Deletes the epochs from the given one up to, and not including, the served one.
+     */
+    private static void purge(long epoch, long until) {
+        long deadline = System.currentTimeMillis() + RUN_MILLIS;
+        for (; epoch < until; epoch++) {
+            if (!SalesStats.purgeEpoch(epoch, deadline)) {
+                enqueuePurge(epoch, until);
+                return;
+            }
+        }
+        LOG.info("Deleted the sales counters of the epochs before " + until);
+    }
+
+    private static void enqueuePurge(long epoch, long until) {
+        QueueFactory.getDefaultQueue().add(TaskOptions.Builder.withUrl(URL)
+                .param("epoch", String.valueOf(epoch))
+                .param("purgeUntil", String.valueOf(until)));
+    }
+
+    private static void enqueueStep(long epoch, String cursor) {
+        TaskOptions task = TaskOptions.Builder.withUrl(URL)
+                .param("epoch", String.valueOf(epoch));
+        if (cursor != null) {
+            task.param("cursor", cursor);
+        }
+        QueueFactory.getDefaultQueue().add(task);
+    }
+}
@@ -0,0 +1,88 @@
+package com.itcs443.bookstore.servlet;
+
+import static com.itcs443.bookstore.service.OfyService.ofy;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.VoidWork;
+import com.googlecode.objectify.cmd.Query;
+import com.itcs443.bookstore.domain.Cart;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet for indexing the checkout date of the carts checked out before it was indexed.
+ *
+ * ExportOrdersServlet orders the carts by date, and a query on a property only finds the
+ * entities that were saved with it indexed. A GET, from an admin, starts the backfill;
+ * each step re-saves a chunk of checked-out carts and enqueues the next step as a POST
+ * with the cursor. Each cart is re-saved in a transaction of its own, so that a stage of
+ * the checkout pipeline that updates it meanwhile is not overwritten.
+ */
+public class ReindexOrderDatesServlet extends HttpServlet {
+
+    private static final Logger LOG = Logger.getLogger(
+            ReindexOrderDatesServlet.class.getName());
+
+    private static final String URL = "/tasks/reindex_order_dates";
+
+    private static final int CHUNK_SIZE = 100;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        LOG.info("Indexing the checkout date of the orders");
+        enqueueStep(null);
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        String websafeCursor = request.getParameter("cursor");
+        Query<Cart> query = ofy().load().type(Cart.class)
+                .filter("checkedOut", true).limit(CHUNK_SIZE);
+        if (websafeCursor != null) {
+            query = query.startAt(Cursor.fromWebSafeString(websafeCursor));
+        }
+        QueryResultIterator<Key<Cart>> iterator = query.keys().iterator();
+        int count = 0;
+        while (iterator.hasNext()) {
+            resave(iterator.next());
+            count++;
+        }
+        if (count == CHUNK_SIZE) {
+            enqueueStep(iterator.getCursor().toWebSafeString());
+        } else {
+            LOG.info("Indexed the checkout date of the orders");
+        }
+    }
+
+    private static void resave(final Key<Cart> cartKey) {
+        ofy().transact(new VoidWork() {
+            @Override
+            public void vrun() {
+                Cart cart = ofy().load().key(cartKey).now();
+                if (cart != null) {
+                    ofy().save().entity(cart).now();
+                }
+            }
+        });
+    }
+
+    private static void enqueueStep(String cursor) {
+        TaskOptions task = TaskOptions.Builder.withUrl(URL);
+        if (cursor != null) {
+            task.param("cursor", cursor);
+        }
+        QueueFactory.getDefaultQueue().add(task);
+    }
+}
@@ -0,0 +1,29 @@
+package com.itcs443.bookstore.servlet;
+
+import com.itcs443.bookstore.service.Inventory;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet run by cron to release the expired stock reservations.
+ */
+public class ReleaseStockReservationsServlet extends HttpServlet {
+
+    /**
+     * Well within the request deadline; the next run releases what is left.
+     */
+    private static final long RUN_MILLIS = 50 * 1000L;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        int released = Inventory.get().releaseExpired(System.currentTimeMillis() + RUN_MILLIS);
+        response.setContentType("text/plain");
+        response.getWriter().println("released=" + released);
+    }
+}
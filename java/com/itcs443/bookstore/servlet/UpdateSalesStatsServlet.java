@@ -0,0 +1,38 @@
+package com.itcs443.bookstore.servlet;
+
+import static com.itcs443.bookstore.service.OfyService.ofy;
+
+import com.googlecode.objectify.Key;
+import com.itcs443.bookstore.domain.Cart;
+import com.itcs443.bookstore.service.SalesStats;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet for adding a confirmed order to the sales counters, enqueued by the payment
+ * stage of the checkout pipeline.
+ */
+public class UpdateSalesStatsServlet extends HttpServlet {
+
+    private static final Logger LOG = Logger.getLogger(
+            UpdateSalesStatsServlet.class.getName());
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        String websafeCartKey = request.getParameter("cartKey");
+        Cart cart = ofy().load().key(Key.<Cart>create(websafeCartKey)).now();
+        if (cart == null || !cart.isConfirmed()) {
+            // Nothing to count; do not let the task retry.
+            LOG.warning("No confirmed order found with key: " + websafeCartKey);
+            return;
+        }
+        SalesStats.add(cart);
+    }
+}
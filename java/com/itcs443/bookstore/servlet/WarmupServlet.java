@@ -0,0 +1,28 @@
+package com.itcs443.bookstore.servlet;
+
+import com.itcs443.bookstore.service.BookSearchIndex;
+import com.itcs443.bookstore.service.CategoryIndex;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet for the warmup request App Engine sends to a new instance before its first
+ * user request, which builds the in-process indexes so that no user request waits for the
+ * datastore scan.
+ */
+public class WarmupServlet extends HttpServlet {
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        BookSearchIndex.get().warmUp();
+        CategoryIndex.get().warmUp();
+        response.setContentType("text/plain");
+        response.getWriter().println("warm");
+    }
+}
@@ -3,35 +3,70 @@ package com.itcs443.bookstore.spi;
 import static com.itcs443.bookstore.service.OfyService.factory;
 import static com.itcs443.bookstore.service.OfyService.ofy;
 
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.UUID;
 
 import com.google.api.server.spi.config.Api;
 import com.google.api.server.spi.config.ApiMethod;
 import com.google.api.server.spi.config.ApiMethod.HttpMethod;
 import com.google.api.server.spi.config.Named;
+import com.google.api.server.spi.config.Nullable;
+import com.google.api.server.spi.response.BadRequestException;
 import com.google.api.server.spi.response.ConflictException;
+import com.google.api.server.spi.response.CollectionResponse;
 import com.google.api.server.spi.response.ForbiddenException;
 import com.google.api.server.spi.response.NotFoundException;
 import com.google.api.server.spi.response.UnauthorizedException;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
 import com.google.appengine.api.memcache.MemcacheService;
 import com.google.appengine.api.memcache.MemcacheServiceFactory;
-import com.google.appengine.api.taskqueue.Queue;
-import com.google.appengine.api.taskqueue.QueueFactory;
-import com.google.appengine.api.taskqueue.TaskOptions;
 import com.google.appengine.api.users.User;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
 import com.googlecode.objectify.Key;
 import com.googlecode.objectify.Work;
 import com.googlecode.objectify.cmd.Query;
 import com.itcs443.bookstore.Constants;
 import com.itcs443.bookstore.domain.Book;
 import com.itcs443.bookstore.domain.Cart;
+import com.itcs443.bookstore.domain.CartItem;
+import com.itcs443.bookstore.domain.CartJournal;
+import com.itcs443.bookstore.domain.CartOperation;
+import com.itcs443.bookstore.domain.Money;
+import com.itcs443.bookstore.domain.OrderStatus;
 import com.itcs443.bookstore.domain.Profile;
+import com.itcs443.bookstore.form.BookBatchForm;
 import com.itcs443.bookstore.form.BookForm;
+import com.itcs443.bookstore.form.CartBatchForm;
 import com.itcs443.bookstore.form.CheckoutForm;
 import com.itcs443.bookstore.form.BookQueryForm;
 import com.itcs443.bookstore.form.ProfileForm;
+import com.itcs443.bookstore.service.ApiMetrics;
+import com.itcs443.bookstore.service.BookQueryCache;
+import com.itcs443.bookstore.service.BookRepository;
+import com.itcs443.bookstore.service.BookSearchIndex;
+import com.itcs443.bookstore.service.CartMutations;
+import com.itcs443.bookstore.service.CatalogGeneration;
+import com.itcs443.bookstore.service.CategoryIndex;
+import com.itcs443.bookstore.service.IdempotencyStore;
+import com.itcs443.bookstore.service.Inventory;
+import com.itcs443.bookstore.service.OrderPipeline;
+import com.itcs443.bookstore.service.RequestContext;
+import com.itcs443.bookstore.service.SalesStats;
 
 
 /**
@@ -46,36 +81,145 @@ import com.itcs443.bookstore.form.ProfileForm;
         description = "API for the BookStore  Backend application.")
 public class BookStoreApi {
 
-    /*
-     * Get the display name from the user's email. For example, if the email is
-     * nutjane@example.com, then the display name becomes "nutjane."
+    /**
+     * The number of items in a page when the client does not ask for a limit.
+     */
+    private static final int DEFAULT_PAGE_SIZE = 50;
+
+    /**
+     * The largest number of items in a page.
+     */
+    private static final int MAX_PAGE_SIZE = 500;
+
+    /**
+     * The largest number of items in one batch request.
+     */
+    private static final int MAX_BATCH_SIZE = 1000;
+
+    /**
+     * The largest number of books in one batch add to the cart, whose operations are all
+     * appended in one transaction.
+     */
+    private static final int MAX_CART_BATCH_SIZE = CartMutations.MAX_OPERATIONS_PER_COMMIT;
+
+    /**
+     * The system property listing the e-mail addresses of the administrators, separated by
+     * commas. Only they may read the sales counters and add stock.
+     */
+    private static final String ADMIN_EMAILS_PROPERTY = "bookstore.adminEmails";
+
+    /**
+     * Throws a 403 error unless the user is an administrator.
      */
-    private static String extractDefaultDisplayNameFromEmail(String email) {
-        return email == null ? null : email.substring(0, email.indexOf("@"));
+    private static void checkAdmin(User user) throws ForbiddenException {
+        String adminEmails = System.getProperty(ADMIN_EMAILS_PROPERTY, "");
+        for (String email : Splitter.on(',').trimResults().omitEmptyStrings().split(adminEmails)) {
+            if (email.equalsIgnoreCase(user.getEmail())) {
+                return;
+            }
+        }
+        throw new ForbiddenException("Administrators only");
     }
-    
+
     /**
-     * Gets the Profile entity for the current user
-     * or creates it if it doesn't exist
-     * @param user
-     * @return user's Profile
-     */
-    private static Profile getProfileFromUser(User user) {
-        // First fetch the user's Profile from the datastore.
-        Profile profile = ofy().load().key(
-                Key.create(Profile.class, user.getUserId())).now();
-        ofy().clear();
-        if (profile == null) {
-            // Create a new Profile if it doesn't exist.
-            // Use default displayName and teeShirtSize
-            String email = user.getEmail();
-            profile = new Profile(user.getUserId(),
-                    extractDefaultDisplayNameFromEmail(email), email, "");
+     * Returns the page size to use for the given client limit.
+     */
+    private static int getPageSize(Integer limit) {
+        if (limit == null || limit <= 0) {
+            return DEFAULT_PAGE_SIZE;
+        }
+        return Math.min(limit, MAX_PAGE_SIZE);
+    }
+
+    /**
+     * Runs the given query from the given cursor and returns one page of the result.
+     *
+     * @param query The query to run.
+     * @param cursor The websafe cursor returned with the previous page, null for the first page.
+     * @param limit The page size asked by the client, null for the default.
+     * @return a page of the result, with the cursor of the next page when there may be more.
+     * @throws BadRequestException when the cursor is not valid.
+     */
+    private static <T> CollectionResponse<T> getPage(Query<T> query, String cursor, Integer limit)
+            throws BadRequestException {
+        int pageSize = getPageSize(limit);
+        query = query.limit(pageSize);
+        if (cursor != null) {
+            try {
+                query = query.startAt(Cursor.fromWebSafeString(cursor));
+            } catch (IllegalArgumentException e) {
+                throw new BadRequestException("Invalid cursor: " + cursor);
+            }
+        }
+
+        QueryResultIterator<T> iterator = query.iterator();
+        List<T> items = new ArrayList<>(pageSize);
+        while (iterator.hasNext()) {
+            items.add(iterator.next());
+        }
+        String nextCursor = items.size() == pageSize ? iterator.getCursor().toWebSafeString() : null;
+        ApiMetrics.get().recordItems(items.size());
+        return CollectionResponse.<T>builder().setItems(items).setNextPageToken(nextCursor).build();
+    }
+
+    /**
+     * Fills in the customer display name of the carts saved before it was stored in Cart,
+     * with one batch load of their Profiles.
+     *
+     * @param carts The carts about to be returned to the client.
+     */
+    private static void resolveCustomerDisplayNames(Collection<Cart> carts) {
+        Set<Key<Profile>> profileKeys = new HashSet<>();
+        for (Cart cart : carts) {
+            if (!cart.hasCustomerDisplayName()) {
+                profileKeys.add(cart.getProfileKey());
+            }
+        }
+        if (profileKeys.isEmpty()) {
+            return;
+        }
+        Map<Key<Profile>, Profile> profiles = ofy().load().keys(profileKeys);
+        for (Cart cart : carts) {
+            Profile profile = profiles.get(cart.getProfileKey());
+            if (!cart.hasCustomerDisplayName() && profile != null) {
+                cart.setCustomerDisplayName(profile.getDisplayName());
+            }
         }
-        return profile;
     }
 
+    /**
+     * Loads the books in the given cart in a single batch.
+     * The batch goes through the book cache, and the returned list keeps
+     * the order of the cart with one entry per copy of a book.
+     *
+     * @param cart The Cart whose books are loaded.
+     * @return a List of Book in the same order as the cart.
+     * @throws NotFoundException when some of the books no longer exist.
+     */
+    private static List<Book> loadBooks(Cart cart) throws NotFoundException {
+        List<CartItem> items = cart.getItems();
+        List<Key<Book>> bookKeys = cart.getBookKeys();
 
+        Map<Key<Book>, Book> loaded = BookRepository.get().get(bookKeys);
+
+        List<Book> books = new ArrayList<>(items.size());
+        List<String> missingKeys = new ArrayList<>(0);
+        for (int i = 0; i < items.size(); i++) {
+            Book book = loaded.get(bookKeys.get(i));
+            if (book == null) {
+                missingKeys.add(bookKeys.get(i).getString());
+            } else {
+                for (int copy = 0; copy < items.get(i).getQuantity(); copy++) {
+                    books.add(book);
+                }
+            }
+        }
+        if (!missingKeys.isEmpty()) {
+            throw new NotFoundException("No book found with key: " + Joiner.on(", ").join(missingKeys));
+        }
+        ApiMetrics.get().recordItems(books.size());
+        return books;
+    }
     
     /**
      * Creates or updates a Profile object associated with the given user
@@ -110,7 +254,7 @@ public class BookStoreApi {
         
         if(profile == null){
         	if(displayName == null){
-        		displayName = extractDefaultDisplayNameFromEmail(user.getEmail());
+        		displayName = RequestContext.extractDefaultDisplayNameFromEmail(user.getEmail());
         	}
 
         	profile = new Profile(userId, displayName, mainEmail, address);
@@ -155,15 +299,21 @@ public class BookStoreApi {
      * @param bookForm A BookForm object representing user's inputs.
      * @return A newly created Book Object.
      * @throws UnauthorizedException when the user is not signed in.
+     * @throws BadRequestException when the form is not valid, e.g. the price is not an amount.
      */
     @ApiMethod(name = "createBook", 
     		path = "book", 
     		httpMethod = HttpMethod.POST)
     public Book createBook(final User user, final BookForm bookForm)
-        throws UnauthorizedException {
+        throws UnauthorizedException, BadRequestException {
         if (user == null) {
             throw new UnauthorizedException("Authorization required");
         }
+        try {
+            bookForm.checkValid();
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage());
+        }
 
         // Allocate a key for the book -- let App Engine allocate the ID
         // Don't forget to include the parent Profile in the allocated ID
@@ -177,73 +327,374 @@ public class BookStoreApi {
         Book book = new Book(bookId, bookForm);
 
         // Save Book Entities
-        ofy().save().entities(book).now();
+        long generation = BookRepository.get().save(book);
+        BookSearchIndex.get().index(book, generation);
+        CategoryIndex.get().index(book, generation);
         
          return book;
          }
+
+    /**
+     * Creates several Book objects and stores them to the datastore.
+     *
+     * The ids are allocated as one range and the books are saved in batches. An invalid
+     * form fails on its own and does not stop the other books from being created.
+     *
+     * @param user A user who invokes this method, null when the user is not signed in.
+     * @param bookBatchForm The BookForms of the books to create.
+     * @return one result per form, in order, with the key of each created Book.
+     * @throws UnauthorizedException when the user is not signed in.
+     * @throws BadRequestException when there are too many forms.
+     */
+    @ApiMethod(name = "createBooks",
+            path = "books",
+            httpMethod = HttpMethod.POST)
+    public List<ItemResult> createBooks(final User user, final BookBatchForm bookBatchForm)
+            throws UnauthorizedException, BadRequestException {
+        if (user == null) {
+            throw new UnauthorizedException("Authorization required");
+        }
+        List<BookForm> bookForms = bookBatchForm.getBooks();
+        if (bookForms.size() > MAX_BATCH_SIZE) {
+            throw new BadRequestException("At most " + MAX_BATCH_SIZE + " books per request");
+        }
+
+        List<ItemResult> results = new ArrayList<>(bookForms.size());
+        if (bookForms.isEmpty()) {
+            return results;
+        }
+
+        // One allocation for the whole batch
+        Iterator<Key<Book>> bookKeys =
+                factory().allocateIds(Book.class, bookForms.size()).iterator();
+
+        List<Book> books = new ArrayList<>(bookForms.size());
+        for (int i = 0; i < bookForms.size(); i++) {
+            BookForm bookForm = bookForms.get(i);
+            Key<Book> bookKey = bookKeys.next();
+            if (bookForm == null) {
+                results.add(new ItemResult(i, null, false, "The form is required"));
+                continue;
+            }
+            try {
+                bookForm.checkValid();
+            } catch (IllegalArgumentException e) {
+                results.add(new ItemResult(i, null, false, e.getMessage()));
+                continue;
+            }
+            books.add(new Book(bookKey.getId(), bookForm));
+            results.add(new ItemResult(i, bookKey.getString(), true, ""));
+        }
+
+        if (!books.isEmpty()) {
+            long generation = BookRepository.get().saveAll(books);
+            BookSearchIndex.get().index(books, generation);
+            CategoryIndex.get().index(books, generation);
+        }
+        return results;
+    }
+
+    /**
+     * Adds copies of a book to its stock. A book whose stock is not tracked starts being
+     * tracked with the given quantity; until then it never runs out.
+     *
+     * @param user A user who invokes this method, null when the user is not signed in.
+     * @param websafeBookKey The String representation of the Book Key.
+     * @param quantity The number of copies to add.
+     * @param shards The number of shards of the stock, at least the current one, or null to
+     *        keep it. More shards let more orders reserve the book at once.
+     * @return true when the copies were added.
+     * @throws UnauthorizedException when the user is not signed in.
+     * @throws ForbiddenException when the user is not an administrator.
+     * @throws BadRequestException when the quantity or the number of shards is not valid.
+     * @throws NotFoundException when there is no Book with the given key.
+     */
+    @ApiMethod(name = "addBookStock",
+            path = "book/{websafeBookKey}/stock",
+            httpMethod = HttpMethod.POST)
+    public WrappedBoolean addBookStock(final User user,
+            @Named("websafeBookKey") final String websafeBookKey,
+            @Named("quantity") final long quantity,
+            @Named("shards") @Nullable final Integer shards)
+            throws UnauthorizedException, ForbiddenException, BadRequestException,
+            NotFoundException {
+        if (user == null) {
+            throw new UnauthorizedException("Authorization required");
+        }
+        checkAdmin(user);
+        if (quantity <= 0) {
+            throw new BadRequestException("The quantity must be positive");
+        }
+        if (shards != null && (shards < 1 || shards > Inventory.MAX_SHARD_COUNT)) {
+            throw new BadRequestException(
+                    "The number of shards must be between 1 and " + Inventory.MAX_SHARD_COUNT);
+        }
+        Key<Book> bookKey = Key.create(websafeBookKey);
+        Book book;
+        try {
+            // The Book is read in the restock transaction: the cached copy may hold an
+            // older number of shards.
+            book = Inventory.get().restock(bookKey, quantity, shards);
+        } catch (IllegalArgumentException e) {
+            // The copies on a shard that is dropped would be lost.
+            throw new BadRequestException(e.getMessage());
+        }
+        if (book == null) {
+            throw new NotFoundException("No Book found with key: " + websafeBookKey);
+        }
+        return new WrappedBoolean(true);
+    }
     
     /**
-     * Queries against the datastore with the given filters and returns the result.
+     * Queries the books with the given filters and returns one page of the result.
+     *
+     * Queries with text filters are served by the book search index. Books are then returned
+     * in ascending id order, and the cursor is the id of the last book of the previous page,
+     * so pages stay stable while books are being created. Other queries run against the
+     * datastore with the filters chosen by BookQueryForm. In both cases the filters that
+     * were not applied are checked in memory, so a page may hold fewer books than the limit.
+     * Pages are cached in BookQueryCache until the next createBook.
      *
      * Normally this kind of method is supposed to get invoked by a GET HTTP method,
      * but we do it with POST, in order to receive bookQueryForm Object via the POST body.
      *
      * @param bookQueryForm A form object representing the query.
-     * @return A List of Book that match the query.
+     * @param cursor The cursor returned with the previous page, null for the first page.
+     * @param limit The maximum number of books to return, null for the default.
+     * @return A page of Book that match the query.
+     * @throws BadRequestException when the filters or the cursor are not valid.
      */
     @ApiMethod(
     		name = "queryBooks",
     		path = "queryBooks",
     		httpMethod = HttpMethod.POST
     )
-    public List<Book> queryBooks(BookQueryForm bookQueryForm){
-    	//Query<Book> query = ofy().load().type(Book.class).order("name");
-    	
-    	//return query.list();
-    	return bookQueryForm.getQuery().list();
+    public CollectionResponse<Book> queryBooks(BookQueryForm bookQueryForm,
+            @Named("cursor") @Nullable String cursor,
+            @Named("limit") @Nullable Integer limit) throws BadRequestException {
+    	int pageSize = getPageSize(limit);
+    	long generation = CatalogGeneration.get();
+
+    	// Popular queries are answered from the cache with one batch load of their books.
+    	BookQueryCache.Page page = BookQueryCache.get().get(bookQueryForm, cursor, pageSize, generation);
+    	if (page != null) {
+    		List<Key<Book>> bookKeys = new ArrayList<>(page.getBookIds().size());
+    		for (long bookId : page.getBookIds()) {
+    			bookKeys.add(Key.create(Book.class, bookId));
+    		}
+    		List<Book> books = new ArrayList<>(BookRepository.get().get(bookKeys).values());
+    		ApiMetrics.get().recordItems(books.size());
+    		return CollectionResponse.<Book>builder().setItems(books)
+    				.setNextPageToken(page.getNextCursor()).build();
+    	}
+
+    	List<Book> books;
+    	String nextCursor;
+    	boolean cacheable;
+    	try {
+    		if (bookQueryForm.usesSearchIndex()) {
+    			BookSearchIndex index = BookSearchIndex.get();
+    			List<Long> bookIds = index.search(bookQueryForm.getSearchTerms(), generation);
+    			cacheable = index.isCurrent(generation);
+
+    			// Skip the ids up to and including the last id of the previous page.
+    			int from = 0;
+    			if (cursor != null) {
+    				long lastId;
+    				try {
+    					lastId = Long.parseLong(cursor, Character.MAX_RADIX);
+    				} catch (NumberFormatException e) {
+    					throw new BadRequestException("Invalid cursor: " + cursor);
+    				}
+    				int position = Collections.binarySearch(bookIds, lastId);
+    				from = position >= 0 ? position + 1 : -position - 1;
+    			}
+    			int to = Math.min(from + pageSize, bookIds.size());
+
+    			List<Key<Book>> bookKeys = new ArrayList<>(to - from);
+    			for (long bookId : bookIds.subList(from, to)) {
+    				bookKeys.add(Key.create(Book.class, bookId));
+    			}
+    			nextCursor = to < bookIds.size()
+    					? Long.toString(bookIds.get(to - 1), Character.MAX_RADIX) : null;
+
+    			// The map keeps the order of the keys and leaves out books that no longer exist.
+    			books = new ArrayList<>(BookRepository.get().get(bookKeys).values());
+    		} else {
+    			CollectionResponse<Book> result = getPage(bookQueryForm.getQuery(), cursor, pageSize);
+    			books = new ArrayList<>(result.getItems());
+    			nextCursor = result.getNextPageToken();
+    			cacheable = true;
+    		}
+    	} catch (IllegalArgumentException e) {
+    		throw new BadRequestException(e.getMessage());
+    	}
+
+    	// Applies the residual filters.
+    	List<Long> bookIds = new ArrayList<>(books.size());
+    	Iterator<Book> iterator = books.iterator();
+    	while (iterator.hasNext()) {
+    		Book book = iterator.next();
+    		if (bookQueryForm.matches(book)) {
+    			bookIds.add(book.getId());
+    		} else {
+    			iterator.remove();
+    		}
+    	}
+
+    	if (cacheable) {
+    		BookQueryCache.get().put(bookQueryForm, cursor, pageSize, generation,
+    				new BookQueryCache.Page(bookIds, nextCursor));
+    	}
+    	ApiMetrics.get().recordItems(books.size());
+    	return CollectionResponse.<Book>builder().setItems(books).setNextPageToken(nextCursor).build();
     }
     
+    /**
+     * Returns every category with its number of books, from the in-process CategoryIndex.
+     *
+     * @return the categories in the order of their names.
+     */
+    @ApiMethod(
+            name = "getCategories",
+            path = "categories",
+            httpMethod = HttpMethod.GET
+    )
+    public List<CategoryIndex.Facet> getCategories() {
+        return CategoryIndex.get().getCategories();
+    }
+
+    /**
+     * Returns a page of the books of a category in ascending id order, with the number of
+     * books of the category and the counts of the other categories of its books.
+     *
+     * The ids of the page and the counts come from the in-process CategoryIndex, and the
+     * books from the BookRepository cache, so browsing runs no datastore query.
+     *
+     * @param category The name of the category.
+     * @param cursor The cursor returned with the previous page, null for the first page.
+     * @param limit The maximum number of books to return, null for the default.
+     * @return a page of the books of the category.
+     * @throws BadRequestException when the cursor is not valid.
+     */
+    @ApiMethod(
+            name = "browseCategory",
+            path = "categories/{category}",
+            httpMethod = HttpMethod.GET
+    )
+    public CategoryPage browseCategory(@Named("category") final String category,
+            @Named("cursor") @Nullable final String cursor,
+            @Named("limit") @Nullable final Integer limit) throws BadRequestException {
+        Long afterId = null;
+        if (cursor != null) {
+            try {
+                afterId = Long.parseLong(cursor, Character.MAX_RADIX);
+            } catch (NumberFormatException e) {
+                throw new BadRequestException("Invalid cursor: " + cursor);
+            }
+        }
+        CategoryIndex.Page page = CategoryIndex.get().browse(category, afterId, getPageSize(limit));
+        List<Key<Book>> bookKeys = new ArrayList<>(page.getBookIds().size());
+        for (long bookId : page.getBookIds()) {
+            bookKeys.add(Key.create(Book.class, bookId));
+        }
+        List<Book> books = new ArrayList<>(BookRepository.get().get(bookKeys).values());
+        String nextCursor = page.hasMore() ? Long.toString(
+                page.getBookIds().get(page.getBookIds().size() - 1), Character.MAX_RADIX) : null;
+        ApiMetrics.get().recordItems(books.size());
+        return new CategoryPage(books, nextCursor, page.getCount(), page.getFacets());
+    }
+
+    /**
+     * Returns the counts of the categories of the books matching the text filters of a
+     * query, computed on the ids from the book search index by the CategoryIndex.
+     *
+     * Category filters narrow the books counted; the other filters, e.g. the price, are
+     * not applied to the counts.
+     *
+     * @param bookQueryForm A form object representing the query, with a text filter.
+     * @return the categories of the matching books with their number of books.
+     * @throws BadRequestException when the query has no text filter.
+     */
+    @ApiMethod(
+            name = "queryBookFacets",
+            path = "queryBooks/facets",
+            httpMethod = HttpMethod.POST
+    )
+    public List<CategoryIndex.Facet> queryBookFacets(BookQueryForm bookQueryForm)
+            throws BadRequestException {
+        if (!bookQueryForm.usesSearchIndex()) {
+            throw new BadRequestException("Facets are only counted for text queries");
+        }
+        List<Long> bookIds = BookSearchIndex.get().search(bookQueryForm.getSearchTerms(),
+                CatalogGeneration.get());
+        List<String> categories = new ArrayList<>();
+        for (BookQueryForm.Filter filter : bookQueryForm.getFilters()) {
+            if (filter.getField() == BookQueryForm.Field.CATEGORY
+                    && filter.getOperator() == BookQueryForm.Operator.EQ) {
+                categories.add(filter.getValue());
+            }
+        }
+        return CategoryIndex.get().countFacets(bookIds, categories);
+    }
+
     /**
      * Returns a list of cart that the user has checked out.
      *
      * @param user A user who invokes this method, null when the user is not signed in.
-     * @return a list of cart that the user checked out.
+     * @param cursor The cursor returned with the previous page, null for the first page.
+     * @param limit The maximum number of carts to return, null for the default.
+     * @return a page of the carts that the user checked out.
      * @throws UnauthorizedException when the user is not signed in.
+     * @throws BadRequestException when the cursor is not valid.
      */
     @ApiMethod(
             name = "getCartCreated",
             path = "getCartCreated",
             httpMethod = HttpMethod.GET
     )
-    public List<Cart> getCartCreated(final User user) throws UnauthorizedException{
+    public CollectionResponse<Cart> getCartCreated(final User user,
+            @Named("cursor") @Nullable String cursor,
+            @Named("limit") @Nullable Integer limit)
+            throws UnauthorizedException, BadRequestException {
     	if(user == null){
     		throw new UnauthorizedException("Authorization required");
     	}
-    	Profile profile = getProfile(user);
-    	if(profile != null){
-    		String userId = profile.getUserId();
-        	Key profileKey = Key.create(Profile.class, userId);
-        	return ofy().load().type(Cart.class).filter("checkedOut", Boolean.TRUE).ancestor(profileKey)
-        			.list();
+    	RequestContext context = RequestContext.forUser(user);
+    	if(context.hasStoredProfile()){
+        	CollectionResponse<Cart> carts = getPage(
+        			ofy().load().type(Cart.class).filter("checkedOut", Boolean.TRUE)
+        					.ancestor(context.getProfileKey()),
+        			cursor, limit);
+        	resolveCustomerDisplayNames(carts.getItems());
+        	return carts;
     	}
     	else return null;
     			
     }
     
     /**
-     * Returns a list of carts that have been checked out.
+     * Returns a page of the carts that have been checked out.
      *
-     * @return a list of carts that have been checked out
+     * @param cursor The cursor returned with the previous page, null for the first page.
+     * @param limit The maximum number of carts to return, null for the default.
+     * @return a page of the carts that have been checked out
+     * @throws BadRequestException when the cursor is not valid.
      */
     @ApiMethod(
             name = "getAllCart",
             path = "getAllCart",
             httpMethod = HttpMethod.GET
     )
-    public List<Cart> getAllCart() throws UnauthorizedException{
+    public CollectionResponse<Cart> getAllCart(
+            @Named("cursor") @Nullable String cursor,
+            @Named("limit") @Nullable Integer limit)
+            throws UnauthorizedException, BadRequestException {
 
-    	return ofy().load().type(Cart.class).filter("checkedOut", Boolean.TRUE)
-    			.list();
+    	CollectionResponse<Cart> carts = getPage(
+    			ofy().load().type(Cart.class).filter("checkedOut", Boolean.TRUE), cursor, limit);
+    	resolveCustomerDisplayNames(carts.getItems());
+    	return carts;
     	
     			
     }
@@ -266,7 +717,7 @@ public class BookStoreApi {
             @Named("websafeBookKey") final String websafeBookKey)
             throws NotFoundException {
         Key<Book> bookKey = Key.create(websafeBookKey);
-        Book book = ofy().load().key(bookKey).now();
+        Book book = BookRepository.get().get(bookKey);
         if (book == null) {
             throw new NotFoundException("No book found with key: " + websafeBookKey);
         }
@@ -304,82 +755,342 @@ public class BookStoreApi {
         }
     }
 
+    /**
+     * A page of the books of a category, with the facet counts of the whole category.
+     */
+    public static class CategoryPage {
+
+        private final List<Book> items;
+        private final String nextPageToken;
+        private final int count;
+        private final List<CategoryIndex.Facet> facets;
+
+        public CategoryPage(List<Book> items, String nextPageToken, int count,
+                List<CategoryIndex.Facet> facets) {
+            this.items = items;
+            this.nextPageToken = nextPageToken;
+            this.count = count;
+            this.facets = facets;
+        }
+
+        public List<Book> getItems() {
+            return items;
+        }
+
+        public String getNextPageToken() {
+            return nextPageToken;
+        }
+
+        /**
+         * The number of books of the category.
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * The other categories of the books of the category, with their number of books.
+         */
+        public List<CategoryIndex.Facet> getFacets() {
+            return facets;
+        }
+    }
+
+    /**
+     * The result of one item of a batch request.
+     */
+    public static class ItemResult {
+
+        private final int index;
+        private final String websafeKey;
+        private final Boolean result;
+        private final String reason;
+
+        public ItemResult(int index, String websafeKey, Boolean result, String reason) {
+            this.index = index;
+            this.websafeKey = websafeKey;
+            this.result = result;
+            this.reason = reason;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public String getWebsafeKey() {
+            return websafeKey;
+        }
+
+        public Boolean getResult() {
+            return result;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+        /**
+         * Encodes the results of a batch for the IdempotencyStore, one line per item: "+"
+         * for a success, "-" and the reason for a failure. The keys are those of the
+         * request, so they are not kept.
+         */
+        static String encode(List<ItemResult> results) {
+            StringBuilder encoded = new StringBuilder();
+            for (ItemResult result : results) {
+                if (encoded.length() > 0) {
+                    encoded.append('\n');
+                }
+                encoded.append(result.result ? "+" : "-" + result.reason.replace('\n', ' '));
+            }
+            return encoded.toString();
+        }
+
+        /**
+         * Decodes the results encoded by encode for the keys of the request.
+         */
+        static List<ItemResult> decode(String encoded, List<String> websafeKeys) {
+            List<ItemResult> results = new ArrayList<>(websafeKeys.size());
+            if (websafeKeys.isEmpty()) {
+                return results;
+            }
+            int index = 0;
+            for (String line : Splitter.on('\n').split(encoded)) {
+                boolean result = line.startsWith("+");
+                results.add(new ItemResult(index, websafeKeys.get(index), result,
+                        result ? "" : line.substring(1)));
+                index++;
+            }
+            return results;
+        }
+    }
+
+    /**
+     * The status of an order in the checkout pipeline, returned by checkout and getOrderStatus.
+     */
+    public static class OrderReceipt {
+
+        private final String websafeOrderKey;
+        private final OrderStatus status;
+        private final String reason;
+        private final long totalMinor;
+
+        public OrderReceipt(Cart order) {
+            this.websafeOrderKey = order.getWebsafeKey();
+            this.status = order.getStatus();
+            this.reason = order.getStatusReason();
+            this.totalMinor = order.getTotalMinor();
+        }
+
+        public String getWebsafeOrderKey() {
+            return websafeOrderKey;
+        }
+
+        public OrderStatus getStatus() {
+            return status;
+        }
+
+        /**
+         * Why the order was rejected or its payment declined, null otherwise.
+         */
+        public String getReason() {
+            return reason;
+        }
+
+        /**
+         * The total so far; it may change when the order is repriced.
+         */
+        public long getTotalMinor() {
+            return totalMinor;
+        }
+
+        public String getTotal() {
+            return Money.format(totalMinor);
+        }
+    }
+
     
     
+    /**
+     * Adds a copy of a book to the ongoing cart of the user.
+     *
+     * The add is appended to the cart journal and applied to the cart when the cart is
+     * read or checked out, so it never contends with other cart writes of the user.
+     * Retrying with the same requestId adds the book only once, and a retry of a recorded
+     * request returns at once from the IdempotencyStore.
+     *
+     * @param user A user who invokes this method, null when the user is not signed in.
+     * @param websafeBookKey The String representation of the Book Key.
+     * @param requestId A client-generated id of this request, null to skip deduplication.
+     * @return true when the add is recorded, false when the cart already holds every
+     *         available copy of the book.
+     * @throws UnauthorizedException when the user is not signed in.
+     * @throws NotFoundException when there is no Book with the given key.
+     * @throws ConflictException when the requestId was used for another request.
+     */
     @ApiMethod(
             name = "addBookToCart",
             path = "book/{websafeBookKey}",
             httpMethod = HttpMethod.POST
     )
     public WrappedBoolean addBookToCart(final User user,
-            @Named("websafeBookKey") final String websafeBookKey)
-            throws UnauthorizedException, NotFoundException,
-            ForbiddenException, ConflictException {
+            @Named("websafeBookKey") final String websafeBookKey,
+            @Named("requestId") @Nullable final String requestId)
+            throws UnauthorizedException, NotFoundException, ConflictException {
         // If not signed in, throw a 401 error.
         if (user == null) {
             throw new UnauthorizedException("Authorization required");
         }
+        String fingerprint = IdempotencyStore.fingerprint(websafeBookKey);
+        WrappedBoolean recorded =
+                getRecordedResult(user, "addBookToCart", requestId, fingerprint);
+        if (recorded != null) {
+            return recorded;
+        }
 
-        WrappedBoolean result = ofy().transact(new Work<WrappedBoolean>() {
-            @Override
-            public WrappedBoolean run() {
-               
-	                // Get the book key
-	                Key<Book> bookKey = Key.create(websafeBookKey);
-	
-	                // Get the book entity from the datastore
-	                Book book = ofy().load().key(bookKey).now();
-	
-	                // 404 when there is no Book with the given BookId.
-	                if (book == null) {
-	                    return new WrappedBoolean (false,
-	                            "No Book found with key: "
-	                                    + websafeBookKey);
-	                }
-
-	                // Get the user's Profile entity
-	                Profile profile = getProfileFromUser(user);
-	
-	             // Has the user already had on-going cart (unchecked-out)?
-                	//don't have on-going cart
-                if(!profile.haveOngoingOrder()){
-
-                    // Get the userId and profileKey
-                    final String userId = user.getUserId();
-                    Key<Profile> profileKey = Key.create(Profile.class, userId);
-                    
-                    final Key<Cart> cartKey = factory().allocateId(profileKey, Cart.class);
-                    final long cartId = cartKey.getId();
-
-                    Cart cart  = new Cart(cartId, userId);
-                    profile.update(cart.getWebsafeKey());
-                    
-                    ofy().save().entities(cart, profile).now();
-                }
-                
-	                Key<Cart> cartKey = Key.create(profile.getOnGoingCartId());
-	                
-	                Cart cart = ofy().load().key(cartKey).now();
-	                
-	                cart.addToBookKeys(websafeBookKey);
-	                cart.addPrice(book.getPrice());
-	                
-	                ofy().save().entity(cart).now();
-
-	                //done!
-	                return new WrappedBoolean(true);
-  
+        // Starts the Profile load, so that it overlaps the Book load.
+        RequestContext context = RequestContext.forUser(user);
+        // Get the book entity, the cart keeps a snapshot of it
+        Book book = BookRepository.get().get(Key.<Book>create(websafeBookKey));
+
+        // 404 when there is no Book with the given BookId.
+        if (book == null) {
+            throw new NotFoundException("No Book found with key: " + websafeBookKey);
+        }
+        // Not recorded, so that a retry after a restock succeeds. The copies in the cart
+        // only matter for a book whose stock is tracked.
+        if (book.getStockShards() > 0) {
+            int quantity = CartMutations.getQuantity(context, Key.create(book));
+            if (!Inventory.get().isAvailable(book, quantity + 1)) {
+                return new WrappedBoolean(false, "Out of stock");
             }
-        });
-        // if result is false
-        if (!result.getResult()) {
-             throw new ForbiddenException("Unknown exception");
         }
-        return result;
+
+        String operationId = requestId == null ? UUID.randomUUID().toString() : requestId;
+        append(CartOperation.add(
+                CartMutations.getJournalKey(user.getUserId(), operationId), operationId, book));
+        return recordResult(user, "addBookToCart", requestId, fingerprint,
+                new WrappedBoolean(true));
     }
     
-    
-    
+    /**
+     * Adds a copy of each of the given books to the ongoing cart of the user.
+     *
+     * All the adds are appended to one journal shard in a single transaction, and are
+     * applied to the cart together, with one price recompute. Keys that are invalid, have
+     * no Book or whose book is sold out fail on their own. Retrying with the same requestId
+     * adds the books only once, also after they were applied to the cart, and returns the
+     * results of the first attempt without loading the books.
+     *
+     * @param user A user who invokes this method, null when the user is not signed in.
+     * @param cartBatchForm The String representations of the Book Keys.
+     * @param requestId A client-generated id of this request, null to skip deduplication.
+     * @return one result per key, in order.
+     * @throws UnauthorizedException when the user is not signed in.
+     * @throws BadRequestException when there are too many keys.
+     * @throws ConflictException when the requestId was used for another request.
+     */
+    @ApiMethod(
+            name = "addBooksToCart",
+            path = "cart/books",
+            httpMethod = HttpMethod.POST
+    )
+    public List<ItemResult> addBooksToCart(final User user, final CartBatchForm cartBatchForm,
+            @Named("requestId") @Nullable final String requestId)
+            throws UnauthorizedException, BadRequestException, ConflictException {
+        // If not signed in, throw a 401 error.
+        if (user == null) {
+            throw new UnauthorizedException("Authorization required");
+        }
+        List<String> websafeBookKeys = cartBatchForm.getWebsafeBookKeys();
+        if (websafeBookKeys.size() > MAX_CART_BATCH_SIZE) {
+            throw new BadRequestException(
+                    "At most " + MAX_CART_BATCH_SIZE + " books per request");
+        }
+
+        String fingerprint = IdempotencyStore.fingerprint(websafeBookKeys.toArray());
+        String recorded = getRecorded(user, "addBooksToCart", requestId, fingerprint);
+        if (recorded != null) {
+            return ItemResult.decode(recorded, websafeBookKeys);
+        }
+
+        // Parse every key first, so the books are loaded in one batch
+        List<Key<Book>> bookKeys = new ArrayList<>(websafeBookKeys.size());
+        for (String websafeBookKey : websafeBookKeys) {
+            Key<Book> bookKey = null;
+            try {
+                bookKey = websafeBookKey == null ? null : Key.<Book>create(websafeBookKey);
+            } catch (IllegalArgumentException e) {
+                // Reported as a missing book below
+            }
+            bookKeys.add(bookKey);
+        }
+        Set<Key<Book>> validKeys = new HashSet<>(bookKeys);
+        validKeys.remove(null);
+        Map<Key<Book>, Book> books = BookRepository.get().get(validKeys);
+        Map<Long, Long> available = Inventory.get().getAvailable(books.values());
+
+        // The copies already in the cart count against the stock, as in addBookToCart.
+        // Only read when some book is tracked.
+        Set<Key<Book>> trackedKeys = new HashSet<>();
+        for (Map.Entry<Key<Book>, Book> entry : books.entrySet()) {
+            if (entry.getValue().getStockShards() > 0) {
+                trackedKeys.add(entry.getKey());
+            }
+        }
+        Map<Key<Book>, Integer> quantities = trackedKeys.isEmpty()
+                ? Collections.<Key<Book>, Integer>emptyMap()
+                : CartMutations.getQuantities(RequestContext.forUser(user), trackedKeys);
+
+        // Every add of the batch goes to the shard of the request id
+        String operationId = requestId == null ? UUID.randomUUID().toString() : requestId;
+        Key<CartJournal> journalKey = CartMutations.getJournalKey(user.getUserId(), operationId);
+
+        List<ItemResult> results = new ArrayList<>(websafeBookKeys.size());
+        List<CartOperation> operations = new ArrayList<>(websafeBookKeys.size());
+        for (int i = 0; i < websafeBookKeys.size(); i++) {
+            String websafeBookKey = websafeBookKeys.get(i);
+            Book book = bookKeys.get(i) == null ? null : books.get(bookKeys.get(i));
+            if (book == null) {
+                results.add(new ItemResult(i, websafeBookKey, false,
+                        "No Book found with key: " + websafeBookKey));
+                continue;
+            }
+            Long bookAvailable = available.get(book.getId());
+            if (bookAvailable != null) {
+                // The copies added by the earlier items of the batch count too.
+                int quantity = quantities.get(bookKeys.get(i));
+                if (bookAvailable < quantity + 1) {
+                    results.add(new ItemResult(i, websafeBookKey, false, "Out of stock"));
+                    continue;
+                }
+                quantities.put(bookKeys.get(i), quantity + 1);
+            }
+            operations.add(CartOperation.add(journalKey, operationId + "#" + i, book));
+            results.add(new ItemResult(i, websafeBookKey, true, ""));
+        }
+        appendAll(operations);
+        if (requestId != null) {
+            IdempotencyStore.get().put(Key.create(Profile.class, user.getUserId()),
+                    "addBooksToCart", requestId, fingerprint, ItemResult.encode(results));
+        }
+        return results;
+    }
+
+    /**
+     * Removes a copy of a book from the ongoing cart of the user.
+     *
+     * Like addBookToCart, the remove is appended to the cart journal, and a retry of a
+     * recorded request returns at once. The book must be in the cart as the user sees it,
+     * i.e. with the pending adds and removes applied.
+     *
+     * @param user A user who invokes this method, null when the user is not signed in.
+     * @param websafeBookKey The String representation of the Book Key.
+     * @param requestId A client-generated id of this request, null to skip deduplication.
+     * @return true when the remove is recorded, false when the book is not in the cart.
+     * @throws UnauthorizedException when the user is not signed in.
+     * @throws NotFoundException when no book key is given.
+     * @throws ConflictException when the requestId was used for another request.
+     */
     @ApiMethod(
             name = "removeBookFromCart",
             path = "removeBookFromCart",
@@ -387,9 +1098,9 @@ public class BookStoreApi {
             httpMethod = HttpMethod.POST
     )
     public WrappedBoolean removeBookFromCart(final User user,
-            @Named("websafeBookKey") String websafeBookKey)
-            throws UnauthorizedException, NotFoundException,
-            ForbiddenException, ConflictException {
+            @Named("websafeBookKey") String websafeBookKey,
+            @Named("requestId") @Nullable String requestId)
+            throws UnauthorizedException, NotFoundException, ConflictException {
         // If not signed in, throw a 401 error.
         if (user == null) {
             throw new UnauthorizedException("Authorization required");
@@ -397,59 +1108,93 @@ public class BookStoreApi {
         if(websafeBookKey == null){
             throw new NotFoundException("No book found with key: " + websafeBookKey);
         }
+        String fingerprint = IdempotencyStore.fingerprint(websafeBookKey);
+        WrappedBoolean recorded =
+                getRecordedResult(user, "removeBookFromCart", requestId, fingerprint);
+        if (recorded != null) {
+            return recorded;
+        }
 
-        final String webSafe = websafeBookKey.toString();
-        WrappedBoolean result = ofy().transact(new Work<WrappedBoolean>() {
-            @Override
-            public WrappedBoolean run() {
-                
+        // Get the book key, the cart line holds its price so the Book is not loaded
+        Key<Book> bookKey = Key.create(websafeBookKey);
+        // Not recorded, so that a retry after the book is added succeeds.
+        if (CartMutations.getQuantity(RequestContext.forUser(user), bookKey) == 0) {
+            return new WrappedBoolean(false, "Not in the cart");
+        }
 
-	                // Get the book key
-	                Key<Book> bookKey = Key.create(webSafe);
-	
-	                // Get the book entity from the datastore
-	                Book book = ofy().load().key(bookKey).now();
-	
-	                // 404 when there is no Book with the given BookId.
-	                if (book == null) {
-	                    return new WrappedBoolean (false,
-	                            "No Book found with key: "
-	                                    + webSafe);
-	                }
-
-	                // Get the user's Profile entity
-	                Profile profile = getProfileFromUser(user);
-	
-	             // Has the user already had on-going cart (unchecked-out)?
-                	//don't have on-going cart
-                if(!profile.haveOngoingOrder()){
-
-                	return new WrappedBoolean (false,
-                            "This user has no on-going cart.");
-                }
-                
-	                Key<Cart> cartKey = Key.create(profile.getOnGoingCartId());
-	                
-	                Cart cart = ofy().load().key(cartKey).now();
-	                
-	                cart.removeBookFromCart(webSafe);
-	                cart.deductPrice(book.getPrice());
-	                
-	                ofy().save().entity(cart).now();
-	                ofy().clear();
-
-	                //done!
-	                return new WrappedBoolean(true);
-  
-            }
-        });
-        // if result is false
-        if (!result.getResult()) {
-             throw new ForbiddenException("Unknown exception");
+        String operationId = requestId == null ? UUID.randomUUID().toString() : requestId;
+        append(CartOperation.remove(
+                CartMutations.getJournalKey(user.getUserId(), operationId), operationId, bookKey));
+        return recordResult(user, "removeBookFromCart", requestId, fingerprint,
+                new WrappedBoolean(true));
+    }
+
+    /**
+     * Returns the recorded result of a cart request, or null when it is not recorded.
+     *
+     * @throws ConflictException when the request id was recorded with other arguments.
+     */
+    private static WrappedBoolean getRecordedResult(User user, String method, String requestId,
+            String fingerprint) throws ConflictException {
+        String result = getRecorded(user, method, requestId, fingerprint);
+        return result == null ? null : new WrappedBoolean(Boolean.valueOf(result));
+    }
+
+    /**
+     * Returns the encoded result of a request, or null when it is not recorded.
+     *
+     * @throws ConflictException when the request id was recorded with other arguments.
+     */
+    private static String getRecorded(User user, String method, String requestId,
+            String fingerprint) throws ConflictException {
+        if (requestId == null) {
+            return null;
+        }
+        IdempotencyStore.Entry entry = IdempotencyStore.get().get(
+                Key.create(Profile.class, user.getUserId()), method, requestId);
+        if (entry == null) {
+            return null;
+        }
+        checkFingerprint(entry, requestId, fingerprint);
+        return entry.getResult();
+    }
+
+    /**
+     * Records the result of a cart request made with a request id, and returns it.
+     */
+    private static WrappedBoolean recordResult(User user, String method, String requestId,
+            String fingerprint, WrappedBoolean result) {
+        if (requestId != null) {
+            IdempotencyStore.get().put(Key.create(Profile.class, user.getUserId()), method,
+                    requestId, fingerprint, String.valueOf(result.getResult()));
         }
         return result;
     }
 
+    private static void checkFingerprint(IdempotencyStore.Entry entry, String requestId,
+            String fingerprint) throws ConflictException {
+        if (!entry.matches(fingerprint)) {
+            throw new ConflictException(
+                    "Request id " + requestId + " was used for another request");
+        }
+    }
+
+    /**
+     * Appends a cart operation, answering 409 when its request id is pending for another
+     * operation, e.g. before the IdempotencyStore recorded the first request.
+     */
+    private static void append(CartOperation operation) throws ConflictException {
+        appendAll(Collections.singletonList(operation));
+    }
+
+    private static void appendAll(List<CartOperation> operations) throws ConflictException {
+        try {
+            CartMutations.appendAll(operations);
+        } catch (IllegalArgumentException e) {
+            throw new ConflictException(e.getMessage());
+        }
+    }
+
 
     /**
      * Returns a collection of Book Object in an ongoing cart.
@@ -469,32 +1214,11 @@ public class BookStoreApi {
         if (user == null) {
             throw new UnauthorizedException("Authorization required");
         }
-        // Get the Profile entity for the user
-        Profile profile = getProfileFromUser(user);
-        if (profile == null) {
-            throw new NotFoundException("Profile doesn't exist.");
-        }
-
-        if(!profile.haveOngoingOrder()){
-        	return null;
-        }
-        // Get the key of the card to get cart entity
-        Key<Cart> cartKey = Key.create(profile.getOnGoingCartId());
-        Cart cart = ofy().load().key(cartKey).now();
-        ofy().clear();
+        // Get the on-going cart of the user, with the pending adds and removes applied
+        Cart cart = CartMutations.getCompactedCart(RequestContext.forUser(user));
         
         if(cart != null){
-            List<String> keyStringsBook = cart.getBookKeys();
-            
-            
-            List<Book> books = new ArrayList<Book>();
-            
-            for(String keyString : keyStringsBook) {
-           	 	Key<Book> bookKey = Key.create(keyString);
-           	 	books.add(ofy().cache(false).load().key(bookKey).now());
-            }
-            
-            return books;
+            return loadBooks(cart);
         }else{
         	return null;
         }
@@ -522,28 +1246,14 @@ public class BookStoreApi {
         if (user == null) {
             throw new UnauthorizedException("Authorization required");
         }
-        // Get the Profile entity for the user
-        Profile profile = getProfileFromUser(user);
-        if (profile == null) {
-            throw new NotFoundException("Profile doesn't exist.");
-        }
-        
         // Get the key of the card to get cart entity
         Key<Cart> cartKey = Key.create(websafeCartKey);
         Cart cart = ofy().load().key(cartKey).now();
-        ofy().clear();
-
-        
-        List<String> keyStringsBook = cart.getBookKeys();
-
-        List<Book> books = new ArrayList<Book>();
-        for(String keyString : keyStringsBook){
-        	Key<Book> bookKey = Key.create(keyString);
-        	books.add(ofy().load().key(bookKey).now());
-        	ofy().clear();
+        if (cart == null) {
+            throw new NotFoundException("No cart found with key: " + websafeCartKey);
         }
-        
-        return books;
+
+        return loadBooks(cart);
     }
     
     
@@ -558,17 +1268,21 @@ public class BookStoreApi {
         if (user == null) {
             throw new UnauthorizedException("Authorization required");
         }
-        // Get the Profile entity for the user
-        Profile profile = getProfileFromUser(user);
-        if (profile == null) {
-            throw new NotFoundException("Profile doesn't exist.");
-        }
+        // Get the Profile entity for the user and its on-going cart
+        RequestContext context = RequestContext.forUser(user);
+        Profile profile = context.getProfile();
+
+        Cart cart = CartMutations.getCompactedCart(context);
+        if(cart != null){
+            if (!cart.hasCustomerDisplayName()) {
+                cart.setCustomerDisplayName(profile.getDisplayName());
+            }
 
-        if(profile.haveOngoingOrder()){
-        	// Get the key of the card to get cart entity
-            Key<Cart> cartKey = Key.create(profile.getOnGoingCartId());
-            Cart cart = ofy().cache(false).load().key(cartKey).now();
-            ofy().clear();
+            // Carts migrated from the old format have no snapshots yet.
+            if (cart.isMissingSnapshots()) {
+                cart.reprice(BookRepository.get().get(cart.getBookKeys()));
+                ofy().save().entity(cart).now();
+            }
             
             return cart;
         }
@@ -577,52 +1291,217 @@ public class BookStoreApi {
     }
     
     
+    /**
+     * Takes the ongoing cart of the user as an order and returns its key at once.
+     *
+     * Only the pending adds and removes are applied, and the order is saved as RECEIVED with
+     * the checkout form, in one transaction that also enqueues the first stage of
+     * OrderPipeline. Validation, repricing, payment, the sales counters and the confirmation
+     * e-mail then run in the background; clients poll getOrderStatus for the outcome.
+     *
+     * With a requestId, the key of the order is recorded in the same transaction, so a
+     * retry returns the current status of that order instead of a 404 for the cart. A retry
+     * with another checkout form is rejected.
+     *
+     * @param user A user who invokes this method, null when the user is not signed in.
+     * @param checkoutForm The shipping address and the card details.
+     * @param requestId A client-generated id of this request, null to skip deduplication.
+     * @return the key and the status of the order.
+     * @throws UnauthorizedException when the user is not signed in.
+     * @throws NotFoundException when the user has no ongoing cart.
+     * @throws ConflictException when the requestId was used with another checkout form.
+     */
     @ApiMethod(name = "checkout", 
     		path = "checkout", 
     		httpMethod = HttpMethod.POST)
-    public WrappedBoolean  checkout(final User user, final CheckoutForm checkoutForm)
-        throws UnauthorizedException {
+    public OrderReceipt checkout(final User user, final CheckoutForm checkoutForm,
+            @Named("requestId") @Nullable final String requestId)
+        throws UnauthorizedException, NotFoundException, ConflictException {
         if (user == null) {
             throw new UnauthorizedException("Authorization required");
         }
-        
-        final Queue queue = QueueFactory.getDefaultQueue();
+
+        final RequestContext context = RequestContext.forUser(user);
+        final Key<Profile> profileKey = context.getProfileKey();
+        final String fingerprint = IdempotencyStore.fingerprint(checkoutForm.getAddress(),
+                checkoutForm.getCardName(), checkoutForm.getCardNumber(),
+                checkoutForm.getCardExpiryDate(), checkoutForm.getCardCcv());
+
+        // A retry of a recorded checkout only reads its order.
+        if (requestId != null) {
+            IdempotencyStore.Entry recorded =
+                    IdempotencyStore.get().get(profileKey, "checkout", requestId);
+            if (recorded != null) {
+                checkFingerprint(recorded, requestId, fingerprint);
+                Cart order = ofy().load().key(Key.<Cart>create(recorded.getResult())).now();
+                if (order != null) {
+                    return new OrderReceipt(order);
+                }
+            }
+        }
+
+        // A commit applies a bounded number of pending operations, so a long journal is
+        // applied ahead of the checkout transaction.
+        CartMutations.getCompactedCart(context);
 
         // Start a transaction.
-        Cart cart = ofy().transact(new Work<Cart>() {
+        final IdempotencyStore.Entry[] conflicting = new IdempotencyStore.Entry[1];
+        Cart order = ofy().transact(new Work<Cart>() {
             @Override
             public Cart run() {
-            	Profile profile = getProfileFromUser(user);
+                // A concurrent attempt may have committed since the lookup above.
+                if (requestId != null) {
+                    IdempotencyStore.Entry recorded =
+                            IdempotencyStore.get().get(profileKey, "checkout", requestId);
+                    if (recorded != null && !recorded.matches(fingerprint)) {
+                        conflicting[0] = recorded;
+                        return null;
+                    }
+                    if (recorded != null) {
+                        return ofy().load().key(Key.<Cart>create(recorded.getResult())).now();
+                    }
+                }
+            	Profile profile = context.loadForTransaction();
+                // Applies the pending adds and removes
+                Cart cart = CartMutations.compact(context);
 
-                if(!profile.haveOngoingOrder()){
+                if(cart == null){
                 	return null;
                 }
-                // Get the key of the card to get cart entity
-                Key<Cart> cartKey = Key.create(profile.getOnGoingCartId());
-                Cart cart = ofy().load().key(cartKey).now();
                 
                 cart.updateWithCheckoutForm(checkoutForm);
+                cart.setCustomerDisplayName(profile.getDisplayName());
                 cart.setToCheckOut(true);
+                cart.setStatus(OrderStatus.RECEIVED, null);
                 profile.clearOnGoingCartId(); //to clear ongoing cart
 
                 // Save cart and profile Entities
                 ofy().save().entities(cart, profile).now();
-                
-                
-                queue.add(ofy().getTransaction(),
-                        TaskOptions.Builder.withUrl("/tasks/send_confirmation_email")
-                        .param("email", profile.getMainEmail())
-                        .param("name", profile.getDisplayName())
-                        .param("cartInfo", cart.toString()));
-                ofy().clear();
 
+                OrderPipeline.enqueue(ofy().getTransaction(), OrderPipeline.Stage.VALIDATE,
+                        cart.getKey());
+                if (requestId != null) {
+                    IdempotencyStore.get().put(profileKey, "checkout", requestId,
+                            fingerprint, cart.getWebsafeKey());
+                }
                 return cart;
             }
         });
-        
-         return new WrappedBoolean(true);
+        if (conflicting[0] != null) {
+            checkFingerprint(conflicting[0], requestId, fingerprint);
+        }
+        if (order == null) {
+            throw new NotFoundException("No ongoing cart");
+        }
+        return new OrderReceipt(order);
+    }
+
+    /**
+     * Returns the status of an order of the user in the checkout pipeline.
+     *
+     * A REJECTED or PAYMENT_DECLINED order keeps its status, and its books are put back in a
+     * new ongoing cart, so the customer can check out again. A customer who started another
+     * cart since the checkout keeps that one instead.
+     *
+     * @param user A user who invokes this method, null when the user is not signed in.
+     * @param websafeOrderKey The key returned by checkout.
+     * @return the key and the status of the order.
+     * @throws UnauthorizedException when the user is not signed in.
+     * @throws BadRequestException when the key is not valid.
+     * @throws NotFoundException when the user has no order with the given key.
+     */
+    @ApiMethod(
+            name = "getOrderStatus",
+            path = "order/{websafeOrderKey}",
+            httpMethod = HttpMethod.GET
+    )
+    public OrderReceipt getOrderStatus(final User user,
+            @Named("websafeOrderKey") final String websafeOrderKey)
+            throws UnauthorizedException, BadRequestException, NotFoundException {
+        if (user == null) {
+            throw new UnauthorizedException("Authorization required");
+        }
+        Key<Cart> orderKey;
+        try {
+            orderKey = Key.create(websafeOrderKey);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException("Invalid order key: " + websafeOrderKey);
+        }
+        // The orders of other users are not found, rather than forbidden.
+        Cart order = Key.create(Profile.class, user.getUserId()).equals(orderKey.getParent())
+                ? ofy().load().key(orderKey).now() : null;
+        if (order == null || order.getStatus() == null) {
+            throw new NotFoundException("No order found with key: " + websafeOrderKey);
+        }
+        return new OrderReceipt(order);
     }
     
+    /**
+     * Returns the sales totals of a range of days, of some books and of a customer.
+     * The totals are read from pre-aggregated counters with one batch get, and are updated
+     * shortly after each checkout. Only administrators may read them.
+     *
+     * @param user A user who invokes this method, null when the user is not signed in.
+     * @param from The first day, as yyyy-MM-dd in UTC.
+     * @param to The last day, as yyyy-MM-dd in UTC, null for the same day as from.
+     * @param websafeBookKeys The String representations of the Book Keys, null for none.
+     * @param customerUserId The userId of a customer, null for none.
+     * @return the totals per day, per book and of the customer.
+     * @throws UnauthorizedException when the user is not signed in.
+     * @throws ForbiddenException when the user is not an administrator.
+     * @throws BadRequestException when a day or a key is not valid, or the range is too long.
+     */
+    @ApiMethod(
+            name = "getSalesStats",
+            path = "salesStats",
+            httpMethod = HttpMethod.GET
+    )
+    public SalesStats.Report getSalesStats(final User user,
+            @Named("from") final String from,
+            @Named("to") @Nullable final String to,
+            @Named("websafeBookKey") @Nullable final List<String> websafeBookKeys,
+            @Named("customerUserId") @Nullable final String customerUserId)
+            throws UnauthorizedException, ForbiddenException, BadRequestException {
+        if (user == null) {
+            throw new UnauthorizedException("Authorization required");
+        }
+        checkAdmin(user);
+
+        List<String> days = new ArrayList<>();
+        SimpleDateFormat dayFormat = new SimpleDateFormat("yyyy-MM-dd", Locale.ROOT);
+        dayFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        dayFormat.setLenient(false);
+        try {
+            Calendar day = Calendar.getInstance(TimeZone.getTimeZone("UTC"), Locale.ROOT);
+            day.setTime(dayFormat.parse(from));
+            Date last = dayFormat.parse(to == null ? from : to);
+            while (!day.getTime().after(last)) {
+                if (days.size() == SalesStats.MAX_DAYS) {
+                    throw new BadRequestException("At most " + SalesStats.MAX_DAYS + " days per request");
+                }
+                days.add(dayFormat.format(day.getTime()));
+                day.add(Calendar.DAY_OF_MONTH, 1);
+            }
+        } catch (ParseException e) {
+            throw new BadRequestException("Invalid day, expected yyyy-MM-dd: " + e.getMessage());
+        }
+
+        List<Key<Book>> bookKeys = new ArrayList<>();
+        if (websafeBookKeys != null) {
+            if (websafeBookKeys.size() > SalesStats.MAX_BOOKS) {
+                throw new BadRequestException("At most " + SalesStats.MAX_BOOKS + " books per request");
+            }
+            for (String websafeBookKey : websafeBookKeys) {
+                try {
+                    bookKeys.add(Key.<Book>create(websafeBookKey));
+                } catch (IllegalArgumentException e) {
+                    throw new BadRequestException("Invalid book key: " + websafeBookKey);
+                }
+            }
+        }
+        return SalesStats.read(days, bookKeys, customerUserId);
+    }
+
     /**
      * Returns a Cart object with the given cartId.
      *
@@ -640,10 +1519,10 @@ public class BookStoreApi {
             throws NotFoundException {
         Key<Cart> cartKey = Key.create(websafeCartKey);
         Cart cart = ofy().load().key(cartKey).now();
-        ofy().clear();
         if (cart == null) {
             throw new NotFoundException("No cart found with key: " + websafeCartKey);
         }
+        resolveCustomerDisplayNames(Collections.singletonList(cart));
         return cart;
     }
     
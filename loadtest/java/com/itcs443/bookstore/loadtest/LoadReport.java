@@ -0,0 +1,174 @@
+package com.itcs443.bookstore.loadtest;
+
+import com.itcs443.bookstore.service.ApiMetrics;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The latencies and errors of every step and task of a run, and the report printed at its
+ * end.
+ *
+ * The latencies are kept exactly, so that the percentiles are not rounded to the buckets
+ * of ApiMetrics; the RPC counts and commit conflicts are read from ApiMetrics.
+ */
+public class LoadReport {
+
+    private static final double[] PERCENTILES = {50, 90, 95, 99};
+
+    private static final String COMMIT = "datastore_v3.Commit";
+
+    /**
+     * The samples of one step.
+     */
+    private static class StepStats {
+        private long[] latencies = new long[1024];
+        private int count;
+        private int errors;
+
+        private synchronized void record(long latencyMicros, boolean failed) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = latencyMicros;
+            if (failed) {
+                errors++;
+            }
+        }
+
+        private synchronized long[] sortedLatencies() {
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+
+        private synchronized int getErrors() {
+            return errors;
+        }
+    }
+
+    private final ConcurrentMap<String, StepStats> steps = new ConcurrentHashMap<>();
+
+    private final List<String> notes = Collections.synchronizedList(new ArrayList<String>());
+
+    private final long commitsBefore;
+
+    private final long conflictsBefore;
+
+    private long startedAt;
+
+    private long finishedAt;
+
+    /**
+     * Creates the report of a run, ignoring the RPCs made until now, e.g. by the seeding.
+     */
+    public LoadReport() {
+        Long commits = ApiMetrics.get().getRpcCounts().get(COMMIT);
+        this.commitsBefore = commits == null ? 0 : commits;
+        this.conflictsBefore = ApiMetrics.get().getCommitConflicts();
+    }
+
+    public void start() {
+        startedAt = System.currentTimeMillis();
+    }
+
+    public void finish() {
+        finishedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Adds a remark printed at the end of the report, e.g. what the run left out.
+     *
+     * @param note the remark.
+     */
+    public void note(String note) {
+        notes.add(note);
+    }
+
+    /**
+     * Records one call of a step, or one run of a task.
+     *
+     * @param step the name of the step, or "task:" and the name of the task.
+     * @param latencyMicros the time the call took.
+     * @param failed true when the call threw.
+     */
+    public void record(String step, long latencyMicros, boolean failed) {
+        StepStats stats = steps.get(step);
+        if (stats == null) {
+            steps.putIfAbsent(step, new StepStats());
+            stats = steps.get(step);
+        }
+        stats.record(latencyMicros, failed);
+    }
+
+    /**
+     * Prints the throughput, latency percentiles, errors and RPCs of every step, then the
+     * commits and the share of them that conflicted and were retried.
+     *
+     * @param out the stream to print to.
+     */
+    public void print(PrintStream out) {
+        double seconds = Math.max(1, finishedAt - startedAt) / 1000.0;
+        long total = 0;
+        out.println(String.format(Locale.ROOT, "%-24s %8s %9s %9s %9s %9s %9s %9s %7s",
+                "step", "calls", "calls/s", "p50 ms", "p90 ms", "p95 ms", "p99 ms", "max ms", "errors"));
+        for (Map.Entry<String, StepStats> entry : new TreeMap<>(steps).entrySet()) {
+            long[] sorted = entry.getValue().sortedLatencies();
+            total += sorted.length;
+            StringBuilder line = new StringBuilder(String.format(Locale.ROOT, "%-24s %8d %9.1f",
+                    entry.getKey(), sorted.length, sorted.length / seconds));
+            for (double percentile : PERCENTILES) {
+                line.append(String.format(Locale.ROOT, " %9.1f", percentile(sorted, percentile) / 1000.0));
+            }
+            line.append(String.format(Locale.ROOT, " %9.1f %7d",
+                    sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1000.0,
+                    entry.getValue().getErrors()));
+            out.println(line);
+        }
+        out.println(String.format(Locale.ROOT, "total %d calls in %.1f s, %.1f calls/s",
+                total, seconds, total / seconds));
+
+        out.println();
+        out.println("RPCs per call:");
+        for (Map.Entry<String, StepStats> entry : new TreeMap<>(steps).entrySet()) {
+            int calls = entry.getValue().sortedLatencies().length;
+            for (Map.Entry<String, Long> rpc : ApiMetrics.get().getRpcCounts(entry.getKey()).entrySet()) {
+                out.println(String.format(Locale.ROOT, "  %-24s %-32s %10d %8.2f",
+                        entry.getKey(), rpc.getKey(), rpc.getValue(),
+                        calls == 0 ? 0 : (double) rpc.getValue() / calls));
+            }
+        }
+
+        Long commitsAfter = ApiMetrics.get().getRpcCounts().get(COMMIT);
+        long commits = (commitsAfter == null ? 0 : commitsAfter) - commitsBefore;
+        long conflicts = ApiMetrics.get().getCommitConflicts() - conflictsBefore;
+        out.println();
+        out.println(String.format(Locale.ROOT,
+                "commits %d, conflicts %d, retry rate %.2f%%",
+                commits, conflicts, commits == 0 ? 0 : 100.0 * conflicts / commits));
+        synchronized (notes) {
+            for (String note : notes) {
+                out.println(note);
+            }
+        }
+    }
+
+    /**
+     * Returns the given percentile of sorted samples, by the nearest-rank method.
+     */
+    private static long percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+}
@@ -0,0 +1,275 @@
+package com.itcs443.bookstore.loadtest;
+
+import com.google.appengine.api.taskqueue.TaskQueuePb.TaskQueueMode;
+import com.google.appengine.api.taskqueue.dev.QueueStateInfo;
+import com.google.appengine.api.users.User;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.Delegate;
+import com.google.apphosting.api.ApiProxy.Environment;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.util.Closeable;
+import com.itcs443.bookstore.form.BookBatchForm;
+import com.itcs443.bookstore.form.BookForm;
+import com.itcs443.bookstore.form.ProfileForm;
+import com.itcs443.bookstore.service.ApiMetrics;
+import com.itcs443.bookstore.service.CountingApiDelegate;
+import com.itcs443.bookstore.spi.BookStoreApi;
+import com.itcs443.bookstore.spi.BookStoreApi.ItemResult;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs a Scenario against the real BookStoreApi, backed by the local datastore, memcache
+ * and task queue services of the App Engine SDK.
+ *
+ * The API is called in process, one thread per virtual user, as the Endpoints servlet
+ * would call it: each call gets its own Objectify context and is timed in ApiMetrics, and
+ * every RPC goes through CountingApiDelegate. The local datastore detects conflicting
+ * commits like the production one, so contention shows up as retries.
+ *
+ * The push tasks, i.e. the stages of the checkout pipeline and the sales counter updates,
+ * run in process through TaskCallback and are reported with the steps; the run waits for
+ * the push queues to drain before it ends. The confirmation e-mails are left in their pull
+ * queue: MailDispatcher is not part of the run.
+ *
+ * Run main() from the root of the project; the scenario is read from the system
+ * properties loadtest.users, loadtest.catalogSize, loadtest.durationSeconds,
+ * loadtest.rampUpSeconds, loadtest.thinkMinMillis and loadtest.thinkMaxMillis.
+ */
+public class LoadTest {
+
+    private static final Logger LOG = Logger.getLogger(LoadTest.class.getName());
+
+    private static final List<String> CATEGORIES = Collections.unmodifiableList(Arrays.asList(
+            "Fiction", "Science", "History", "Children", "Travel", "Cooking", "Business", "Art"));
+
+    private static final int SEED_BATCH_SIZE = 1000;
+
+    /**
+     * How long the run waits for the push queues to drain after the users stopped.
+     */
+    private static final long DRAIN_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final User ADMIN = new User("loadadmin@example.com", "example.com", "loadadmin");
+
+    /**
+     * Exposes the environment of the helper to the threads of the virtual users.
+     */
+    static class Helper extends LocalServiceTestHelper {
+        private Helper(LocalServiceTestConfig... configs) {
+            super(configs);
+        }
+
+        Environment newThreadEnvironment() {
+            return newEnvironment();
+        }
+    }
+
+    private final Scenario scenario;
+
+    private final BookStoreApi api = new BookStoreApi();
+
+    public LoadTest(Scenario scenario) {
+        this.scenario = scenario;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Scenario scenario = Scenario.named("browse-and-buy")
+                .users(Integer.getInteger("loadtest.users", 20))
+                .catalogSize(Integer.getInteger("loadtest.catalogSize", 2000))
+                .duration(Long.getLong("loadtest.durationSeconds", 60), TimeUnit.SECONDS)
+                .rampUp(Long.getLong("loadtest.rampUpSeconds", 10), TimeUnit.SECONDS)
+                .thinkTime(Long.getLong("loadtest.thinkMinMillis", 100),
+                        Long.getLong("loadtest.thinkMaxMillis", 500), TimeUnit.MILLISECONDS)
+                .then(Step.queryBooks())
+                .then(Step.getBook(), 0.8)
+                .then(Step.addBookToCart(), 0.4)
+                .then(Step.getBookInCart(), 0.3)
+                .then(Step.checkout(), 0.1);
+        new LoadTest(scenario).run().print(System.out);
+    }
+
+    /**
+     * Starts the local services, seeds the catalog, runs the users and stops the services.
+     *
+     * @return the report of the run.
+     */
+    public LoadReport run() throws InterruptedException {
+        final Helper helper = new Helper(
+                new LocalDatastoreServiceTestConfig().setNoStorage(true),
+                new LocalMemcacheServiceTestConfig(),
+                new LocalTaskQueueTestConfig()
+                        .setQueueXmlPath("webapp/WEB-INF/queue.xml")
+                        // The helper disables the execution unless told otherwise.
+                        .setDisableAutoTaskExecution(false)
+                        .setCallbackClass(TaskCallback.class));
+        TaskCallback.install(helper);
+        helper.setUp();
+        Delegate<?> localDelegate = ApiProxy.getDelegate();
+        CountingApiDelegate.install();
+        try {
+            LOG.info("Seeding " + scenario.getCatalogSize() + " books");
+            final List<String> catalog = Collections.unmodifiableList(seedCatalog());
+
+            final LoadReport report = new LoadReport();
+            report.note("Confirmation e-mails are left in their pull queue: "
+                    + "MailDispatcher is not part of the run.");
+            TaskCallback.record(report);
+            final long endsAt = System.currentTimeMillis() + scenario.getDurationMillis();
+            ExecutorService executor = Executors.newFixedThreadPool(scenario.getUsers());
+            LOG.info("Running " + scenario);
+            report.start();
+            for (int i = 0; i < scenario.getUsers(); i++) {
+                final VirtualUser user = new VirtualUser(i, CATEGORIES, catalog);
+                final long startDelay = scenario.getRampUpMillis() * i / scenario.getUsers();
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        ApiProxy.setEnvironmentForCurrentThread(helper.newThreadEnvironment());
+                        try {
+                            Thread.sleep(startDelay);
+                            runUser(user, report, endsAt);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        } finally {
+                            ApiProxy.clearEnvironmentForCurrentThread();
+                        }
+                    }
+                });
+            }
+            executor.shutdown();
+            executor.awaitTermination(scenario.getDurationMillis() + TimeUnit.MINUTES.toMillis(1),
+                    TimeUnit.MILLISECONDS);
+            int pendingTasks = drainPushQueues();
+            if (pendingTasks > 0) {
+                report.note(pendingTasks + " push tasks were still queued at the end.");
+            }
+            report.finish();
+            return report;
+        } finally {
+            TaskCallback.record(null);
+            // The helper looks up its services through the local delegate.
+            ApiProxy.setDelegate(localDelegate);
+            helper.tearDown();
+        }
+    }
+
+    /**
+     * Waits until the push queues are empty, or DRAIN_MILLIS passed.
+     *
+     * @return the number of push tasks left.
+     */
+    private static int drainPushQueues() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + DRAIN_MILLIS;
+        while (true) {
+            int pending = 0;
+            for (QueueStateInfo queue
+                    : LocalTaskQueueTestConfig.getLocalTaskQueue().getQueueStateInfo().values()) {
+                if (queue.getMode() == TaskQueueMode.Mode.PUSH) {
+                    pending += queue.getCountTasks();
+                }
+            }
+            if (pending == 0 || System.currentTimeMillis() >= deadline) {
+                return pending;
+            }
+            Thread.sleep(100);
+        }
+    }
+
+    /**
+     * Creates the catalog through createBooks, spreading the books over the categories.
+     *
+     * @return the websafe keys of the books.
+     */
+    private List<String> seedCatalog() {
+        List<String> catalog = new ArrayList<>(scenario.getCatalogSize());
+        try (Closeable ofy = ObjectifyService.begin()) {
+            for (int first = 0; first < scenario.getCatalogSize(); first += SEED_BATCH_SIZE) {
+                int last = Math.min(scenario.getCatalogSize(), first + SEED_BATCH_SIZE);
+                List<BookForm> forms = new ArrayList<>(last - first);
+                for (int i = first; i < last; i++) {
+                    forms.add(new BookForm("Book " + i, "Description of book " + i,
+                            Arrays.asList(CATEGORIES.get(i % CATEGORIES.size())),
+                            "Author " + (i % 200), (5 + i % 50) * 100L));
+                }
+                for (ItemResult result : api.createBooks(ADMIN, new BookBatchForm(forms))) {
+                    if (Boolean.TRUE.equals(result.getResult())) {
+                        catalog.add(result.getWebsafeKey());
+                    }
+                }
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to seed the catalog", e);
+        }
+        return catalog;
+    }
+
+    /**
+     * Repeats the script of the scenario as the given user until the end of the run.
+     */
+    private void runUser(VirtualUser user, LoadReport report, long endsAt)
+            throws InterruptedException {
+        try (Closeable ofy = ObjectifyService.begin()) {
+            api.saveProfile(user.getUser(), new ProfileForm(null, "1 Load Test Road"));
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Failed to save the profile of " + user.getUser(), e);
+        }
+        while (System.currentTimeMillis() < endsAt) {
+            for (Scenario.ScriptStep scriptStep : scenario.getScript()) {
+                if (System.currentTimeMillis() >= endsAt) {
+                    return;
+                }
+                Step step = scriptStep.getStep();
+                if (user.getRandom().nextDouble() >= scriptStep.getProbability()
+                        || !step.canRun(user)) {
+                    continue;
+                }
+                call(step, user, report);
+                think(user);
+            }
+        }
+    }
+
+    /**
+     * Calls one step as a request of its own, timed in the report and in ApiMetrics.
+     */
+    private void call(Step step, VirtualUser user, LoadReport report) {
+        boolean failed = false;
+        try (Closeable ofy = ObjectifyService.begin()) {
+            ApiMetrics.get().startCall(step.getName());
+            long startedAt = System.nanoTime();
+            try {
+                step.run(api, user);
+            } catch (Exception e) {
+                failed = true;
+                LOG.log(Level.FINE, step.getName() + " failed for " + user.getUser(), e);
+            } finally {
+                report.record(step.getName(),
+                        TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startedAt), failed);
+                ApiMetrics.get().endCall(failed);
+            }
+        }
+    }
+
+    private void think(VirtualUser user) throws InterruptedException {
+        long range = scenario.getMaxThinkMillis() - scenario.getMinThinkMillis();
+        long millis = scenario.getMinThinkMillis()
+                + (range == 0 ? 0 : (long) (user.getRandom().nextDouble() * (range + 1)));
+        if (millis > 0) {
+            Thread.sleep(millis);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.itcs443.bookstore.loadtest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A load test scenario: how many users, for how long, against how large a catalog, and the
+ * script each user repeats. A script is a list of steps taken in order, each with the
+ * probability that the user takes it in an iteration, and a think time between steps.
+ *
+ * <pre>
+ * Scenario.named("browse-and-buy")
+ *         .users(50).catalogSize(2000)
+ *         .duration(60, TimeUnit.SECONDS).rampUp(10, TimeUnit.SECONDS)
+ *         .thinkTime(200, 800, TimeUnit.MILLISECONDS)
+ *         .then(Step.queryBooks())
+ *         .then(Step.getBook(), 0.8)
+ *         .then(Step.addBookToCart(), 0.3)
+ *         .then(Step.checkout(), 0.1);
+ * </pre>
+ */
+public class Scenario {
+
+    /**
+     * A step of the script with the probability that it is taken.
+     */
+    public static class ScriptStep {
+        private final Step step;
+        private final double probability;
+
+        private ScriptStep(Step step, double probability) {
+            this.step = step;
+            this.probability = probability;
+        }
+
+        public Step getStep() {
+            return step;
+        }
+
+        public double getProbability() {
+            return probability;
+        }
+    }
+
+    private final String name;
+
+    private int users = 10;
+
+    private int catalogSize = 1000;
+
+    private long durationMillis = TimeUnit.SECONDS.toMillis(30);
+
+    private long rampUpMillis;
+
+    private long minThinkMillis;
+
+    private long maxThinkMillis;
+
+    private final List<ScriptStep> script = new ArrayList<>();
+
+    private Scenario(String name) {
+        this.name = name;
+    }
+
+    public static Scenario named(String name) {
+        return new Scenario(name);
+    }
+
+    public Scenario users(int users) {
+        if (users <= 0) {
+            throw new IllegalArgumentException("The number of users must be positive");
+        }
+        this.users = users;
+        return this;
+    }
+
+    public Scenario catalogSize(int catalogSize) {
+        if (catalogSize <= 0) {
+            throw new IllegalArgumentException("The catalog size must be positive");
+        }
+        this.catalogSize = catalogSize;
+        return this;
+    }
+
+    /**
+     * Sets how long the users run, ramp up included.
+     */
+    public Scenario duration(long duration, TimeUnit unit) {
+        this.durationMillis = unit.toMillis(duration);
+        return this;
+    }
+
+    /**
+     * Sets the time over which the users start, evenly spaced.
+     */
+    public Scenario rampUp(long rampUp, TimeUnit unit) {
+        this.rampUpMillis = unit.toMillis(rampUp);
+        return this;
+    }
+
+    /**
+     * Sets the bounds of the time a user waits after each step, picked uniformly.
+     */
+    public Scenario thinkTime(long min, long max, TimeUnit unit) {
+        if (min < 0 || max < min) {
+            throw new IllegalArgumentException("Invalid think time: " + min + " to " + max);
+        }
+        this.minThinkMillis = unit.toMillis(min);
+        this.maxThinkMillis = unit.toMillis(max);
+        return this;
+    }
+
+    /**
+     * Appends a step that is taken in every iteration.
+     */
+    public Scenario then(Step step) {
+        return then(step, 1);
+    }
+
+    /**
+     * Appends a step that is taken in an iteration with the given probability.
+     */
+    public Scenario then(Step step, double probability) {
+        if (probability <= 0 || probability > 1) {
+            throw new IllegalArgumentException("Invalid probability: " + probability);
+        }
+        script.add(new ScriptStep(step, probability));
+        return this;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getUsers() {
+        return users;
+    }
+
+    public int getCatalogSize() {
+        return catalogSize;
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    public long getRampUpMillis() {
+        return rampUpMillis;
+    }
+
+    public long getMinThinkMillis() {
+        return minThinkMillis;
+    }
+
+    public long getMaxThinkMillis() {
+        return maxThinkMillis;
+    }
+
+    public List<ScriptStep> getScript() {
+        return Collections.unmodifiableList(script);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder steps = new StringBuilder();
+        for (ScriptStep scriptStep : script) {
+            if (steps.length() > 0) {
+                steps.append(", ");
+            }
+            steps.append(scriptStep.step.getName()).append(" p=").append(scriptStep.probability);
+        }
+        return name + ": users=" + users + " catalogSize=" + catalogSize
+                + " durationMillis=" + durationMillis + " rampUpMillis=" + rampUpMillis
+                + " thinkMillis=" + minThinkMillis + ".." + maxThinkMillis + " script=[" + steps + "]";
+    }
+}
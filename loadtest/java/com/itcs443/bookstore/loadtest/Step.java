@@ -0,0 +1,127 @@
+package com.itcs443.bookstore.loadtest;
+
+import com.google.api.server.spi.response.CollectionResponse;
+import com.itcs443.bookstore.domain.Book;
+import com.itcs443.bookstore.form.BookQueryForm;
+import com.itcs443.bookstore.form.BookQueryForm.Field;
+import com.itcs443.bookstore.form.BookQueryForm.Filter;
+import com.itcs443.bookstore.form.CheckoutForm;
+import com.itcs443.bookstore.spi.BookStoreApi;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One call of a virtual user to the BookStoreApi. The name of a step is the name of the
+ * API method it calls, so that its RPCs are counted under that method in ApiMetrics.
+ */
+public abstract class Step {
+
+    /**
+     * The number of books asked by queryBooks, as a page of the web client.
+     */
+    private static final int QUERY_LIMIT = 20;
+
+    private final String name;
+
+    private Step(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns true when the user can take this step now, e.g. checkout needs a book in
+     * the cart. A step that cannot be taken is skipped and not measured.
+     *
+     * @param user the virtual user.
+     * @return true when the step can be taken.
+     */
+    public boolean canRun(VirtualUser user) {
+        return true;
+    }
+
+    /**
+     * Calls the API as the given user.
+     *
+     * @param api the API under test.
+     * @param user the virtual user.
+     * @throws Exception when the call fails.
+     */
+    public abstract void run(BookStoreApi api, VirtualUser user) throws Exception;
+
+    /**
+     * Browses a random category, and remembers the books of the first page.
+     */
+    public static Step queryBooks() {
+        return new Step("queryBooks") {
+            @Override
+            public void run(BookStoreApi api, VirtualUser user) throws Exception {
+                BookQueryForm form = new BookQueryForm()
+                        .filter(new Filter(Field.CATEGORY, user.pickCategory()));
+                CollectionResponse<Book> page = api.queryBooks(form, null, QUERY_LIMIT);
+                List<String> websafeBookKeys = new ArrayList<>(QUERY_LIMIT);
+                for (Book book : page.getItems()) {
+                    websafeBookKeys.add(book.getWebsafeKey());
+                }
+                user.setBrowsedBooks(websafeBookKeys);
+            }
+        };
+    }
+
+    /**
+     * Opens one of the books last browsed, or of the catalog when nothing was browsed yet.
+     */
+    public static Step getBook() {
+        return new Step("getBook") {
+            @Override
+            public void run(BookStoreApi api, VirtualUser user) throws Exception {
+                api.getBook(user.pickBook());
+            }
+        };
+    }
+
+    /**
+     * Adds one of the books last browsed to the cart, with a request id as the web client.
+     */
+    public static Step addBookToCart() {
+        return new Step("addBookToCart") {
+            @Override
+            public void run(BookStoreApi api, VirtualUser user) throws Exception {
+                api.addBookToCart(user.getUser(), user.pickBook(), user.nextRequestId());
+                user.addedToCart();
+            }
+        };
+    }
+
+    public static Step getBookInCart() {
+        return new Step("getBookInCart") {
+            @Override
+            public void run(BookStoreApi api, VirtualUser user) throws Exception {
+                api.getBookInCart(user.getUser());
+            }
+        };
+    }
+
+    /**
+     * Checks out the cart with a request id, when a book was added since the last checkout.
+     */
+    public static Step checkout() {
+        return new Step("checkout") {
+            @Override
+            public boolean canRun(VirtualUser user) {
+                return user.hasCart();
+            }
+
+            @Override
+            public void run(BookStoreApi api, VirtualUser user) throws Exception {
+                api.checkout(user.getUser(), new CheckoutForm(null, "1 Load Test Road",
+                        "Load Test", "4111111111111111", "12/30", 123),
+                        user.nextRequestId());
+                user.checkedOut();
+            }
+        };
+    }
+}
@@ -0,0 +1,133 @@
+package com.itcs443.bookstore.loadtest;
+
+import static com.itcs443.bookstore.service.OfyService.ofy;
+
+import com.google.appengine.api.taskqueue.dev.LocalTaskQueueCallback;
+import com.google.appengine.api.urlfetch.URLFetchServicePb.URLFetchRequest;
+import com.google.apphosting.api.ApiProxy;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.util.Closeable;
+import com.itcs443.bookstore.domain.Cart;
+import com.itcs443.bookstore.service.ApiMetrics;
+import com.itcs443.bookstore.service.OrderPipeline;
+import com.itcs443.bookstore.service.SalesStats;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the push tasks of the local task queue in process, as ProcessOrderServlet and
+ * UpdateSalesStatsServlet would, so that the checkout pipeline and the sales counter
+ * updates are part of the load.
+ *
+ * The task queue creates the callback itself and calls it on its own threads, so the
+ * helper and the report are handed over through static fields. Each task gets the
+ * environment of the helper and its own Objectify context, and is timed in the report as
+ * "task:" followed by its stage, e.g. task:VALIDATE, or task:UPDATE_SALES_STATS. A task
+ * that throws answers 500 and is retried by the queue. Tasks for other URLs are dropped.
+ */
+public class TaskCallback implements LocalTaskQueueCallback {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger LOG = Logger.getLogger(TaskCallback.class.getName());
+
+    private static final String UPDATE_SALES_STATS_URL = "/tasks/update_sales_stats";
+
+    private static volatile LoadTest.Helper helper;
+
+    private static volatile LoadReport report;
+
+    /**
+     * Gives the tasks the environment of the given helper.
+     */
+    static void install(LoadTest.Helper helper) {
+        TaskCallback.helper = helper;
+    }
+
+    /**
+     * Records the tasks in the given report from now on, or stops recording when null.
+     */
+    static void record(LoadReport report) {
+        TaskCallback.report = report;
+    }
+
+    @Override
+    public void initialize(Map<String, String> properties) {}
+
+    @Override
+    public int execute(URLFetchRequest request) {
+        String path = URI.create(request.getUrl()).getPath();
+        Map<String, String> params = parseForm(request.getPayload().toStringUtf8());
+        String name;
+        if (OrderPipeline.URL.equals(path)) {
+            name = "task:" + params.get("stage");
+        } else if (UPDATE_SALES_STATS_URL.equals(path)) {
+            name = "task:UPDATE_SALES_STATS";
+        } else {
+            LOG.warning("Dropping a task for " + path);
+            return 200;
+        }
+
+        ApiProxy.setEnvironmentForCurrentThread(helper.newThreadEnvironment());
+        boolean failed = false;
+        try (Closeable session = ObjectifyService.begin()) {
+            ApiMetrics.get().startCall(name);
+            long startedAt = System.nanoTime();
+            try {
+                if (OrderPipeline.URL.equals(path)) {
+                    OrderPipeline.run(OrderPipeline.Stage.valueOf(params.get("stage")),
+                            Key.<Cart>create(params.get("orderKey")));
+                } else {
+                    updateSalesStats(params.get("cartKey"));
+                }
+            } catch (Exception e) {
+                failed = true;
+                LOG.log(Level.FINE, name + " failed", e);
+            } finally {
+                LoadReport current = report;
+                if (current != null) {
+                    current.record(name,
+                            TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startedAt), failed);
+                }
+                ApiMetrics.get().endCall(failed);
+            }
+        } finally {
+            ApiProxy.clearEnvironmentForCurrentThread();
+        }
+        return failed ? 500 : 200;
+    }
+
+    /**
+     * Adds a confirmed order to the sales counters, like UpdateSalesStatsServlet.
+     */
+    private static void updateSalesStats(String websafeCartKey) {
+        Cart cart = ofy().load().key(Key.<Cart>create(websafeCartKey)).now();
+        if (cart != null && cart.isConfirmed()) {
+            SalesStats.add(cart);
+        }
+    }
+
+    private static Map<String, String> parseForm(String body) {
+        Map<String, String> params = new HashMap<>();
+        try {
+            for (String pair : body.split("&")) {
+                int equals = pair.indexOf('=');
+                if (equals > 0) {
+                    params.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+                            URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+                }
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+        return params;
+    }
+}
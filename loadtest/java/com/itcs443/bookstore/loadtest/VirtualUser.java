@@ -0,0 +1,86 @@
+package com.itcs443.bookstore.loadtest;
+
+import com.google.appengine.api.users.User;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A simulated customer: a signed in user with the books they last browsed and whether
+ * their cart holds anything. Each virtual user runs on a thread of its own.
+ */
+public class VirtualUser {
+
+    private final User user;
+
+    private final Random random;
+
+    private final List<String> categories;
+
+    private final List<String> catalog;
+
+    private List<String> browsedBooks = Collections.emptyList();
+
+    private boolean cart;
+
+    private int requests;
+
+    /**
+     * @param index the number of the user, which also seeds its random choices.
+     * @param categories the categories of the catalog.
+     * @param catalog the websafe keys of every book of the catalog.
+     */
+    public VirtualUser(int index, List<String> categories, List<String> catalog) {
+        this.user = new User("loaduser" + index + "@example.com", "example.com",
+                "loaduser" + index);
+        this.random = new Random(index);
+        this.categories = categories;
+        this.catalog = catalog;
+    }
+
+    public User getUser() {
+        return user;
+    }
+
+    public Random getRandom() {
+        return random;
+    }
+
+    public String pickCategory() {
+        return categories.get(random.nextInt(categories.size()));
+    }
+
+    /**
+     * Picks one of the books last browsed, or of the catalog when the last page was empty.
+     *
+     * @return the websafe key of a Book.
+     */
+    public String pickBook() {
+        List<String> books = browsedBooks.isEmpty() ? catalog : browsedBooks;
+        return books.get(random.nextInt(books.size()));
+    }
+
+    public void setBrowsedBooks(List<String> websafeBookKeys) {
+        this.browsedBooks = websafeBookKeys;
+    }
+
+    /**
+     * Returns a new request id, unique across users and runs of the same user.
+     */
+    public String nextRequestId() {
+        return user.getUserId() + "-" + System.currentTimeMillis() + "-" + requests++;
+    }
+
+    public boolean hasCart() {
+        return cart;
+    }
+
+    public void addedToCart() {
+        cart = true;
+    }
+
+    public void checkedOut() {
+        cart = false;
+    }
+}
@@ -0,0 +1,10 @@
+/**
+ * Load test harness of the bookstore API.
+ *
+ * A Scenario describes the users and the script they repeat, and LoadTest runs it against
+ * the real BookStoreApi on the local App Engine services, then prints a LoadReport.
+ * loadtest/pom.xml builds it against the classes jar of the application; run
+ * "mvn -B install -DskipTests", then "mvn -B -f loadtest/pom.xml compile exec:java" from the
+ * root of the project.
+ */
+package com.itcs443.bookstore.loadtest;
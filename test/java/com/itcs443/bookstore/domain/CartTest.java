@@ -0,0 +1,135 @@
+package com.itcs443.bookstore.domain;
+
+import static com.itcs443.bookstore.service.OfyService.ofy;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.collect.ImmutableMap;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.util.Closeable;
+import com.itcs443.bookstore.form.BookForm;
+
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CartTest {
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig(), new LocalMemcacheServiceTestConfig());
+
+    private Closeable session;
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+        session = ObjectifyService.begin();
+    }
+
+    @After
+    public void tearDown() {
+        session.close();
+        helper.tearDown();
+    }
+
+    private static Book book(long id, long priceMinor) {
+        return new Book(id, new BookForm("Book " + id, null, Arrays.asList("Fiction"),
+                "Author " + id, priceMinor));
+    }
+
+    @Test
+    public void totalIsTheSumOfTheSubtotals() {
+        Cart cart = new Cart(1, "user");
+        cart.addBook(book(10, 1999));
+        cart.addBook(book(10, 1999));
+        cart.addBook(book(11, 1));
+        assertEquals(3999L, cart.getTotalMinor());
+        assertEquals("39.99", cart.getTotal());
+        assertEquals(2, cart.getQuantity(10));
+
+        assertTrue(cart.removeBook(Key.create(Book.class, 10)));
+        assertEquals(2000L, cart.getTotalMinor());
+        assertFalse(cart.removeBook(Key.create(Book.class, 12)));
+        assertEquals(2000L, cart.getTotalMinor());
+    }
+
+    @Test
+    public void removingABookKeepsTheOtherItems() {
+        Cart cart = new Cart(1, "user");
+        cart.addBook(book(10, 100));
+        cart.addBook(book(11, 200));
+        cart.addBook(book(12, 300));
+        cart.addBook(book(12, 300));
+
+        assertTrue(cart.removeBook(Key.create(Book.class, 10)));
+        assertEquals(0, cart.getQuantity(10));
+        assertEquals(1, cart.getQuantity(11));
+        assertEquals(2, cart.getQuantity(12));
+        assertEquals(800L, cart.getTotalMinor());
+        assertEquals(Arrays.asList(Key.create(Book.class, 12).getString(),
+                Key.create(Book.class, 12).getString(), Key.create(Book.class, 11).getString()),
+                cart.getWebsafeBookKeys());
+
+        assertTrue(cart.removeBook(Key.create(Book.class, 11)));
+        cart.addBook(book(10, 100));
+        assertEquals(1, cart.getQuantity(10));
+        assertEquals(2, cart.getItems().size());
+    }
+
+    @Test
+    public void repriceUpdatesTheTotal() {
+        Cart cart = new Cart(1, "user");
+        Book book = book(10, 1000);
+        cart.addBook(book);
+        cart.addBook(book);
+        book.updateWithBookForm(new BookForm("Book 10", null, null, null, 750));
+        assertTrue(cart.reprice(ImmutableMap.of(Key.create(Book.class, 10), book)));
+        assertEquals(1500L, cart.getTotalMinor());
+        assertFalse(cart.reprice(ImmutableMap.of(Key.create(Book.class, 10), book)));
+    }
+
+    @Test
+    public void convertsTheLegacyTotal() {
+        Entity entity = new Entity("Cart", 1,
+                com.google.appengine.api.datastore.KeyFactory.createKey("Profile", "user"));
+        entity.setProperty("checkedOut", false);
+        entity.setProperty("total", 0.1 + 0.2);
+        entity.setProperty("bookKeys", Arrays.asList(Key.create(Book.class, 10).getString()));
+        DatastoreServiceFactory.getDatastoreService().put(entity);
+
+        Cart cart = ofy().load().key(Key.create(Key.create(Profile.class, "user"), Cart.class, 1))
+                .now();
+        // Its item has no snapshot yet, so the converted total is kept until a reprice.
+        assertEquals(30L, cart.getTotalMinor());
+        assertEquals(1, cart.getQuantity(10));
+        assertTrue(cart.isMissingSnapshots());
+
+        cart.reprice(ImmutableMap.of(Key.create(Book.class, 10), book(10, 1250)));
+        assertEquals(1250L, cart.getTotalMinor());
+    }
+
+    @Test
+    public void addingToALineWithoutSnapshotTakesOne() {
+        Entity entity = new Entity("Cart", 1,
+                com.google.appengine.api.datastore.KeyFactory.createKey("Profile", "user"));
+        entity.setProperty("checkedOut", false);
+        entity.setProperty("bookKeys", Arrays.asList(Key.create(Book.class, 10).getString()));
+        DatastoreServiceFactory.getDatastoreService().put(entity);
+        Cart cart = ofy().load().key(Key.create(Key.create(Profile.class, "user"), Cart.class, 1))
+                .now();
+
+        cart.addBook(book(10, 500));
+        assertFalse(cart.isMissingSnapshots());
+        assertEquals(2, cart.getQuantity(10));
+        assertEquals(1000L, cart.getTotalMinor());
+    }
+}
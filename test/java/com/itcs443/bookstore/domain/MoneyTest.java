@@ -0,0 +1,49 @@
+package com.itcs443.bookstore.domain;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class MoneyTest {
+
+    @Test
+    public void parseScalesToMinorUnits() {
+        assertEquals(1250L, Money.parse("12.5"));
+        assertEquals(1250L, Money.parse(" 12.50 "));
+        assertEquals(1200L, Money.parse("12"));
+        assertEquals(0L, Money.parse("0"));
+        assertEquals(-199L, Money.parse("-1.99"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseRejectsTooManyDecimalPlaces() {
+        Money.parse("12.505");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseRejectsText() {
+        Money.parse("twelve");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseRejectsOverflow() {
+        Money.parse("100000000000000000000");
+    }
+
+    @Test
+    public void fromDoubleRoundsHalfUp() {
+        assertEquals(10L, Money.fromDouble(0.1));
+        assertEquals(30L, Money.fromDouble(0.1 + 0.2));
+        assertEquals(1999L, Money.fromDouble(19.99));
+        assertEquals(101L, Money.fromDouble(1.005));
+        assertEquals(100L, Money.fromDouble(1.004));
+    }
+
+    @Test
+    public void formatHasTwoDecimalPlaces() {
+        assertEquals("12.50", Money.format(1250L));
+        assertEquals("0.05", Money.format(5L));
+        assertEquals("0.00", Money.format(0L));
+        assertEquals("-1.99", Money.format(-199L));
+    }
+}
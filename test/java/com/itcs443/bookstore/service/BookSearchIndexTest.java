@@ -0,0 +1,119 @@
+package com.itcs443.bookstore.service;
+
+import static com.itcs443.bookstore.service.OfyService.ofy;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.collect.ImmutableList;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.util.Closeable;
+import com.itcs443.bookstore.domain.Book;
+import com.itcs443.bookstore.form.BookForm;
+import com.itcs443.bookstore.service.BookSearchIndex.Term;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BookSearchIndexTest {
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig(), new LocalMemcacheServiceTestConfig());
+
+    private Closeable session;
+
+    private long generation;
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+        session = ObjectifyService.begin();
+        ofy().save().entities(
+                new Book(1, new BookForm("The Hobbit", "A journey there and back again",
+                        Arrays.asList("Fantasy"), "J. R. R. Tolkien", 1000)),
+                new Book(2, new BookForm("Harry Potter", "A boy wizard",
+                        Arrays.asList("Fantasy", "Children"), "J. K. Rowling", 1000)),
+                new Book(3, new BookForm("Hollow Kingdom", "Crows and the end of the world",
+                        Arrays.asList("Fiction"), "Kira Jane Buxton", 1000))).now();
+        generation = CatalogGeneration.get();
+        BookSearchIndex.get().rebuild(generation);
+    }
+
+    @After
+    public void tearDown() {
+        session.close();
+        helper.tearDown();
+    }
+
+    private List<Long> search(Term... terms) {
+        return BookSearchIndex.get().search(Arrays.asList(terms), generation);
+    }
+
+    @Test
+    public void tokenizesLettersAndDigits() {
+        assertEquals(Arrays.asList("j", "r", "r", "tolkien", "1984"),
+                BookSearchIndex.tokenize("J. R. R. Tolkien, 1984!"));
+        assertEquals(Collections.emptyList(), BookSearchIndex.tokenize(null));
+    }
+
+    @Test
+    public void matchesPrefixesInAnyField() {
+        assertEquals(ImmutableList.of(1L, 2L, 3L), search(new Term(null, "h")));
+        assertEquals(ImmutableList.of(1L, 3L), search(new Term(null, "ho")));
+        assertEquals(ImmutableList.of(2L), search(new Term(null, "wiz")));
+        assertEquals(ImmutableList.of(1L, 2L, 3L), search());
+    }
+
+    @Test
+    public void matchesPrefixesInOneField() {
+        assertEquals(ImmutableList.of(1L, 2L), search(new Term("category", "fanta")));
+        assertEquals(ImmutableList.of(3L), search(new Term("author", "kir")));
+        assertEquals(ImmutableList.<Long>of(), search(new Term("name", "crows")));
+    }
+
+    @Test
+    public void bareTermsDoNotMatchFieldNames() {
+        // Every book has a name and an author, but none mentions them.
+        assertEquals(ImmutableList.<Long>of(), search(new Term(null, "name")));
+        assertEquals(ImmutableList.<Long>of(), search(new Term(null, "author")));
+        assertEquals(ImmutableList.of(2L), search(new Term(null, "children")));
+    }
+
+    @Test
+    public void intersectsTerms() {
+        assertEquals(ImmutableList.of(1L),
+                search(new Term("category", "fantasy"), new Term(null, "hob")));
+        assertEquals(ImmutableList.<Long>of(),
+                search(new Term("category", "fiction"), new Term(null, "wizard")));
+    }
+
+    @Test
+    public void catchesUpWithBooksSavedElsewhere() {
+        ofy().save().entity(new Book(4, new BookForm("The Silmarillion", null,
+                Arrays.asList("Fantasy"), "J. R. R. Tolkien", 1000))).now();
+        generation = CatalogGeneration.bump();
+        // Served as it is until the catch-up.
+        assertEquals(ImmutableList.of(1L), search(new Term("author", "tolkien")));
+        BookSearchIndex.get().catchUp(generation);
+        assertEquals(ImmutableList.of(1L, 4L), search(new Term("author", "tolkien")));
+        assertTrue(BookSearchIndex.get().isCurrent(generation));
+    }
+
+    @Test
+    public void reindexesChangedBooks() {
+        Book book = ofy().load().type(Book.class).id(3).now();
+        book.updateWithBookForm(new BookForm("Dune", null, Arrays.asList("Science Fiction"),
+                "Frank Herbert", 1000));
+        BookSearchIndex.get().index(book, generation + 1);
+        generation++;
+        assertEquals(ImmutableList.<Long>of(), search(new Term(null, "hollow")));
+        assertEquals(ImmutableList.of(3L), search(new Term("name", "dune")));
+    }
+}
@@ -0,0 +1,128 @@
+package com.itcs443.bookstore.service;
+
+import static com.itcs443.bookstore.service.OfyService.ofy;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.appengine.api.users.User;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.util.Closeable;
+import com.itcs443.bookstore.domain.Book;
+import com.itcs443.bookstore.domain.Cart;
+import com.itcs443.bookstore.domain.CartJournal;
+import com.itcs443.bookstore.domain.CartOperation;
+import com.itcs443.bookstore.form.BookForm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CartMutationsTest {
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig(), new LocalMemcacheServiceTestConfig());
+
+    private final User user = new User("ann@example.com", "example.com", "ann");
+
+    private Closeable session;
+
+    private Book book;
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+        session = ObjectifyService.begin();
+        book = new Book(1, new BookForm("Dune", null, null, null, 1000));
+    }
+
+    @After
+    public void tearDown() {
+        session.close();
+        helper.tearDown();
+    }
+
+    private List<CartOperation> addAll(String requestId, int count) {
+        Key<CartJournal> journalKey = CartMutations.getJournalKey(user.getUserId(), requestId);
+        List<CartOperation> operations = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            operations.add(CartOperation.add(journalKey, requestId + "#" + i, book));
+        }
+        return operations;
+    }
+
+    @Test
+    public void appliesAppendedOperations() {
+        Key<CartJournal> journalKey = CartMutations.getJournalKey(user.getUserId(), "a");
+        assertTrue(CartMutations.append(CartOperation.add(journalKey, "a", book)));
+        assertFalse(CartMutations.append(CartOperation.add(journalKey, "a", book)));
+        journalKey = CartMutations.getJournalKey(user.getUserId(), "b");
+        assertTrue(CartMutations.append(
+                CartOperation.remove(journalKey, "b", Key.create(Book.class, 1))));
+
+        Cart cart = CartMutations.getCompactedCart(RequestContext.forUser(user));
+        assertEquals(0, cart.getQuantity(1));
+        assertEquals(0L, cart.getTotalMinor());
+        assertEquals(0, ofy().load().type(CartOperation.class).count());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsARequestIdReusedForAnotherOperation() {
+        Key<CartJournal> journalKey = CartMutations.getJournalKey(user.getUserId(), "a");
+        CartMutations.append(CartOperation.add(journalKey, "a", book));
+        CartMutations.append(CartOperation.remove(journalKey, "a", Key.create(Book.class, 1)));
+    }
+
+    @Test
+    public void countsPendingOperationsInTheQuantity() {
+        Key<Book> bookKey = Key.create(Book.class, 1);
+        assertEquals(0, CartMutations.getQuantity(RequestContext.forUser(user), bookKey));
+        Key<CartJournal> journalKey = CartMutations.getJournalKey(user.getUserId(), "a");
+        CartMutations.append(CartOperation.add(journalKey, "a", book));
+        assertEquals(1, CartMutations.getQuantity(RequestContext.forUser(user), bookKey));
+
+        CartMutations.getCompactedCart(RequestContext.forUser(user));
+        journalKey = CartMutations.getJournalKey(user.getUserId(), "b");
+        CartMutations.append(CartOperation.remove(journalKey, "b", bookKey));
+        assertEquals(0, CartMutations.getQuantity(RequestContext.forUser(user), bookKey));
+    }
+
+    @Test
+    public void appliesBatchesInTheirOrder() {
+        // The key of "a#10" sorts before the key of "a#2".
+        Key<CartJournal> journalKey = CartMutations.getJournalKey(user.getUserId(), "a");
+        List<CartOperation> operations = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            operations.add(CartOperation.remove(journalKey, "a#" + i, Key.create(Book.class, 1)));
+        }
+        operations.add(CartOperation.add(journalKey, "a#10", book));
+        assertTrue(CartMutations.appendAll(operations));
+
+        Cart cart = CartMutations.getCompactedCart(RequestContext.forUser(user));
+        assertEquals(1, cart.getQuantity(1));
+    }
+
+    @Test
+    public void compactsLongJournalsInSeveralCommits() {
+        int batch = CartMutations.MAX_OPERATIONS_PER_COMMIT;
+        assertTrue(CartMutations.appendAll(addAll("a", batch)));
+        assertTrue(CartMutations.appendAll(addAll("b", batch)));
+        assertFalse(CartMutations.appendAll(addAll("b", batch)));
+
+        Cart cart = CartMutations.getCompactedCart(RequestContext.forUser(user));
+        assertEquals(2 * batch, cart.getQuantity(1));
+        assertEquals(2 * batch * 1000L, cart.getTotalMinor());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsBatchesOverTheCommitLimit() {
+        CartMutations.appendAll(addAll("a", CartMutations.MAX_OPERATIONS_PER_COMMIT + 1));
+    }
+}
@@ -0,0 +1,143 @@
+package com.itcs443.bookstore.service;
+
+import static com.itcs443.bookstore.service.OfyService.ofy;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.collect.ImmutableList;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.util.Closeable;
+import com.itcs443.bookstore.domain.Book;
+import com.itcs443.bookstore.form.BookForm;
+import com.itcs443.bookstore.service.CategoryIndex.Facet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CategoryIndexTest {
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig(), new LocalMemcacheServiceTestConfig());
+
+    private Closeable session;
+
+    private long generation;
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+        session = ObjectifyService.begin();
+        // Enough books for the bitmaps to span several words.
+        List<Book> books = new ArrayList<>();
+        for (long id = 1; id <= 200; id++) {
+            List<String> categories = new ArrayList<>();
+            categories.add("All");
+            if (id % 2 == 0) {
+                categories.add("Even");
+            }
+            if (id % 3 == 0) {
+                categories.add("Three");
+            }
+            books.add(new Book(id, new BookForm("Book " + id, null, categories, null, 100)));
+        }
+        ofy().save().entities(books).now();
+        generation = CatalogGeneration.get();
+        CategoryIndex.get().rebuild(generation);
+    }
+
+    @After
+    public void tearDown() {
+        session.close();
+        helper.tearDown();
+    }
+
+    private static Map<String, Integer> toMap(List<Facet> facets) {
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        for (Facet facet : facets) {
+            counts.put(facet.getCategory(), facet.getCount());
+        }
+        return counts;
+    }
+
+    @Test
+    public void countsTheBooksOfEveryCategory() {
+        Map<String, Integer> categories = toMap(CategoryIndex.get().getCategories());
+        assertEquals(Arrays.asList("All", "Even", "Three"),
+                new ArrayList<>(categories.keySet()));
+        assertEquals(200, (int) categories.get("All"));
+        assertEquals(100, (int) categories.get("Even"));
+        assertEquals(66, (int) categories.get("Three"));
+    }
+
+    @Test
+    public void browsesPagesInIdOrder() {
+        CategoryIndex.Page first = CategoryIndex.get().browse("Three", null, 2);
+        assertEquals(ImmutableList.of(3L, 6L), first.getBookIds());
+        assertTrue(first.hasMore());
+        assertEquals(66, first.getCount());
+
+        CategoryIndex.Page last = CategoryIndex.get().browse("Three", 195L, 10);
+        assertEquals(ImmutableList.of(198L), last.getBookIds());
+        assertFalse(last.hasMore());
+
+        Map<String, Integer> facets = toMap(first.getFacets());
+        assertEquals(66, (int) facets.get("All"));
+        assertEquals(33, (int) facets.get("Even"));
+        assertFalse(facets.containsKey("Three"));
+
+        assertEquals(0, CategoryIndex.get().browse("None", null, 10).getCount());
+    }
+
+    @Test
+    public void countsFacetsOfASelection() {
+        List<Long> bookIds = ImmutableList.of(2L, 3L, 6L, 7L, 130L, 199L, 999L);
+        Map<String, Integer> facets =
+                toMap(CategoryIndex.get().countFacets(bookIds, Collections.<String>emptyList()));
+        assertEquals(6, (int) facets.get("All"));
+        assertEquals(3, (int) facets.get("Even"));
+        assertEquals(2, (int) facets.get("Three"));
+
+        facets = toMap(CategoryIndex.get().countFacets(bookIds, ImmutableList.of("Even")));
+        assertEquals(3, (int) facets.get("All"));
+        assertEquals(1, (int) facets.get("Three"));
+
+        assertTrue(CategoryIndex.get()
+                .countFacets(bookIds, ImmutableList.of("None")).isEmpty());
+    }
+
+    @Test
+    public void catchesUpWithBooksSavedElsewhere() {
+        ofy().save().entity(new Book(201, new BookForm("Book 201", null,
+                ImmutableList.of("All", "New"), null, 100))).now();
+        // Served as it is until the catch-up.
+        assertFalse(toMap(CategoryIndex.get().getCategories()).containsKey("New"));
+        CategoryIndex.get().catchUp(CatalogGeneration.bump());
+        Map<String, Integer> categories = toMap(CategoryIndex.get().getCategories());
+        assertEquals(201, (int) categories.get("All"));
+        assertEquals(1, (int) categories.get("New"));
+    }
+
+    @Test
+    public void movesReindexedBooks() {
+        Book book = new Book(4, new BookForm("Book 4", null, ImmutableList.of("All", "Three"),
+                null, 100));
+        CategoryIndex.get().index(book, generation + 1);
+        Map<String, Integer> categories = toMap(CategoryIndex.get().getCategories());
+        assertEquals(99, (int) categories.get("Even"));
+        assertEquals(67, (int) categories.get("Three"));
+        assertEquals(ImmutableList.of(3L, 4L, 6L),
+                CategoryIndex.get().browse("Three", null, 3).getBookIds());
+    }
+}
@@ -0,0 +1,136 @@
+package com.itcs443.bookstore.service;
+
+import static com.itcs443.bookstore.service.OfyService.ofy;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Work;
+import com.googlecode.objectify.util.Closeable;
+import com.itcs443.bookstore.domain.Book;
+import com.itcs443.bookstore.domain.Cart;
+import com.itcs443.bookstore.domain.OrderStatus;
+import com.itcs443.bookstore.domain.StockReservation;
+import com.itcs443.bookstore.form.BookForm;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class InventoryTest {
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig(), new LocalMemcacheServiceTestConfig());
+
+    private Closeable session;
+
+    private Book book;
+
+    private Cart order;
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+        session = ObjectifyService.begin();
+        book = new Book(1, new BookForm("Dune", null, Arrays.asList("Fiction"), null, 1000));
+        BookRepository.get().save(book);
+        Inventory.get().restock(Key.create(Book.class, 1), 3, 2);
+        book = BookRepository.get().get(Key.create(Book.class, 1));
+
+        order = new Cart(2, "user");
+        order.addBook(book);
+        order.addBook(book);
+        order.setStatus(OrderStatus.PRICED, null);
+        ofy().save().entity(order).now();
+    }
+
+    @After
+    public void tearDown() {
+        session.close();
+        helper.tearDown();
+    }
+
+    private boolean pin() {
+        return ofy().transact(new Work<Boolean>() {
+            @Override
+            public Boolean run() {
+                return Inventory.get().pin(order.getKey());
+            }
+        });
+    }
+
+    @Test
+    public void reservesAndReleasesCopies() {
+        assertTrue(Inventory.get().reserve(order).isEmpty());
+        assertEquals(1L, (long) Inventory.get().getAvailable(Arrays.asList(book)).get(1L));
+        assertFalse(Inventory.get().isAvailable(book, 2));
+
+        Inventory.get().release(order.getKey());
+        assertEquals(OrderStatus.REJECTED,
+                ofy().load().key(order.getKey()).now().getStatus());
+        Cart other = new Cart(3, "user");
+        for (int i = 0; i < 3; i++) {
+            other.addBook(book);
+        }
+        assertTrue(Inventory.get().reserve(other).isEmpty());
+    }
+
+    @Test
+    public void restockLeavesTheCachedBookAndTheCatalogAlone() {
+        Book cached = BookRepository.get().get(Key.create(Book.class, 1));
+        long generation = CatalogGeneration.get();
+        Inventory.get().restock(Key.create(Book.class, 1), 1, 4);
+        assertEquals(2, cached.getStockShards());
+        assertEquals(generation, CatalogGeneration.get());
+        assertEquals(4, BookRepository.get().get(Key.create(Book.class, 1)).getStockShards());
+        assertEquals(4L, (long) Inventory.get().getAvailable(
+                Arrays.asList(BookRepository.get().get(Key.create(Book.class, 1)))).get(1L));
+    }
+
+    @Test
+    public void restockNeverDropsShards() {
+        Inventory.get().restock(Key.create(Book.class, 1), 1, 4);
+        try {
+            Inventory.get().restock(Key.create(Book.class, 1), 1, 2);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // The copies on shards 2 and 3 would no longer be counted.
+        }
+        Book restocked = Inventory.get().restock(Key.create(Book.class, 1), 1, null);
+        assertEquals(4, restocked.getStockShards());
+        assertEquals(5L, (long) Inventory.get().getAvailable(Arrays.asList(restocked)).get(1L));
+    }
+
+    @Test
+    public void pinPostponesTheExpiry() {
+        Inventory.get().reserve(order);
+        Key<StockReservation> key = StockReservation.createKey(order.getKey());
+        Date expiresAt = ofy().load().key(key).now().getExpiresAt();
+
+        assertTrue(pin());
+        ofy().clear();
+        assertFalse(ofy().load().key(key).now().getExpiresAt().before(expiresAt));
+    }
+
+    @Test
+    public void pinFailsOnceReleased() {
+        Inventory.get().reserve(order);
+        Inventory.get().release(order.getKey());
+        ofy().clear();
+        assertFalse(pin());
+    }
+
+    @Test
+    public void pinPassesOrdersWithoutTrackedBooks() {
+        assertTrue(pin());
+    }
+}
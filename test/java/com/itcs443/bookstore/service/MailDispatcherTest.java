@@ -0,0 +1,199 @@
+package com.itcs443.bookstore.service;
+
+import static com.itcs443.bookstore.service.OfyService.ofy;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.appengine.api.taskqueue.dev.QueueStateInfo.TaskStateInfo;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.util.Closeable;
+import com.itcs443.bookstore.domain.Book;
+import com.itcs443.bookstore.domain.Cart;
+import com.itcs443.bookstore.domain.FailedEmail;
+import com.itcs443.bookstore.form.BookForm;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class MailDispatcherTest {
+
+    /**
+     * A local SMTP stand-in: accepts every message, or answers a transient failure to
+     * every sender while rejecting is set.
+     */
+    private static class SmtpServer implements Runnable {
+        private final ServerSocket socket = new ServerSocket(0);
+        private final List<String> messages = new CopyOnWriteArrayList<>();
+        private volatile boolean rejecting;
+
+        private SmtpServer() throws IOException {}
+
+        @Override
+        public void run() {
+            while (!socket.isClosed()) {
+                try (Socket client = socket.accept()) {
+                    serve(client);
+                } catch (IOException e) {
+                    // Closed by the test, or a client gone.
+                }
+            }
+        }
+
+        private void serve(Socket client) throws IOException {
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+            PrintWriter out = new PrintWriter(client.getOutputStream(), true);
+            out.print("220 localhost\r\n");
+            out.flush();
+            String line;
+            while ((line = in.readLine()) != null) {
+                String command = line.toUpperCase();
+                if (command.startsWith("MAIL") && rejecting) {
+                    out.print("451 Try again later\r\n");
+                } else if (command.startsWith("DATA")) {
+                    out.print("354 End with .\r\n");
+                    out.flush();
+                    StringBuilder message = new StringBuilder();
+                    while ((line = in.readLine()) != null && !line.equals(".")) {
+                        message.append(line).append('\n');
+                    }
+                    messages.add(message.toString());
+                    out.print("250 OK\r\n");
+                } else if (command.startsWith("QUIT")) {
+                    out.print("221 Bye\r\n");
+                    out.flush();
+                    return;
+                } else {
+                    out.print("250 OK\r\n");
+                }
+                out.flush();
+            }
+        }
+    }
+
+    private static SmtpServer smtp;
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig(), new LocalMemcacheServiceTestConfig(),
+            new LocalTaskQueueTestConfig().setQueueXmlPath("webapp/WEB-INF/queue.xml"));
+
+    private Closeable session;
+
+    @BeforeClass
+    public static void startSmtpServer() throws IOException {
+        smtp = new SmtpServer();
+        new Thread(smtp).start();
+        // Read once, when MailDispatcher builds its session. The SDK sends the e-mail
+        // addresses through the Mail API unless told to use SMTP.
+        System.setProperty("mail.transport.protocol.rfc822", "smtp");
+        System.setProperty("mail.smtp.host", "localhost");
+        System.setProperty("mail.smtp.port", Integer.toString(smtp.socket.getLocalPort()));
+    }
+
+    @AfterClass
+    public static void stopSmtpServer() throws IOException {
+        smtp.socket.close();
+    }
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+        session = ObjectifyService.begin();
+        smtp.messages.clear();
+        smtp.rejecting = false;
+    }
+
+    @After
+    public void tearDown() {
+        session.close();
+        helper.tearDown();
+    }
+
+    private static List<TaskStateInfo> getPendingTasks() {
+        return LocalTaskQueueTestConfig.getLocalTaskQueue().getQueueStateInfo()
+                .get(MailDispatcher.QUEUE_NAME).getTaskInfo();
+    }
+
+    @Test
+    public void sendsPendingEmails() {
+        MailDispatcher.get().enqueueSummaryConfirmation("ann@example.com", "Ann", "2 books");
+        MailDispatcher.get().dispatch(System.currentTimeMillis() + 10000);
+
+        assertEquals(1, smtp.messages.size());
+        assertTrue(smtp.messages.get(0).contains("ann@example.com"));
+        assertTrue(getPendingTasks().isEmpty());
+    }
+
+    @Test
+    public void countsFailedAttemptsInTheTask() {
+        smtp.rejecting = true;
+        MailDispatcher.get().enqueueSummaryConfirmation("ann@example.com", "Ann", "2 books");
+        MailDispatcher.get().dispatch(System.currentTimeMillis() + 10000);
+
+        assertTrue(smtp.messages.isEmpty());
+        List<TaskStateInfo> tasks = getPendingTasks();
+        assertEquals(1, tasks.size());
+        assertTrue(tasks.get(0).getBody().contains(MailDispatcher.ATTEMPTS_PARAM + "=1"));
+        assertEquals(0, ofy().load().type(FailedEmail.class).count());
+    }
+
+    @Test
+    public void deadLettersAfterTheLastAttempt() {
+        smtp.rejecting = true;
+        QueueFactory.getQueue(MailDispatcher.QUEUE_NAME).add(
+                TaskOptions.Builder.withMethod(TaskOptions.Method.PULL)
+                        .param("email", "ann@example.com")
+                        .param("name", "Ann")
+                        .param("cartInfo", "2 books")
+                        .param(MailDispatcher.ATTEMPTS_PARAM,
+                                Integer.toString(MailDispatcher.MAX_ATTEMPTS - 1)));
+        MailDispatcher.get().dispatch(System.currentTimeMillis() + 10000);
+
+        assertTrue(getPendingTasks().isEmpty());
+        FailedEmail failed = ofy().load().type(FailedEmail.class).first().now();
+        assertEquals(MailDispatcher.MAX_ATTEMPTS, failed.getAttempts());
+    }
+
+    @Test
+    public void retriesUseTheCachedRendering() {
+        Cart cart = new Cart(1, "user");
+        cart.addBook(new Book(10, new BookForm("Dune", null, Arrays.asList("Fiction"),
+                "Frank Herbert", 1999)));
+        ofy().save().entity(cart).now();
+        smtp.rejecting = true;
+        MailDispatcher.get().enqueueConfirmation(null, "ann@example.com", "Ann", cart.getKey());
+        MailDispatcher.get().dispatch(System.currentTimeMillis() + 10000);
+
+        // The retry is due only after its backoff; enqueue it again to send it now.
+        QueueFactory.getQueue(MailDispatcher.QUEUE_NAME).purge();
+        MailDispatcher.get().enqueueConfirmation(null, "ann@example.com", "Ann", cart.getKey());
+        ofy().delete().key(cart.getKey()).now();
+        smtp.rejecting = false;
+        MailDispatcher.get().dispatch(System.currentTimeMillis() + 10000);
+
+        assertEquals(1, smtp.messages.size());
+        assertTrue(smtp.messages.get(0).contains("Dune"));
+        assertEquals(0, ofy().load().type(FailedEmail.class).count());
+    }
+}
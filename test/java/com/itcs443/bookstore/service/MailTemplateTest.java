@@ -0,0 +1,70 @@
+package com.itcs443.bookstore.service;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class MailTemplateTest {
+
+    @Test
+    public void replacesVariables() {
+        MailTemplate template = MailTemplate.text("Dear {{ name }}, you owe {{total}}.");
+        assertEquals("Dear Ann, you owe 12.50.",
+                template.render(ImmutableMap.of("name", "Ann", "total", "12.50")));
+    }
+
+    @Test
+    public void rendersMissingVariablesAsEmpty() {
+        assertEquals("Hi !", MailTemplate.text("Hi {{name}}!")
+                .render(Collections.<String, Object>emptyMap()));
+    }
+
+    @Test
+    public void repeatsSectionsForEveryItem() {
+        MailTemplate template = MailTemplate.text(
+                "{{#items}}{{name}} x{{quantity}} for {{customer}};{{/items}}");
+        Map<String, ?> values = ImmutableMap.of(
+                "customer", "Ann",
+                "items", ImmutableList.of(
+                        ImmutableMap.of("name", "Dune", "quantity", 2),
+                        ImmutableMap.of("name", "Emma", "quantity", 1, "customer", "Bob")));
+        assertEquals("Dune x2 for Ann;Emma x1 for Bob;", template.render(values));
+    }
+
+    @Test
+    public void rendersConditionalSections() {
+        MailTemplate template = MailTemplate.text("a{{#paid}}b{{/paid}}c");
+        assertEquals("abc", template.render(ImmutableMap.of("paid", true)));
+        assertEquals("ac", template.render(ImmutableMap.of("paid", false)));
+        assertEquals("ac", template.render(Collections.<String, Object>emptyMap()));
+    }
+
+    @Test
+    public void escapesValuesOfHtmlTemplates() {
+        Map<String, ?> values = ImmutableMap.of("name", "<b>\"Tom\" & Jerry</b>");
+        assertEquals("<p>&lt;b&gt;&quot;Tom&quot; &amp; Jerry&lt;/b&gt;</p>",
+                MailTemplate.html("<p>{{name}}</p>").render(values));
+        assertEquals("<b>\"Tom\" & Jerry</b>", MailTemplate.text("{{name}}").render(values));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnclosedTags() {
+        MailTemplate.text("Hi {{name");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnclosedSections() {
+        MailTemplate.text("{{#items}}{{name}}");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMismatchedSections() {
+        MailTemplate.text("{{#items}}{{/books}}");
+    }
+}
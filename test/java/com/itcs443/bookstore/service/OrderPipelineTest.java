@@ -0,0 +1,79 @@
+package com.itcs443.bookstore.service;
+
+import static com.itcs443.bookstore.service.OfyService.ofy;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.util.Closeable;
+import com.itcs443.bookstore.domain.Book;
+import com.itcs443.bookstore.domain.Cart;
+import com.itcs443.bookstore.domain.OrderStatus;
+import com.itcs443.bookstore.domain.Profile;
+import com.itcs443.bookstore.form.BookForm;
+
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OrderPipelineTest {
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig(), new LocalMemcacheServiceTestConfig());
+
+    private Closeable session;
+
+    private Profile profile;
+
+    private Cart order;
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+        session = ObjectifyService.begin();
+        profile = new Profile("ann", "Ann", "ann@example.com", "");
+        // Checked out without an address, so VALIDATE rejects it.
+        order = new Cart(2, "ann");
+        order.addBook(new Book(1, new BookForm("Dune", null, Arrays.asList("Fiction"), null,
+                1000)));
+        order.addBook(new Book(1, new BookForm("Dune", null, Arrays.asList("Fiction"), null,
+                1000)));
+        order.setToCheckOut(true);
+        order.setStatus(OrderStatus.RECEIVED, null);
+    }
+
+    @After
+    public void tearDown() {
+        session.close();
+        helper.tearDown();
+    }
+
+    private Profile validate() throws Exception {
+        ofy().save().entities(profile, order).now();
+        OrderPipeline.run(OrderPipeline.Stage.VALIDATE, order.getKey());
+        ofy().clear();
+        assertEquals(OrderStatus.REJECTED, ofy().load().key(order.getKey()).now().getStatus());
+        return ofy().load().key(Key.create(Profile.class, "ann")).now();
+    }
+
+    @Test
+    public void putsTheBooksOfARejectedOrderBackInTheCart() throws Exception {
+        Profile reloaded = validate();
+        Cart cart = ofy().load().key(Key.<Cart>create(reloaded.getOnGoingCartId())).now();
+        assertNotEquals(order.getId(), cart.getId());
+        assertEquals(2, cart.getQuantity(1));
+        assertEquals(2000L, cart.getTotalMinor());
+    }
+
+    @Test
+    public void keepsACartStartedSinceTheCheckout() throws Exception {
+        profile.update("started");
+        assertEquals("started", validate().getOnGoingCartId());
+    }
+}
@@ -0,0 +1,100 @@
+package com.itcs443.bookstore.service;
+
+import static com.itcs443.bookstore.service.OfyService.ofy;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.util.Closeable;
+import com.itcs443.bookstore.domain.Book;
+import com.itcs443.bookstore.domain.Cart;
+import com.itcs443.bookstore.domain.SalesCounterShard;
+import com.itcs443.bookstore.domain.SalesReceipt;
+import com.itcs443.bookstore.form.BookForm;
+import com.itcs443.bookstore.form.CheckoutForm;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SalesStatsTest {
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig(), new LocalMemcacheServiceTestConfig());
+
+    private Closeable session;
+
+    private Cart cart;
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+        session = ObjectifyService.begin();
+        cart = new Cart(1, "ann");
+        Book book = new Book(2, new BookForm("Dune", null, null, null, 1250));
+        cart.addBook(book);
+        cart.addBook(book);
+        cart.updateWithCheckoutForm(
+                new CheckoutForm("Ann", "1 Road", "Ann", "4111111111111111", "01/30", 123));
+    }
+
+    @After
+    public void tearDown() {
+        session.close();
+        helper.tearDown();
+    }
+
+    private static int countEntities() {
+        return ofy().load().type(SalesCounterShard.class).keys().list().size()
+                + ofy().load().type(SalesReceipt.class).keys().list().size();
+    }
+
+    @Test
+    public void countsACartOncePerEpoch() {
+        SalesStats.addToEpoch(cart, 0);
+        SalesStats.addToEpoch(cart, 0);
+        SalesStats.Report report = SalesStats.read(
+                Arrays.asList(SalesStats.getDay(new Date())),
+                Arrays.asList(Key.create(Book.class, 2)), "ann");
+        assertEquals(2500L, report.getDays().get(0).getRevenueMinor());
+        assertEquals(1L, report.getDays().get(0).getOrders());
+        assertEquals(2L, report.getBooks().get(0).getUnits());
+        assertEquals(1L, report.getCustomer().getOrders());
+    }
+
+    @Test
+    public void rebuildPurgesTheObsoleteEpochs() {
+        SalesStats.addToEpoch(cart, 0);
+        int perEpoch = countEntities();
+        long abandoned = SalesStats.startRebuild(false);
+        SalesStats.addToEpoch(cart, abandoned);
+        long epoch = SalesStats.startRebuild(true);
+        SalesStats.addToEpoch(cart, epoch);
+        // An epoch whose name starts like the abandoned one.
+        SalesStats.addToEpoch(cart, abandoned * 10);
+        assertEquals(4 * perEpoch, countEntities());
+
+        assertEquals(0L, (long) SalesStats.finishRebuild(epoch));
+        long deadline = System.currentTimeMillis() + 10000;
+        // The served epoch is kept.
+        assertTrue(SalesStats.purgeEpoch(epoch, deadline));
+        assertEquals(4 * perEpoch, countEntities());
+        for (long obsolete = 0; obsolete < epoch; obsolete++) {
+            assertTrue(SalesStats.purgeEpoch(obsolete, deadline));
+        }
+        assertEquals(2 * perEpoch, countEntities());
+
+        SalesStats.Report report = SalesStats.read(Collections.<String>emptyList(),
+                Collections.<Key<Book>>emptyList(), "ann");
+        assertEquals(epoch, report.getEpoch());
+        assertEquals(1L, report.getCustomer().getOrders());
+    }
+}
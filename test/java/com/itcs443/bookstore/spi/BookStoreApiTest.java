@@ -0,0 +1,95 @@
+package com.itcs443.bookstore.spi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.api.server.spi.response.ConflictException;
+import com.google.appengine.api.users.User;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.util.Closeable;
+import com.itcs443.bookstore.domain.Book;
+import com.itcs443.bookstore.domain.Cart;
+import com.itcs443.bookstore.form.BookForm;
+import com.itcs443.bookstore.form.CartBatchForm;
+import com.itcs443.bookstore.service.BookRepository;
+import com.itcs443.bookstore.service.Inventory;
+import com.itcs443.bookstore.spi.BookStoreApi.ItemResult;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BookStoreApiTest {
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig(), new LocalMemcacheServiceTestConfig());
+
+    private final User user = new User("ann@example.com", "example.com", "ann");
+
+    private final BookStoreApi api = new BookStoreApi();
+
+    private Closeable session;
+
+    private String bookKey;
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+        session = ObjectifyService.begin();
+        Book book = new Book(1, new BookForm("Dune", null, Arrays.asList("Fiction"), null, 1000));
+        BookRepository.get().save(book);
+        Inventory.get().restock(Key.create(Book.class, 1), 1, 1);
+        bookKey = Key.create(Book.class, 1).getString();
+    }
+
+    @After
+    public void tearDown() {
+        session.close();
+        helper.tearDown();
+    }
+
+    @Test
+    public void replaysTheRecordedResultsOfABatch() throws Exception {
+        String missingKey = Key.create(Book.class, 2).getString();
+        CartBatchForm form = new CartBatchForm(Arrays.asList(bookKey, missingKey));
+        api.addBooksToCart(user, form, "a");
+
+        // Sold out since the first attempt.
+        Cart order = new Cart(3, "bob");
+        order.addBook(BookRepository.get().get(Key.create(Book.class, 1)));
+        assertTrue(Inventory.get().reserve(order).isEmpty());
+
+        List<ItemResult> results = api.addBooksToCart(user, form, "a");
+        assertEquals(2, results.size());
+        assertTrue(results.get(0).getResult());
+        assertEquals(bookKey, results.get(0).getWebsafeKey());
+        assertFalse(results.get(1).getResult());
+        assertEquals("No Book found with key: " + missingKey, results.get(1).getReason());
+    }
+
+    @Test
+    public void countsTheCopiesInTheCartAndTheBatch() throws Exception {
+        List<ItemResult> results = api.addBooksToCart(user,
+                new CartBatchForm(Arrays.asList(bookKey, bookKey, bookKey)), null);
+        assertTrue(results.get(0).getResult());
+        assertFalse(results.get(1).getResult());
+        assertFalse(results.get(2).getResult());
+
+        results = api.addBooksToCart(user, new CartBatchForm(Arrays.asList(bookKey)), null);
+        assertEquals("Out of stock", results.get(0).getReason());
+    }
+
+    @Test(expected = ConflictException.class)
+    public void rejectsARequestIdReusedForAnotherBatch() throws Exception {
+        api.addBooksToCart(user, new CartBatchForm(Arrays.asList(bookKey)), "a");
+        api.addBooksToCart(user, new CartBatchForm(Arrays.asList(bookKey, bookKey)), "a");
+    }
+}
@@ -69,7 +69,24 @@ bookstoreApp.controllers.controller('MyProfileCtrl',
                 retrieveProfileCallback();
             }
             
-            gapi.client.bookstore.getCartCreated().
+            $scope.cart = [];
+            $scope.getCartCreatedPage();
+            
+        };
+
+        /**
+         * The cursor of the next page of the carts created, undefined on the last page.
+         */
+        $scope.nextPageToken = undefined;
+
+        /**
+         * Invokes the bookstore.getCartCreated API for one page, and appends its carts.
+         *
+         * @param cursor the nextPageToken of the previous page, undefined for the first one.
+         */
+        $scope.getCartCreatedPage = function (cursor) {
+            $scope.loading = true;
+            gapi.client.bookstore.getCartCreated({cursor: cursor}).
             execute(function (resp) {
                 $scope.$apply(function () {
                     $scope.loading = false;
@@ -87,15 +104,21 @@ bookstoreApp.controllers.controller('MyProfileCtrl',
                         $scope.alertStatus = 'success';
                         $log.info($scope.messages);
 
-                        $scope.cart = [];
                         angular.forEach(resp.items, function (cart) {
                             $scope.cart.push(cart);
                         });
+                        $scope.nextPageToken = resp.nextPageToken;
                     }
                     $scope.submitted = true;
                 });
             });
-            
+        };
+
+        /**
+         * Loads the next page of the carts created.
+         */
+        $scope.loadMoreCarts = function () {
+            $scope.getCartCreatedPage($scope.nextPageToken);
         };
 
 
@@ -314,7 +337,9 @@ bookstoreApp.controllers.controller('ShowBookCtrl', function ($scope, $log, oaut
 
     $scope.filtereableFields = [
         {enumValue: 'NAME', displayName: 'Name'},
-        {enumValue: 'AUTHOR', displayName: 'Author'}
+        {enumValue: 'AUTHOR', displayName: 'Author'},
+        {enumValue: 'KEYWORD', displayName: 'Keyword'},
+        {enumValue: 'CATEGORY', displayName: 'Category'}
     ]
 
 
@@ -443,7 +468,25 @@ bookstoreApp.controllers.controller('ShowBookCtrl', function ($scope, $log, oaut
                 });
             }
         }
+        $scope.books = [];
+        $scope.nextPageToken = undefined;
+        $scope.queryBooksPage(sendFilters);
+    };
+
+    /**
+     * Loads the next page of the last query.
+     */
+    $scope.loadMoreBooks = function () {
+        $scope.lastFilters.cursor = $scope.nextPageToken;
+        $scope.queryBooksPage($scope.lastFilters);
+    };
+
+    /**
+     * Invokes the bookstore.queryBooks API for one page, and appends its books.
+     */
+    $scope.queryBooksPage = function (sendFilters) {
         $scope.loading = true;
+        $scope.lastFilters = sendFilters;
         gapi.client.bookstore.queryBooks(sendFilters).
             execute(function (resp) {
                 $scope.$apply(function () {
@@ -461,10 +504,10 @@ bookstoreApp.controllers.controller('ShowBookCtrl', function ($scope, $log, oaut
                         $scope.alertStatus = 'success';
                         $log.info($scope.messages);
 
-                        $scope.books = [];
                         angular.forEach(resp.items, function (book) {
                             $scope.books.push(book);
                         });
+                        $scope.nextPageToken = resp.nextPageToken;
                     }
                     $scope.submitted = true;
                 });
@@ -567,7 +610,7 @@ bookstoreApp.controllers.controller('BookDetailCtrl', function ($scope, $log, $r
  * @description
  * A controller used for the Show books page.
  */
-bookstoreApp.controllers.controller('MyCartCtrl', function ($scope, $log, oauth2Provider, HTTP_ERRORS, $location, $route) {
+bookstoreApp.controllers.controller('MyCartCtrl', function ($scope, $log, oauth2Provider, HTTP_ERRORS, $location, $route, $timeout) {
 
 
     /**
@@ -717,13 +760,89 @@ bookstoreApp.controllers.controller('MyCartCtrl', function ($scope, $log, oauth2
                             return;
                         }
                     } else {
-                        // The request has succeeded.
-                        $scope.messages = 'Checked out! Thanks! : ' + resp.result.name;
-                        $scope.alertStatus = 'success';
+                        // The order is taken; the pipeline decides its outcome.
                         $scope.submitted = false;
                         $scope.book = {};
-                        $log.info($scope.messages + ' : ' + JSON.stringify(resp.result));
-                        $location.path( "/thankyou" );
+                        $log.info('Order received : ' + JSON.stringify(resp.result));
+                        $scope.showOrderStatus(resp.result, 0);
+                    }
+                });
+            });
+    };
+
+    /**
+     * How long to wait between two bookstore.getOrderStatus calls, in milliseconds.
+     * @type {number}
+     */
+    var ORDER_STATUS_POLL_MILLIS = 2000;
+
+    /**
+     * How many times bookstore.getOrderStatus is called before giving up.
+     * @type {number}
+     */
+    var ORDER_STATUS_MAX_POLLS = 30;
+
+    /**
+     * Shows the status of an order, and polls bookstore.getOrderStatus until the order is
+     * confirmed, rejected or its payment declined.
+     *
+     * @param receipt the OrderReceipt returned by checkout or getOrderStatus.
+     * @param polls the number of getOrderStatus calls made so far.
+     */
+    $scope.showOrderStatus = function (receipt, polls) {
+        $scope.orderPending = false;
+        switch (receipt.status) {
+            case 'CONFIRMED':
+                $scope.messages = 'Checked out! Thanks! Total : ' + receipt.total;
+                $scope.alertStatus = 'success';
+                $location.path("/thankyou");
+                return;
+            case 'REJECTED':
+                $scope.messages = 'Your order was rejected : ' + (receipt.reason || '')
+                    + '. Your books are back in your cart.';
+                $scope.alertStatus = 'warning';
+                return;
+            case 'PAYMENT_DECLINED':
+                $scope.messages = 'Your payment was declined : ' + (receipt.reason || '')
+                    + '. Your books are back in your cart.';
+                $scope.alertStatus = 'warning';
+                return;
+        }
+        if (polls >= ORDER_STATUS_MAX_POLLS) {
+            $scope.messages = 'Your order is still being processed. '
+                + 'You will receive an e-mail once it is confirmed.';
+            $scope.alertStatus = 'info';
+            return;
+        }
+        $scope.orderPending = true;
+        $scope.messages = 'Processing your order...';
+        $scope.alertStatus = 'info';
+        $timeout(function () {
+            $scope.pollOrderStatus(receipt.websafeOrderKey, polls + 1);
+        }, ORDER_STATUS_POLL_MILLIS);
+    };
+
+    /**
+     * Invokes the bookstore.getOrderStatus API and shows the status of the order.
+     *
+     * @param websafeOrderKey the key of the order.
+     * @param polls the number of getOrderStatus calls made so far, this one included.
+     */
+    $scope.pollOrderStatus = function (websafeOrderKey, polls) {
+        gapi.client.bookstore.getOrderStatus({websafeOrderKey: websafeOrderKey}).
+            execute(function (resp) {
+                $scope.$apply(function () {
+                    if (resp.error) {
+                        // Transient errors are retried with the next poll.
+                        $log.error('Failed to get the order status : ' + resp.error.message);
+                        if (resp.code && resp.code == HTTP_ERRORS.UNAUTHORIZED) {
+                            $scope.orderPending = false;
+                            oauth2Provider.showLoginModal();
+                            return;
+                        }
+                        $scope.showOrderStatus({websafeOrderKey: websafeOrderKey}, polls);
+                    } else {
+                        $scope.showOrderStatus(resp.result, polls);
                     }
                 });
             });
@@ -919,8 +1038,23 @@ bookstoreApp.controllers.controller('CartDetailCtrl', function ($scope, $log, $r
 	     *
 	     */
 	    $scope.init = function () {
+            $scope.cart = [];
+            $scope.getAllCartPage();
+	    };
+
+	    /**
+	     * The cursor of the next page of the carts, undefined on the last page.
+	     */
+	    $scope.nextPageToken = undefined;
+
+	    /**
+	     * Invokes the bookstore.getAllCart API for one page, and appends its carts.
+	     *
+	     * @param cursor the nextPageToken of the previous page, undefined for the first one.
+	     */
+	    $scope.getAllCartPage = function (cursor) {
 	        $scope.loading = true;
-            gapi.client.bookstore.getAllCart().
+            gapi.client.bookstore.getAllCart({cursor: cursor}).
             execute(function (resp) {
                 $scope.$apply(function () {
                     $scope.loading = false;
@@ -938,15 +1072,22 @@ bookstoreApp.controllers.controller('CartDetailCtrl', function ($scope, $log, $r
                         $scope.alertStatus = 'success';
                         $log.info($scope.messages);
 
-                        $scope.cart = [];
                         angular.forEach(resp.items, function (cart) {
                             $scope.cart.push(cart);
                         });
+                        $scope.nextPageToken = resp.nextPageToken;
                     }
                     $scope.submitted = true;
                 });
             });
 	    };
+
+	    /**
+	     * Loads the next page of the carts.
+	     */
+	    $scope.loadMoreCarts = function () {
+	        $scope.getAllCartPage($scope.nextPageToken);
+	    };
 	    
 
 	    /**